@@ -7,46 +7,101 @@ SRC_DIR="$ROOT_DIR/src"
 BIN_DIR="$ROOT_DIR/compiled"
 CONFIG="$ROOT_DIR/config.json"
 
+COMMON_PKG="Common"
 USER_PKG="UserService"
 PRODUCT_PKG="ProductService"
 ORDER_PKG="OrderService"
+LAUNCHER_PKG="Launcher"
 
 ISCS_PY="$SRC_DIR/ISCS/ISCS.py"
 WORKLOAD_PARSER="$ROOT_DIR/src/WorkloadParser.py"
 
 mkdir -p "$BIN_DIR"
 
+# JVM options of every service. The JDK HTTP server writes headers and body
+# separately; without TCP_NODELAY a keep-alive client's delayed ACK holds back
+# every response body by up to 40 ms
+JAVA_OPTS="-Dsun.net.httpserver.nodelay=true"
+
+# With RECORD=1, prints the JVM option that records the named service with Flight
+# Recorder to recordings/<name>.jfr (written on exit); see microservices.jfc
+record() {
+    if [ -n "$RECORD" ]; then
+        mkdir -p "$ROOT_DIR/recordings"
+        echo "-XX:StartFlightRecording=settings=default,settings=$ROOT_DIR/microservices.jfc,dumponexit=true,filename=$ROOT_DIR/recordings/$1.jfr"
+    fi
+}
+
 compile() {
     echo "[INFO] Compiling Java services..."
 
     rm -rf "$BIN_DIR"/*
     mkdir -p "$BIN_DIR"
 
-    javac -d "$BIN_DIR" "$SRC_DIR/$USER_PKG"/*.java
-    javac -d "$BIN_DIR" "$SRC_DIR/$PRODUCT_PKG"/*.java
-    javac -d "$BIN_DIR" "$SRC_DIR/$ORDER_PKG"/*.java
+    javac -d "$BIN_DIR" "$SRC_DIR/$COMMON_PKG"/*.java
+    javac -cp "$BIN_DIR" -d "$BIN_DIR" "$SRC_DIR/$USER_PKG"/*.java
+    javac -cp "$BIN_DIR" -d "$BIN_DIR" "$SRC_DIR/$PRODUCT_PKG"/*.java
+    javac -cp "$BIN_DIR" -d "$BIN_DIR" "$SRC_DIR/$ORDER_PKG"/*.java
+    javac -cp "$BIN_DIR" -d "$BIN_DIR" "$SRC_DIR/$LAUNCHER_PKG"/*.java
 
     echo "[INFO] Compilation successful."
 }
 
 start_user() {
     echo "[INFO] Starting UserService..."
-    java -cp "$BIN_DIR" UserService.UserServer "$CONFIG"
+    # optional second argument: CSV/NDJSON seed file loaded before the port is bound
+    java $JAVA_OPTS $(record user) -cp "$BIN_DIR" UserService.UserServer "$CONFIG" ${2:+"$2"}
 }
 
 start_product() {
     echo "[INFO] Starting ProductService..."
-    java -cp "$BIN_DIR" ProductService.ProductServer "$CONFIG"
+    # optional second argument: CSV/NDJSON seed file loaded before the port is bound
+    java $JAVA_OPTS $(record product) -cp "$BIN_DIR" ProductService.ProductServer "$CONFIG" ${2:+"$2"}
+}
+
+start_replica() {
+    if [ -z "$2" ]; then
+        echo "[ERROR] Missing replica port"
+        exit 1
+    fi
+
+    PRIMARY=$(python3 -c 'import json, sys; p = json.load(open(sys.argv[1]))["ProductService"]; print("%s:%s" % (p["ip"], p["port"]))' "$CONFIG")
+    echo "[INFO] Starting ProductService follower of $PRIMARY on port $2..."
+    java $JAVA_OPTS $(record "product-$2") -cp "$BIN_DIR" ProductService.ProductServer "$CONFIG" --port "$2" --follow "$PRIMARY"
 }
 
 start_order() {
     echo "[INFO] Starting OrderService..."
-    java -cp "$BIN_DIR" OrderService.OrderServer "$CONFIG"
+    java $JAVA_OPTS $(record order) -cp "$BIN_DIR" OrderService.OrderServer "$CONFIG"
+}
+
+start_local() {
+    echo "[INFO] Starting User, Product and Order services in one JVM..."
+    # optional: --users <seed file> --products <seed file>
+    java $JAVA_OPTS $(record local) -cp "$BIN_DIR" Launcher.LocalLauncher "$CONFIG" "${@:2}"
+}
+
+start_simulator() {
+    echo "[INFO] Starting OrderService on simulated User and Product services..."
+    # optional: --bench <seconds> [--clients n] [--warmup seconds]
+    java $JAVA_OPTS $(record order) -cp "$BIN_DIR" Launcher.SimulatorLauncher "$CONFIG" "${@:2}"
 }
 
 start_iscs() {
     echo "[INFO] Starting ISCS..."
-    python3 "$ISCS_PY" "$CONFIG"
+    # optional: another port, to run an extra instance
+    python3 "$ISCS_PY" "$CONFIG" ${2:+--port "$2"}
+}
+
+start_replay() {
+    if [ -z "$2" ]; then
+        echo "[ERROR] Missing capture file"
+        exit 1
+    fi
+
+    echo "[INFO] Replaying $2"
+    # optional: --speed x (0 = as fast as possible) [--clients n] [--services order,user]
+    java -cp "$BIN_DIR" Launcher.ReplayLauncher "$CONFIG" "${@:2}"
 }
 
 start_workload() {
@@ -64,28 +119,47 @@ case "$1" in
         compile
         ;;
     -u)
-        start_user
+        start_user "$@"
         ;;
     -p)
-        start_product
+        start_product "$@"
+        ;;
+    -r)
+        start_replica "$@"
         ;;
     -o)
         start_order
         ;;
+    -l)
+        start_local "$@"
+        ;;
+    -s)
+        start_simulator "$@"
+        ;;
     -i)
-        start_iscs
+        start_iscs "$@"
         ;;
     -w)
         start_workload "$@"
         ;;
+    -t)
+        start_replay "$@"
+        ;;
     *)
         echo "Usage:"
         echo "  ./runme.sh -c              Compile all services"
-        echo "  ./runme.sh -u              Start UserService"
-        echo "  ./runme.sh -p              Start ProductService"
-        echo "  ./runme.sh -i              Start ISCS"
+        echo "  ./runme.sh -u [seed]       Start UserService, optionally bulk-loading a seed file"
+        echo "  ./runme.sh -p [seed]       Start ProductService, optionally bulk-loading a seed file"
+        echo "  ./runme.sh -r port         Start a read-only ProductService follower on port"
+        echo "  ./runme.sh -i [port]       Start ISCS, optionally as an extra instance on port"
         echo "  ./runme.sh -o              Start OrderService"
+        echo "  ./runme.sh -l [--users seed] [--products seed]"
+        echo "                             Start User, Product and Order services in one JVM (no ISCS)"
+        echo "  ./runme.sh -s [--bench seconds] [--clients n] [--warmup seconds]"
+        echo "                             Start OrderService on simulated downstream services, optionally benchmarking it"
         echo "  ./runme.sh -w workload.txt Run workload parser"
+        echo "  ./runme.sh -t capture [--speed x] [--clients n] [--services names]"
+        echo "                             Replay captured traffic against the services in config.json"
         exit 1
         ;;
 esac
@@ -0,0 +1,316 @@
+package Common;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Process-wide access and error log, written as NDJSON off the request threads.
+ *
+ * <pre>
+ *   {"ts":1700000000123,"service":"order","method":"POST","path":"/order","status":200,"us":412,"client":"127.0.0.1"}
+ *   {"ts":1700000000150,"service":"order","error":"java.net.ConnectException","message":"...","at":"..."}
+ *   {"ts":1700000000151,"dropped":42}
+ * </pre>
+ *
+ * <p>A request thread only claims a slot in a fixed ring of preallocated records with
+ * one compare-and-set, stores a few numbers and references to strings the request
+ * already holds, and publishes the slot; it never allocates, locks or does I/O. A
+ * single writer thread drains the ring, formats the records with an
+ * {@link NdjsonWriter} and hands each batch to the file in one write. When the ring
+ * is full, because the disk has fallen behind, records are dropped and counted
+ * rather than making requests wait; the writer then logs how many were lost.</p>
+ *
+ * <p>Access records are kept only once {@link #configure} has opened a file, from
+ * the service's {@code access_log} setting; the file is rotated to {@code .1},
+ * {@code .2}, ... when it reaches {@code access_log_max_mb}. Error records are always
+ * kept, and go to standard error while no file is open. In a process hosting several
+ * services the first file opened is shared.</p>
+ */
+public final class AccessLog {
+
+    /** Records the ring holds; a power of two. */
+    static final int CAPACITY = 1 << 14;
+
+    /** Default for {@code access_log_max_mb}: size at which the file is rotated. */
+    static final long DEFAULT_MAX_MB = 64;
+
+    /** Rotated files kept besides the current one. */
+    static final int KEEP = 3;
+
+    /** Pause of the writer while the ring is empty. */
+    private static final long IDLE_NANOS = 1_000_000;
+
+    private static final int MASK = CAPACITY - 1;
+
+    // Slot i's fields: LONGS[3i..3i+2] = time, duration in nanos, status;
+    // REFS[4i..4i+3] = service, method (null for an error), path, client or throwable
+    private static final long[] LONGS = new long[CAPACITY * 3];
+    private static final Object[] REFS = new Object[CAPACITY * 4];
+
+    /** Per slot: the claim position it is free for, or that position + 1 once filled. */
+    private static final AtomicLongArray SEQUENCE = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong TAIL = new AtomicLong();
+    private static final AtomicLong DROPPED = new AtomicLong();
+
+    private static final Sink SINK = new Sink();
+    private static volatile boolean accessEnabled;
+
+    /** Next position to drain; writer only. */
+    private static long head;
+    private static final NdjsonWriter OUT = new NdjsonWriter(SINK);
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            SEQUENCE.set(i, i);
+        }
+        Thread writer = new Thread(AccessLog::drainForever, "access-log");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(AccessLog::drain, "access-log-flush"));
+    }
+
+    private AccessLog() {
+    }
+
+    /**
+     * Open the log file named by a service's config section, if it names one and no
+     * file is open yet.
+     *
+     * @param config the service's section of config.json
+     * @throws IOException if the file cannot be opened
+     */
+    public static void configure(HashMap<String, String> config) throws IOException {
+        String file = config.get("access_log");
+        if (file == null) {
+            return;
+        }
+        long maxMb = Long.parseLong(config.getOrDefault("access_log_max_mb", String.valueOf(DEFAULT_MAX_MB)));
+        if (SINK.open(Path.of(file), maxMb << 20)) {
+            accessEnabled = true;
+        }
+    }
+
+    /**
+     * @param service name logged with each request, e.g. {@code "order"}
+     * @return a filter logging every request of the context it is added to
+     */
+    public static Filter filter(String service) {
+        return new Filter() {
+            @Override
+            public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+                long started = System.nanoTime();
+                try {
+                    chain.doFilter(exchange);
+                } catch (IOException | RuntimeException e) {
+                    error(service, e);
+                    throw e;
+                } finally {
+                    if (accessEnabled) {
+                        InetSocketAddress client = exchange.getRemoteAddress();
+                        access(service, exchange.getRequestMethod(), exchange.getRequestURI().getRawPath(),
+                                exchange.getResponseCode(), System.nanoTime() - started,
+                                client != null ? client.getAddress() : null);
+                    }
+                }
+            }
+
+            @Override
+            public String description() {
+                return "access log";
+            }
+        };
+    }
+
+    /**
+     * Log an error without blocking, e.g. a failed downstream call.
+     *
+     * @param service service or component it happened in
+     * @param error the error
+     */
+    public static void error(String service, Throwable error) {
+        long pos = claim();
+        if (pos < 0) {
+            return;
+        }
+        int slot = (int) pos & MASK;
+        LONGS[slot * 3] = System.currentTimeMillis();
+        REFS[slot * 4] = service;
+        REFS[slot * 4 + 1] = null;
+        REFS[slot * 4 + 3] = error;
+        SEQUENCE.set(slot, pos + 1);
+    }
+
+    private static void access(String service, String method, String path, int status, long nanos, Object client) {
+        long pos = claim();
+        if (pos < 0) {
+            return;
+        }
+        int slot = (int) pos & MASK;
+        LONGS[slot * 3] = System.currentTimeMillis();
+        LONGS[slot * 3 + 1] = nanos;
+        LONGS[slot * 3 + 2] = status;
+        REFS[slot * 4] = service;
+        REFS[slot * 4 + 1] = method;
+        REFS[slot * 4 + 2] = path;
+        REFS[slot * 4 + 3] = client;
+        SEQUENCE.set(slot, pos + 1);
+    }
+
+    /** Claim the next free slot; -1, counted as dropped, if the ring is full. */
+    private static long claim() {
+        while (true) {
+            long pos = TAIL.get();
+            long seq = SEQUENCE.get((int) pos & MASK);
+            if (seq == pos) {
+                if (TAIL.compareAndSet(pos, pos + 1)) {
+                    return pos;
+                }
+            } else if (seq < pos) {
+                DROPPED.incrementAndGet();
+                return -1;
+            }
+        }
+    }
+
+    // Writer side: only the writer thread, and the shutdown hook at exit, run the code below.
+
+    private static void drainForever() {
+        while (true) {
+            if (!drain()) {
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+    }
+
+    /** Write out up to a ring's worth of published records; false if there were none. */
+    private static synchronized boolean drain() {
+        boolean any = false;
+        try {
+            for (int n = 0; n < CAPACITY; n++) {
+                int slot = (int) head & MASK;
+                if (SEQUENCE.get(slot) != head + 1) {
+                    break;
+                }
+                write(slot);
+                REFS[slot * 4 + 1] = null;
+                REFS[slot * 4 + 2] = null;
+                REFS[slot * 4 + 3] = null;
+                SEQUENCE.set(slot, head + CAPACITY);
+                head++;
+                any = true;
+            }
+            long dropped = DROPPED.getAndSet(0);
+            if (dropped != 0) {
+                OUT.beginObject().field("ts", System.currentTimeMillis()).field("dropped", dropped).endObject();
+                any = true;
+            }
+            if (any) {
+                OUT.flush();
+                SINK.rotateIfFull();
+            }
+        } catch (IOException | RuntimeException e) {
+            // nowhere left to report it; keep draining so requests are never held up
+        }
+        return any;
+    }
+
+    private static void write(int slot) throws IOException {
+        Object service = REFS[slot * 4];
+        Object method = REFS[slot * 4 + 1];
+        OUT.beginObject().field("ts", LONGS[slot * 3]).field("service", (String) service);
+        if (method == null) {
+            Throwable error = (Throwable) REFS[slot * 4 + 3];
+            OUT.field("error", error.getClass().getName()).field("message", error.getMessage());
+            StackTraceElement[] trace = error.getStackTrace();
+            if (trace.length > 0) {
+                OUT.field("at", trace[0].toString());
+            }
+        } else {
+            Object client = REFS[slot * 4 + 3];
+            OUT.field("method", (String) method)
+                    .field("path", (String) REFS[slot * 4 + 2])
+                    .field("status", LONGS[slot * 3 + 2])
+                    .field("us", LONGS[slot * 3 + 1] / 1000)
+                    .field("client", client != null ? ((InetAddress) client).getHostAddress() : null);
+        }
+        OUT.endObject();
+    }
+
+    /** The current log file, or standard error until one is opened. */
+    private static final class Sink implements WritableByteChannel {
+        private final WritableByteChannel stderr = Channels.newChannel(new FileOutputStream(FileDescriptor.err));
+        private FileChannel file;
+        private Path path;
+        private long maxBytes;
+        private long size;
+
+        synchronized boolean open(Path path, long maxBytes) throws IOException {
+            if (file != null) {
+                return false;
+            }
+            if (path.getParent() != null) {
+                Files.createDirectories(path.getParent());
+            }
+            this.file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+            this.path = path;
+            this.maxBytes = maxBytes;
+            this.size = file.size();
+            return true;
+        }
+
+        @Override
+        public synchronized int write(ByteBuffer src) throws IOException {
+            if (file == null) {
+                return stderr.write(src);
+            }
+            int n = file.write(src);
+            size += n;
+            return n;
+        }
+
+        /** Shift {@code log} to {@code log.1}, {@code log.1} to {@code log.2}, ... and start a new file. */
+        synchronized void rotateIfFull() throws IOException {
+            if (file == null || size < maxBytes) {
+                return;
+            }
+            file.close();
+            for (int i = KEEP - 1; i >= 1; i--) {
+                Path from = Path.of(path + "." + i);
+                if (Files.exists(from)) {
+                    Files.move(from, Path.of(path + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.move(path, Path.of(path + ".1"), StandardCopyOption.REPLACE_EXISTING);
+            file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            size = 0;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package Common;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * In-memory change-data-capture log: a fixed-size ring of the most recent store
+ * mutations, numbered by a global sequence.
+ *
+ * <p>Publishing is lock-free: a writer claims the next sequence number with one atomic
+ * increment and stores its event in slot {@code seq & mask}, overwriting the event one
+ * lap older. Readers never block writers and hold no state in the log; each subscriber
+ * only tracks the next sequence it wants. A subscriber that falls more than
+ * {@link #capacity()} events behind finds its slot overwritten and is told it has
+ * overrun, at which point it must resynchronise (for instance from an export) rather
+ * than silently miss changes. Memory is bounded by the capacity whatever subscribers
+ * do.</p>
+ *
+ * <p>Events hold a reference to the record as stored, which is never modified in
+ * place, so publishing copies nothing.</p>
+ *
+ * @param <T> stored record type
+ */
+public final class ChangeLog<T> {
+
+    /** {@link #read} result for a subscriber whose next event has been overwritten. */
+    public static final long OVERRUN = -1;
+
+    /** One mutation. */
+    public static final class Event<T> {
+        /** Position in the log, starting at 1. */
+        public final long seq;
+        /** "create", "update" or "delete". */
+        public final String op;
+        /** Id of the changed record. */
+        public final int id;
+        /** Record after the change, or null for a delete. */
+        public final T record;
+        /** Wall-clock time of publication, in epoch milliseconds. */
+        public final long time;
+
+        Event(long seq, String op, int id, T record, long time) {
+            this.seq = seq;
+            this.op = op;
+            this.id = id;
+            this.record = record;
+            this.time = time;
+        }
+    }
+
+    /** Identifies this log instance; a restarted service starts a new log with a new epoch. */
+    private final long epoch = System.currentTimeMillis();
+
+    private final AtomicReferenceArray<Event<T>> slots;
+    private final int mask;
+    private final AtomicLong next = new AtomicLong(1);
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final Object signal = new Object();
+
+    /**
+     * @param capacity number of events retained; rounded up to a power of two
+     */
+    public ChangeLog(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Append a mutation. Callers that need events in commit order publish while
+     * holding their store's write lock.
+     *
+     * @param op "create", "update" or "delete"
+     * @param id id of the changed record
+     * @param record record after the change, or null for a delete
+     * @return the event's sequence number
+     */
+    public long publish(String op, int id, T record) {
+        long seq = next.getAndIncrement();
+        slots.set((int) (seq & mask), new Event<>(seq, op, id, record, System.currentTimeMillis()));
+        if (waiting.get() > 0) {
+            synchronized (signal) {
+                signal.notifyAll();
+            }
+        }
+        return seq;
+    }
+
+    /**
+     * @return when this log was created, in epoch milliseconds; sequence numbers from
+     *         logs with different epochs are unrelated
+     */
+    public long epoch() {
+        return epoch;
+    }
+
+    /** @return sequence number the next published event will get */
+    public long head() {
+        return next.get();
+    }
+
+    /** @return oldest sequence number still retained */
+    public long oldest() {
+        return Math.max(1, next.get() - slots.length());
+    }
+
+    /** @return number of events retained */
+    public int capacity() {
+        return slots.length();
+    }
+
+    /**
+     * Copy published events, in order, starting at {@code from}.
+     *
+     * @param from first sequence number wanted
+     * @param max most events to copy
+     * @param out list the events are appended to
+     * @return the sequence number to read from next, or {@link #OVERRUN} if the event
+     *         at {@code from} (or a later one before {@code max}) was already overwritten
+     */
+    public long read(long from, int max, List<Event<T>> out) {
+        long seq = from;
+        for (int n = 0; n < max; n++, seq++) {
+            Event<T> event = slots.get((int) (seq & mask));
+            if (event == null || event.seq < seq) {
+                break;
+            }
+            if (event.seq > seq) {
+                return OVERRUN;
+            }
+            out.add(event);
+        }
+        return seq;
+    }
+
+    /**
+     * Wait until the event at {@code seq} has been published.
+     *
+     * @param seq sequence number to wait for
+     * @param timeoutMillis longest time to wait
+     * @return true if it is available, false on timeout
+     * @throws InterruptedException if the waiting thread is interrupted
+     */
+    public boolean await(long seq, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        waiting.incrementAndGet();
+        try {
+            synchronized (signal) {
+                while (!published(seq)) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    signal.wait(remaining);
+                }
+                return true;
+            }
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+
+    /**
+     * @param seq sequence number
+     * @return true if the event at {@code seq} has been published
+     */
+    public boolean published(long seq) {
+        Event<T> event = slots.get((int) (seq & mask));
+        return event != null && event.seq >= seq;
+    }
+}
@@ -0,0 +1,157 @@
+package Common;
+
+import com.sun.net.httpserver.HttpExchange;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Serves a {@link ChangeLog} as a chunked NDJSON stream, one event per line:
+ *
+ * <pre>
+ *   {"seq":41,"op":"update","id":7,"ts":1700000000123,"name":"Widget",...,"version":97}
+ *   {"seq":42,"op":"delete","id":9,"ts":1700000000150}
+ * </pre>
+ *
+ * <p>Query parameters: {@code from} is the first sequence number wanted (default: the
+ * current head, i.e. only changes from now on), so a subscriber resumes by passing the
+ * last {@code seq} it saw plus one; {@code follow=false} ends the response once the
+ * subscriber has caught up instead of waiting for more. {@code ts} is the publication
+ * time in epoch milliseconds.</p>
+ *
+ * <p>A following stream that is idle for {@code heartbeat_ms} (default 15 seconds)
+ * writes {@code {"op":"heartbeat","seq":N,"ts":T}}: as of time {@code T} the
+ * subscriber has every event before {@code N}. Replicas use this to bound their
+ * staleness while no writes arrive.</p>
+ *
+ * <p>Each subscriber reads at its own pace: events are written as fast as its
+ * connection accepts them, and writers to the store are never held up. If it falls so
+ * far behind that the log has wrapped past its position, the stream ends with a
+ * {@code {"op":"overrun","seq":N}} line; the subscriber must then resynchronise, e.g.
+ * from an export, and resume from the head. A {@code from} that is already gone is
+ * answered with 410 and the oldest retained sequence; the response headers
+ * {@code X-Change-Head} and {@code X-Change-Epoch} always carry the current head and
+ * the log's {@link ChangeLog#epoch() epoch}, which changes when the service restarts.</p>
+ */
+public final class ChangeStream {
+
+    /** Writes the fields of a record after its {@code seq}, {@code op} and {@code id}. */
+    public interface Fields<T> {
+        void writeTo(NdjsonWriter writer, T record) throws IOException;
+    }
+
+    /** Events copied from the log per batch. */
+    static final int BATCH = 256;
+
+    /** Default idle time after which a following stream writes a heartbeat line. */
+    static final long HEARTBEAT_MILLIS = 15_000;
+
+    /** Shortest heartbeat interval a subscriber may ask for. */
+    static final long MIN_HEARTBEAT_MILLIS = 10;
+
+    private ChangeStream() {
+    }
+
+    /**
+     * Answer a change-stream request.
+     *
+     * @param exchange the request
+     * @param log change log to stream
+     * @param fields writes a record's fields
+     * @throws IOException on socket errors other than the subscriber going away
+     */
+    public static <T> void serve(HttpExchange exchange, ChangeLog<T> log, Fields<T> fields) throws IOException {
+        long from = log.head();
+        boolean follow = true;
+        long heartbeat = HEARTBEAT_MILLIS;
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                String[] kv = pair.split("=", 2);
+                String value = kv.length > 1 ? kv[1] : "";
+                try {
+                    if (kv[0].equals("from")) {
+                        from = Long.parseLong(value);
+                    } else if (kv[0].equals("follow")) {
+                        follow = !value.equals("false");
+                    } else if (kv[0].equals("heartbeat_ms")) {
+                        heartbeat = Math.max(MIN_HEARTBEAT_MILLIS, Long.parseLong(value));
+                    }
+                } catch (NumberFormatException e) {
+                    reply(exchange, 400, "{}");
+                    return;
+                }
+            }
+        }
+        exchange.getResponseHeaders().set("X-Change-Head", String.valueOf(log.head()));
+        exchange.getResponseHeaders().set("X-Change-Epoch", String.valueOf(log.epoch()));
+        if (from < 1 || from > log.head()) {
+            reply(exchange, 400, "{}");
+            return;
+        }
+        if (from < log.oldest()) {
+            reply(exchange, 410, "{\"oldest\": " + log.oldest() + "}");
+            return;
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson");
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = exchange.getResponseBody();
+        NdjsonWriter writer = new NdjsonWriter(Channels.newChannel(out));
+        ArrayList<ChangeLog.Event<T>> batch = new ArrayList<>(BATCH);
+        long seq = from;
+        try {
+            while (true) {
+                batch.clear();
+                long next = log.read(seq, BATCH, batch);
+                if (next == ChangeLog.OVERRUN) {
+                    writer.beginObject().field("op", "overrun").field("seq", seq).endObject();
+                    writer.flush();
+                    break;
+                }
+                for (ChangeLog.Event<T> event : batch) {
+                    writer.beginObject().field("seq", event.seq).field("op", event.op)
+                            .field("id", event.id).field("ts", event.time);
+                    if (event.record != null) {
+                        fields.writeTo(writer, event.record);
+                    }
+                    writer.endObject();
+                }
+                seq = next;
+                if (!batch.isEmpty()) {
+                    continue;
+                }
+                // caught up: hand everything written so far to the subscriber, then wait
+                writer.flush();
+                out.flush();
+                if (!follow) {
+                    break;
+                }
+                if (!log.await(seq, heartbeat)) {
+                    // read the clock first: if seq is still unpublished after it, ts is a safe bound
+                    long now = System.currentTimeMillis();
+                    if (!log.published(seq)) {
+                        writer.beginObject().field("op", "heartbeat").field("seq", seq).field("ts", now).endObject();
+                        writer.flush();
+                        out.flush();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // the subscriber went away
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        exchange.close();
+    }
+
+    private static void reply(HttpExchange exchange, int code, String json) throws IOException {
+        byte[] data = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(code, data.length);
+        exchange.getResponseBody().write(data);
+        exchange.close();
+    }
+}
@@ -0,0 +1,101 @@
+package Common;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Request deadlines, carried from the client through every downstream call so that
+ * work nobody is waiting for any more is not done.
+ *
+ * <p>A client states how long it will wait with {@link #BUDGET_HEADER}, in
+ * milliseconds. The service it calls turns that into an absolute time and sends it on
+ * every downstream call as {@link #HEADER}, in epoch milliseconds, so that time spent
+ * queued at a later hop counts against the budget too. As with replication lag, the
+ * services' clocks are assumed to agree, as they do for processes on one machine.
+ * A request received after its deadline is answered {@code 504} without being
+ * handled.</p>
+ */
+public final class Deadline {
+
+    /** Request header: milliseconds the client will wait for the response. */
+    public static final String BUDGET_HEADER = "X-Deadline-Ms";
+
+    /** Request header between services: epoch millisecond after which nobody waits for the response. */
+    public static final String HEADER = "X-Deadline";
+
+    private Deadline() {
+    }
+
+    /**
+     * Work out a request's deadline from its headers.
+     *
+     * @param headers request headers
+     * @param defaultBudgetMillis budget to allow when the request states none; 0 for no deadline
+     * @return deadline in epoch milliseconds, or 0 for none
+     */
+    public static long of(Headers headers, long defaultBudgetMillis) {
+        long now = System.currentTimeMillis();
+        Long at = parse(headers.getFirst(HEADER));
+        if (at != null) {
+            return Math.max(1, at);
+        }
+        Long budget = parse(headers.getFirst(BUDGET_HEADER));
+        if (budget != null) {
+            return now + Math.max(0, budget);
+        }
+        return defaultBudgetMillis > 0 ? now + defaultBudgetMillis : 0;
+    }
+
+    /**
+     * @param deadline deadline in epoch milliseconds, or 0 for none
+     * @return true if the deadline has passed
+     */
+    public static boolean passed(long deadline) {
+        return deadline != 0 && System.currentTimeMillis() >= deadline;
+    }
+
+    /**
+     * Wrap a handler so that requests arriving after their deadline are refused with
+     * {@link #reject} instead of handled. Requests without a deadline are always handled.
+     *
+     * @param handler handler to guard
+     * @return the guarded handler
+     */
+    public static HttpHandler guard(HttpHandler handler) {
+        return exchange -> {
+            if (passed(of(exchange.getRequestHeaders(), 0))) {
+                reject(exchange);
+                return;
+            }
+            handler.handle(exchange);
+        };
+    }
+
+    /**
+     * Answer {@code 504} with {@code {"status": "Deadline Exceeded"}}.
+     *
+     * @param exchange the request
+     * @throws IOException on write errors
+     */
+    public static void reject(HttpExchange exchange) throws IOException {
+        byte[] data = "{\"status\": \"Deadline Exceeded\"}".getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(504, data.length);
+        exchange.getResponseBody().write(data);
+        exchange.close();
+    }
+
+    private static Long parse(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
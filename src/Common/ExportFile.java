@@ -0,0 +1,89 @@
+package Common;
+
+import com.sun.net.httpserver.HttpExchange;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Serves a full-store export: the store is written once to an NDJSON file on disk,
+ * then the file is streamed to the client.
+ *
+ * <p>Records go through an {@link NdjsonWriter}, so the dump itself allocates
+ * nothing per record. The file is sent with {@link FileChannel#transferTo}, which
+ * the JDK turns into a kernel-side copy when the target is a socket channel; the
+ * {@code com.sun.net.httpserver} response stream is not one, so there it falls
+ * back to a buffered copy. The response uses chunked encoding and carries the
+ * record count in {@code X-Export-Records}. Each export gets a file of its own, even
+ * when several start in the same millisecond, and the file is deleted once it has
+ * been sent. With {@code ?download=false} only the file is written and kept, and a
+ * JSON summary naming it, also in {@code X-Export-File}, is returned instead.</p>
+ */
+public final class ExportFile {
+
+    /** Writes every record of a store. */
+    public interface Dump {
+        void writeTo(NdjsonWriter writer) throws IOException;
+    }
+
+    private ExportFile() {
+    }
+
+    /**
+     * Dump a store to a new {@code dir/prefix-<random>.ndjson} and answer the request.
+     *
+     * @param exchange the export request
+     * @param dir directory for export files; created if missing
+     * @param prefix file name prefix, e.g. "products"
+     * @param dump writes the store's records
+     * @throws IOException on file or socket errors
+     */
+    public static void serve(HttpExchange exchange, Path dir, String prefix, Dump dump) throws IOException {
+        Files.createDirectories(dir);
+        Path file = Files.createTempFile(dir, prefix + "-", ".ndjson");
+        String query = exchange.getRequestURI().getRawQuery();
+        boolean keep = query != null && ("&" + query + "&").contains("&download=false&");
+        boolean kept = false;
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            NdjsonWriter writer = new NdjsonWriter(channel);
+            dump.writeTo(writer);
+            writer.flush();
+            long size = channel.size();
+
+            exchange.getResponseHeaders().set("X-Export-Records", String.valueOf(writer.records()));
+
+            if (keep) {
+                exchange.getResponseHeaders().set("X-Export-File", file.toAbsolutePath().toString());
+                byte[] summary = ("{\"file\": \"" + file.toAbsolutePath().toString().replace("\\", "\\\\") + "\","
+                        + "\"records\": " + writer.records() + ","
+                        + "\"bytes\": " + size + "}").getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, summary.length);
+                exchange.getResponseBody().write(summary);
+                exchange.close();
+                kept = true;
+                return;
+            }
+
+            exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson");
+            exchange.sendResponseHeaders(200, 0);
+            WritableByteChannel out = Channels.newChannel(exchange.getResponseBody());
+            long position = 0;
+            while (position < size) {
+                position += channel.transferTo(position, size - position, out);
+            }
+        } finally {
+            // a failed dump is never kept
+            if (!kept) {
+                Files.deleteIfExists(file);
+            }
+        }
+        exchange.close();
+    }
+}
@@ -0,0 +1,192 @@
+package Common;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpPrincipal;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An {@link HttpExchange} that never touches a socket: the request is built in memory
+ * and the handler's response is captured in memory.
+ *
+ * <p>Lets one service call another's {@link HttpHandler} directly when both run in
+ * the same JVM, with exactly the status codes, headers and bodies it would send over
+ * HTTP. The handler runs on the calling thread.</p>
+ *
+ * <pre>
+ *   LocalExchange exchange = new LocalExchange("GET", "/product/7", null, headers);
+ *   handler.handle(exchange);
+ *   int status = exchange.getResponseCode();
+ * </pre>
+ */
+public class LocalExchange extends HttpExchange {
+
+    private static final InetSocketAddress LOCAL = new InetSocketAddress("127.0.0.1", 0);
+
+    private final String method;
+    private final URI uri;
+    private final Headers requestHeaders = new Headers();
+    private final Headers responseHeaders = new Headers();
+    private final Map<String, Object> attributes = new HashMap<>();
+    private InputStream requestBody;
+    private OutputStream responseBody;
+    private final ByteArrayOutputStream captured = new ByteArrayOutputStream();
+    private int responseCode = -1;
+
+    /**
+     * @param method HTTP method
+     * @param endpoint path and optional query, e.g. {@code /user?email=a@b.c}
+     * @param body request body, or null for none
+     * @param headers request headers, or null for none
+     */
+    public LocalExchange(String method, String endpoint, String body, Map<String, String> headers) {
+        this.method = method;
+        this.uri = URI.create(endpoint);
+        byte[] bytes = body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
+        this.requestBody = new ByteArrayInputStream(bytes);
+        this.responseBody = captured;
+        requestHeaders.set("Content-Type", "application/json");
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                requestHeaders.set(header.getKey(), header.getValue());
+            }
+        }
+    }
+
+    /**
+     * Run a request through a handler and collect the response in the map shape used
+     * by {@code OrderServer.sendRequest}.
+     *
+     * @param handler handler to invoke
+     * @param method HTTP method
+     * @param endpoint path and optional query
+     * @param body request body, or null
+     * @param headers request headers, or null
+     * @return map with keys "status", "body" and, if the response set one, "etag";
+     *         or null if the handler failed
+     */
+    public static HashMap<String, String> call(HttpHandler handler, String method, String endpoint,
+                                               String body, Map<String, String> headers) {
+        LocalExchange exchange = new LocalExchange(method, endpoint, body, headers);
+        try {
+            handler.handle(exchange);
+        } catch (IOException | RuntimeException e) {
+            AccessLog.error("local", e);
+            return null;
+        }
+        HashMap<String, String> retVal = new HashMap<>();
+        retVal.put("status", "" + exchange.getResponseCode());
+        retVal.put("body", exchange.responseText());
+        String etag = exchange.getResponseHeaders().getFirst("ETag");
+        if (etag != null) {
+            retVal.put("etag", etag);
+        }
+        return retVal;
+    }
+
+    /** @return everything the handler wrote to the response body, decoded as UTF-8 */
+    public String responseText() {
+        return captured.toString(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+        return requestHeaders;
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return uri;
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return method;
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+        return null;
+    }
+
+    @Override
+    public void close() {
+        // nothing to release; the captured response stays readable
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+        return requestBody;
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+        return responseBody;
+    }
+
+    @Override
+    public void sendResponseHeaders(int rCode, long responseLength) {
+        responseCode = rCode;
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return LOCAL;
+    }
+
+    @Override
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return LOCAL;
+    }
+
+    @Override
+    public String getProtocol() {
+        return "HTTP/1.1";
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        attributes.put(name, value);
+    }
+
+    @Override
+    public void setStreams(InputStream i, OutputStream o) {
+        if (i != null) {
+            requestBody = i;
+        }
+        if (o != null) {
+            responseBody = o;
+        }
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return null;
+    }
+}
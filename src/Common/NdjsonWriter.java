@@ -0,0 +1,186 @@
+package Common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes newline-delimited JSON records to a channel (an export file or a response
+ * stream) through a single reusable direct buffer.
+ *
+ * <p>Strings and numbers are encoded straight into the buffer (UTF-8, with JSON
+ * escaping), so writing a record allocates nothing on the heap; the buffer is
+ * flushed to the channel in large batches. Intended for bulk exports of the
+ * in-memory stores and for their change streams.</p>
+ *
+ * <pre>
+ *   writer.beginObject().field("id", 7).field("name", name).endObject();
+ * </pre>
+ */
+public final class NdjsonWriter implements Closeable {
+
+    /** Size of the staging buffer; also the unit of each channel write. */
+    static final int BUFFER_SIZE = 1 << 20;
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final byte[] digits = new byte[20];
+    private boolean firstField;
+    private long records;
+    private long bytes;
+
+    /**
+     * @param channel channel to append records to; owned by the caller
+     */
+    public NdjsonWriter(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /** Start a record. */
+    public NdjsonWriter beginObject() throws IOException {
+        ensure(1);
+        buffer.put((byte) '{');
+        firstField = true;
+        return this;
+    }
+
+    /** Finish the current record and terminate its line. */
+    public void endObject() throws IOException {
+        ensure(2);
+        buffer.put((byte) '}').put((byte) '\n');
+        records++;
+    }
+
+    /** Write a string field, quoted and escaped. A null value is written as JSON null. */
+    public NdjsonWriter field(String name, String value) throws IOException {
+        name(name);
+        if (value == null) {
+            ascii("null");
+        } else {
+            string(value);
+        }
+        return this;
+    }
+
+    /** Write an integer field. */
+    public NdjsonWriter field(String name, long value) throws IOException {
+        name(name);
+        number(value);
+        return this;
+    }
+
+    /**
+     * Write a field whose value is already valid JSON, such as a stored numeric
+     * string. The value is copied as-is.
+     */
+    public NdjsonWriter rawField(String name, String value) throws IOException {
+        name(name);
+        ascii(value);
+        return this;
+    }
+
+    /** @return number of complete records written so far */
+    public long records() {
+        return records;
+    }
+
+    /** @return number of bytes handed to the channel so far, including buffered bytes */
+    public long bytes() {
+        return bytes + buffer.position();
+    }
+
+    /** Write any buffered bytes to the channel. */
+    public void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            bytes += channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /** Flush buffered bytes. The channel stays open. */
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    private void name(String name) throws IOException {
+        if (!firstField) {
+            ensure(1);
+            buffer.put((byte) ',');
+        }
+        firstField = false;
+        string(name);
+        ensure(1);
+        buffer.put((byte) ':');
+    }
+
+    private void ascii(String s) throws IOException {
+        ensure(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            buffer.put((byte) s.charAt(i));
+        }
+    }
+
+    private void number(long value) throws IOException {
+        ensure(20);
+        if (value == Long.MIN_VALUE) {
+            ascii("-9223372036854775808");
+            return;
+        }
+        if (value < 0) {
+            buffer.put((byte) '-');
+            value = -value;
+        }
+        int n = 0;
+        do {
+            digits[n++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        while (n > 0) {
+            buffer.put(digits[--n]);
+        }
+    }
+
+    private void string(String s) throws IOException {
+        ensure(1);
+        buffer.put((byte) '"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            ensure(6);
+            if (c == '"' || c == '\\') {
+                buffer.put((byte) '\\').put((byte) c);
+            } else if (c < 0x20) {
+                buffer.put((byte) '\\').put((byte) 'u').put((byte) '0').put((byte) '0')
+                        .put(hex(c >> 4)).put(hex(c));
+            } else if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6))).put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buffer.put((byte) (0xF0 | (cp >> 18)))
+                        .put((byte) (0x80 | ((cp >> 12) & 0x3F)))
+                        .put((byte) (0x80 | ((cp >> 6) & 0x3F)))
+                        .put((byte) (0x80 | (cp & 0x3F)));
+            } else {
+                buffer.put((byte) (0xE0 | (c >> 12)))
+                        .put((byte) (0x80 | ((c >> 6) & 0x3F)))
+                        .put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        ensure(1);
+        buffer.put((byte) '"');
+    }
+
+    private static byte hex(int nibble) {
+        return (byte) "0123456789abcdef".charAt(nibble & 0xF);
+    }
+
+    private void ensure(int n) throws IOException {
+        if (buffer.remaining() < n) {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,384 @@
+package Common;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The {@link HttpExchange} of one request on a {@link NioHttpServer} connection.
+ *
+ * <p>The status line and headers go into one pooled direct buffer and the body into
+ * another, and both are sent with a single gathering write when the body buffer fills,
+ * the handler flushes, or the exchange is closed. A small response therefore leaves in
+ * one packet. Bodies of unknown length are sent chunked, one chunk per write.</p>
+ */
+final class NioExchange extends HttpExchange {
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+
+    /** Room kept free in the body buffer for a chunk's CRLF and the last chunk. */
+    private static final int CHUNK_RESERVE = CRLF.length + LAST_CHUNK.length;
+
+    private enum Framing { FIXED, CHUNKED, UNTIL_CLOSE, NONE }
+
+    private final NioHttpServer.Connection connection;
+    private final NioHttpServer.Request request;
+    private HttpContext context;
+    private URI uri;
+    private final Headers responseHeaders = new Headers();
+    private Map<String, Object> attributes;
+    private InputStream requestBody;
+    private OutputStream responseBody = new Body();
+
+    private ByteBuffer head;
+    private ByteBuffer body;
+    private ByteBuffer[] buffers;
+    private Framing framing;
+    private long remaining;
+    private int responseCode = -1;
+    private boolean keepAlive;
+    private boolean closed;
+
+    NioExchange(NioHttpServer.Connection connection, NioHttpServer.Request request) {
+        this.connection = connection;
+        this.request = request;
+        this.keepAlive = request.keepAlive;
+    }
+
+    void setContext(HttpContext context) {
+        this.context = context;
+    }
+
+    boolean sent() {
+        return responseCode >= 0;
+    }
+
+    /** Answer with an empty response and close; all but a 404 end the connection. */
+    void fail(int status) throws IOException {
+        if (status != 404) {
+            keepAlive = false;
+        }
+        sendResponseHeaders(status, -1);
+        close();
+    }
+
+    /**
+     * Complete the exchange after its handler has returned, as if the handler had
+     * closed it, and answer 500 if it sent nothing.
+     *
+     * @return true if the connection can take another request
+     */
+    boolean finish() throws IOException {
+        if (!sent()) {
+            fail(500);
+        }
+        close();
+        return keepAlive;
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+        return request.headers;
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        if (uri == null) {
+            uri = URI.create(request.target);
+        }
+        return uri;
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return request.method;
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+        return context;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (sent()) {
+                if (framing == Framing.FIXED && remaining > 0) {
+                    keepAlive = false; // the client would wait for the missing bytes
+                }
+                flush(true);
+            } else {
+                keepAlive = false;
+            }
+        } catch (IOException e) {
+            keepAlive = false;
+        } finally {
+            if (head != null) {
+                NioHttpServer.release(head);
+                NioHttpServer.release(body);
+                head = null;
+                body = null;
+            }
+        }
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+        if (requestBody == null) {
+            requestBody = new ByteArrayInputStream(request.body != null ? request.body : new byte[0]);
+        }
+        return requestBody;
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+        return responseBody;
+    }
+
+    @Override
+    public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+        if (sent()) {
+            throw new IOException("headers already sent");
+        }
+        responseCode = rCode;
+        boolean noBody = rCode < 200 || rCode == 204 || rCode == 304 || request.method.equals("HEAD");
+        if (noBody) {
+            framing = Framing.NONE;
+            if (request.method.equals("HEAD") && responseLength > 0) {
+                responseHeaders.set("Content-length", Long.toString(responseLength));
+            }
+        } else if (responseLength > 0) {
+            framing = Framing.FIXED;
+            remaining = responseLength;
+            responseHeaders.set("Content-length", Long.toString(responseLength));
+        } else if (responseLength == 0 && request.http11) {
+            framing = Framing.CHUNKED;
+            responseHeaders.set("Transfer-encoding", "chunked");
+        } else if (responseLength == 0) {
+            framing = Framing.UNTIL_CLOSE;
+            keepAlive = false;
+        } else {
+            framing = Framing.NONE;
+            responseHeaders.set("Content-length", "0");
+        }
+        if (!keepAlive) {
+            responseHeaders.set("Connection", "close");
+        }
+
+        head = NioHttpServer.acquire();
+        body = NioHttpServer.acquire();
+        buffers = new ByteBuffer[] {head, body};
+        ascii("HTTP/1.1 ");
+        ascii(Integer.toString(rCode));
+        ascii(" ");
+        ascii(reason(rCode));
+        head.put(CRLF);
+        for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+            for (String value : header.getValue()) {
+                ascii(header.getKey());
+                ascii(": ");
+                ascii(value);
+                head.put(CRLF);
+            }
+        }
+        head.put(CRLF);
+        body.limit(body.capacity() - CHUNK_RESERVE);
+    }
+
+    /** Append a header string to the head buffer, growing it if it is full. */
+    private void ascii(String text) {
+        if (head.remaining() < text.length() + CRLF.length * 2) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(head.capacity() * 2, head.position() + text.length() * 2 + 16));
+            head.flip();
+            grown.put(head);
+            NioHttpServer.release(head);
+            head = grown;
+            buffers[0] = head;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            head.put((byte) (c < 0x100 ? c : '?'));
+        }
+    }
+
+    /** Send what is buffered: the headers if not yet sent, and the body so far as a chunk if chunked. */
+    private void flush(boolean last) throws IOException {
+        if (head == null) {
+            return;
+        }
+        if (framing == Framing.CHUNKED) {
+            int size = body.position();
+            if (size > 0) {
+                ascii(Integer.toHexString(size));
+                head.put(CRLF);
+                body.limit(body.capacity());
+                body.put(CRLF);
+            }
+            if (last) {
+                body.limit(body.capacity());
+                body.put(LAST_CHUNK);
+            }
+        }
+        if (head.position() == 0 && body.position() == 0) {
+            return;
+        }
+        head.flip();
+        body.flip();
+        connection.write(buffers);
+        head.clear();
+        body.clear();
+        body.limit(body.capacity() - CHUNK_RESERVE);
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return connection.remote();
+    }
+
+    @Override
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return connection.local();
+    }
+
+    @Override
+    public String getProtocol() {
+        return request.http11 ? "HTTP/1.1" : "HTTP/1.0";
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return attributes != null ? attributes.get(name) : null;
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        if (attributes == null) {
+            attributes = new HashMap<>();
+        }
+        attributes.put(name, value);
+    }
+
+    @Override
+    public void setStreams(InputStream i, OutputStream o) {
+        if (i != null) {
+            requestBody = i;
+        }
+        if (o != null) {
+            responseBody = o;
+        }
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return null;
+    }
+
+    private static String reason(int code) {
+        switch (code) {
+            case 100: return "Continue";
+            case 200: return "OK";
+            case 201: return "Created";
+            case 202: return "Accepted";
+            case 204: return "No Content";
+            case 206: return "Partial Content";
+            case 304: return "Not Modified";
+            case 400: return "Bad Request";
+            case 401: return "Unauthorized";
+            case 403: return "Forbidden";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 409: return "Conflict";
+            case 411: return "Length Required";
+            case 412: return "Precondition Failed";
+            case 413: return "Payload Too Large";
+            case 429: return "Too Many Requests";
+            case 431: return "Request Header Fields Too Large";
+            case 500: return "Internal Server Error";
+            case 502: return "Bad Gateway";
+            case 503: return "Service Unavailable";
+            case 504: return "Gateway Timeout";
+            default: return "Status";
+        }
+    }
+
+    /** The response body stream, writing into the body buffer. */
+    private final class Body extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (!sent()) {
+                throw new IOException("response headers not sent");
+            }
+            if (closed) {
+                throw new IOException("exchange closed");
+            }
+            if (length == 0) {
+                return;
+            }
+            if (framing == Framing.NONE) {
+                if (request.method.equals("HEAD")) {
+                    return; // handlers answer HEAD as GET; the body is not sent
+                }
+                throw new IOException("response has no body");
+            }
+            if (framing == Framing.FIXED) {
+                if (length > remaining) {
+                    throw new IOException("too many bytes to write");
+                }
+                remaining -= length;
+            }
+            while (length > 0) {
+                if (!body.hasRemaining()) {
+                    NioExchange.this.flush(false);
+                }
+                int n = Math.min(length, body.remaining());
+                body.put(bytes, offset, n);
+                offset += n;
+                length -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (!closed) {
+                NioExchange.this.flush(false);
+            }
+        }
+
+        @Override
+        public void close() {
+            NioExchange.this.close();
+        }
+    }
+}
@@ -0,0 +1,753 @@
+package Common;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * An HTTP/1.1 server on NIO selectors that can stand in for the JDK's
+ * {@link HttpServer}: services create it through {@link #create} and then use the
+ * usual contexts, filters, handlers and executor, unchanged.
+ *
+ * <p>It runs one selector loop per thread, by default one per core. On Linux every
+ * loop has its own listening socket on the port ({@code SO_REUSEPORT}), so the kernel
+ * spreads new connections over the loops; elsewhere one loop accepts and hands
+ * connections round. A loop reads into its own direct buffer and parses requests
+ * incrementally, keeping only an unfinished request's bytes between reads, so an idle
+ * keep-alive connection holds no buffer and no thread. Complete requests go to the
+ * context's filters and handler on the server's executor, or on the loop when there
+ * is none, as with the JDK server. Pipelined requests on one connection are run one
+ * after another and answered in order.</p>
+ *
+ * <p>A response is assembled in pooled direct buffers and written by the handler's
+ * thread with one gathering write per flush, headers and body together. Only when the
+ * client is not reading fast enough does that thread wait for the socket. Bodies of
+ * unknown length ({@code sendResponseHeaders(code, 0)}) are sent chunked.</p>
+ *
+ * <p>Request bodies must have a {@code Content-Length}; chunked request bodies are
+ * refused with {@code 411}. Authenticators are not supported.</p>
+ */
+public final class NioHttpServer extends HttpServer {
+
+    /** Size of each pooled buffer, and the most a loop reads at once. */
+    static final int BUFFER_SIZE = 16 * 1024;
+
+    /** Longest request line and headers accepted; longer ones are answered 431. */
+    static final int MAX_HEADER_BYTES = 64 * 1024;
+
+    /** Largest request body accepted; larger ones are answered 413. */
+    static final int MAX_BODY_BYTES = 16 * 1024 * 1024;
+
+    /** Requests parsed ahead on one connection before the loop stops reading it. */
+    static final int MAX_PIPELINED = 64;
+
+    /** How long a response write may wait for a client that does not read. */
+    static final long WRITE_TIMEOUT_MILLIS = 30_000;
+
+    private static final ConcurrentLinkedQueue<ByteBuffer> POOL = new ConcurrentLinkedQueue<>();
+
+    /** Selector each thread waits on when a socket is full; see {@link Connection#write}. */
+    private static final ThreadLocal<Selector> WRITE_SELECTOR = ThreadLocal.withInitial(() -> {
+        try {
+            return Selector.open();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    /**
+     * Create the HTTP server a service's config section asks for: the JDK's, unless
+     * {@code http_engine} is {@code "nio"}, with {@code http_threads} selector loops
+     * (default: one per core).
+     *
+     * @param address address to bind
+     * @param config the service's section of config.json, or null
+     * @return a bound server, not yet started
+     * @throws IOException if the address cannot be bound
+     */
+    public static HttpServer create(InetSocketAddress address, HashMap<String, String> config) throws IOException {
+        String engine = config != null ? config.getOrDefault("http_engine", "jdk") : "jdk";
+        switch (engine) {
+            case "jdk":
+                return HttpServer.create(address, 0);
+            case "nio":
+                int threads = Integer.parseInt(config.getOrDefault("http_threads",
+                        String.valueOf(Runtime.getRuntime().availableProcessors())));
+                return new NioHttpServer(address, Math.max(1, threads));
+            default:
+                throw new IllegalArgumentException("unknown http_engine " + engine);
+        }
+    }
+
+    private final Loop[] loops;
+    private final InetSocketAddress address;
+    private final CopyOnWriteArrayList<Context> contexts = new CopyOnWriteArrayList<>();
+    private volatile Executor executor;
+    private volatile boolean running = true;
+
+    private NioHttpServer(InetSocketAddress bindAddress, int threads) throws IOException {
+        boolean reusePort;
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            reusePort = probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        }
+        loops = new Loop[threads];
+        InetSocketAddress bound = bindAddress;
+        for (int i = 0; i < threads; i++) {
+            ServerSocketChannel server = null;
+            if (i == 0 || reusePort) {
+                server = ServerSocketChannel.open();
+                server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                if (reusePort && threads > 1) {
+                    server.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                server.bind(bound);
+                server.configureBlocking(false);
+                bound = (InetSocketAddress) server.getLocalAddress();
+            }
+            loops[i] = new Loop(i, server);
+        }
+        this.address = bound;
+    }
+
+    @Override
+    public void bind(InetSocketAddress addr, int backlog) throws IOException {
+        throw new BindException("already bound to " + address);
+    }
+
+    @Override
+    public void start() {
+        for (Loop loop : loops) {
+            new Thread(loop, "http-" + address.getPort() + "-" + loop.index).start();
+        }
+    }
+
+    @Override
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    @Override
+    public void stop(int delay) {
+        running = false;
+        for (Loop loop : loops) {
+            loop.selector.wakeup();
+        }
+    }
+
+    @Override
+    public HttpContext createContext(String path, HttpHandler handler) {
+        Context context = new Context(path);
+        context.setHandler(handler);
+        contexts.add(context);
+        return context;
+    }
+
+    @Override
+    public HttpContext createContext(String path) {
+        Context context = new Context(path);
+        contexts.add(context);
+        return context;
+    }
+
+    @Override
+    public void removeContext(String path) {
+        if (!contexts.removeIf(context -> context.path.equals(path))) {
+            throw new IllegalArgumentException("no context " + path);
+        }
+    }
+
+    @Override
+    public void removeContext(HttpContext context) {
+        if (!contexts.remove(context)) {
+            throw new IllegalArgumentException("no context " + context.getPath());
+        }
+    }
+
+    @Override
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /** @return the context with the longest path that prefixes {@code path}, or null */
+    private Context match(String path) {
+        Context best = null;
+        for (Context context : contexts) {
+            if (path.startsWith(context.path) && (best == null || context.path.length() > best.path.length())) {
+                best = context;
+            }
+        }
+        return best;
+    }
+
+    static ByteBuffer acquire() {
+        ByteBuffer buffer = POOL.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    static void release(ByteBuffer buffer) {
+        if (buffer.isDirect() && buffer.capacity() == BUFFER_SIZE) {
+            buffer.clear();
+            POOL.offer(buffer);
+        }
+    }
+
+    /** One selector thread, with the connections it reads. */
+    private final class Loop implements Runnable {
+        final int index;
+        final Selector selector;
+        final ServerSocketChannel server;
+        final ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        /** Bytes of a header line being decoded. */
+        final byte[] text = new byte[MAX_HEADER_BYTES];
+        /** Connections accepted by another loop for this one. */
+        final ConcurrentLinkedQueue<SocketChannel> adopted = new ConcurrentLinkedQueue<>();
+        private int nextLoop;
+
+        Loop(int index, ServerSocketChannel server) throws IOException {
+            this.index = index;
+            this.selector = Selector.open();
+            this.server = server;
+            if (server != null) {
+                server.register(selector, SelectionKey.OP_ACCEPT);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select(this::ready);
+                    SocketChannel channel;
+                    while ((channel = adopted.poll()) != null) {
+                        register(channel);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    AccessLog.error("http", e);
+                }
+            }
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                }
+                selector.close();
+            } catch (IOException e) {
+                // shutting down anyway
+            }
+        }
+
+        private void ready(SelectionKey key) {
+            if (key.isAcceptable()) {
+                accept();
+            } else if (key.isReadable()) {
+                read((Connection) key.attachment());
+            }
+        }
+
+        private void accept() {
+            try {
+                SocketChannel channel;
+                while ((channel = server.accept()) != null) {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    Loop target = this;
+                    if (loops.length > 1 && loops[1].server == null) {
+                        // no SO_REUSEPORT: this loop accepts for all of them
+                        target = loops[nextLoop];
+                        nextLoop = (nextLoop + 1) % loops.length;
+                    }
+                    if (target == this) {
+                        register(channel);
+                    } else {
+                        target.adopted.add(channel);
+                        target.selector.wakeup();
+                    }
+                }
+            } catch (IOException e) {
+                AccessLog.error("http", e);
+            }
+        }
+
+        private void register(SocketChannel channel) throws IOException {
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        }
+
+        private void read(Connection connection) {
+            in.clear();
+            int n;
+            try {
+                n = connection.channel.read(in);
+            } catch (IOException e) {
+                n = -1;
+            }
+            if (n < 0) {
+                connection.peerClosed();
+                return;
+            }
+            in.flip();
+            connection.received(in, this);
+        }
+
+        /** Decode {@code buffer[from, to)} as ISO-8859-1, as HTTP header bytes are. */
+        String string(ByteBuffer buffer, int from, int to) {
+            for (int i = from; i < to; i++) {
+                text[i - from] = buffer.get(i);
+            }
+            return new String(text, 0, to - from, StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    /** A parsed request, or a protocol error to answer in its place. */
+    static final class Request {
+        String method = "GET";
+        String target = "/";
+        boolean http11 = true;
+        final Headers headers = new Headers();
+        int contentLength;
+        boolean keepAlive;
+        boolean expectContinue;
+        byte[] body;
+        /** Status to answer without running a handler, or 0. */
+        int error;
+    }
+
+    /** One client connection: its unparsed bytes and its queue of parsed requests. */
+    final class Connection implements Runnable {
+        final SocketChannel channel;
+        SelectionKey key;
+        private final InetSocketAddress remote;
+        private final InetSocketAddress local;
+
+        // loop thread only
+        private ByteBuffer pending;
+        private Request partial;
+        private int headerLength;
+        private int scanned;
+        private boolean continueSent;
+
+        // guarded by this
+        private final ArrayDeque<Request> queue = new ArrayDeque<>();
+        private boolean busy;
+        private boolean paused;
+        private boolean eof;
+
+        Connection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.remote = (InetSocketAddress) channel.getRemoteAddress();
+            this.local = (InetSocketAddress) channel.getLocalAddress();
+        }
+
+        InetSocketAddress remote() {
+            return remote;
+        }
+
+        InetSocketAddress local() {
+            return local;
+        }
+
+        /** Take in bytes read by the loop and queue every request they complete. */
+        void received(ByteBuffer data, Loop loop) {
+            ByteBuffer buffer = data;
+            if (pending != null) {
+                if (pending.remaining() < data.remaining()) {
+                    ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2,
+                            pending.position() + data.remaining()));
+                    pending.flip();
+                    grown.put(pending);
+                    pending = grown;
+                }
+                pending.put(data);
+                pending.flip();
+                buffer = pending;
+            }
+            while (buffer.hasRemaining()) {
+                Request request;
+                try {
+                    request = parse(buffer, loop);
+                } catch (IllegalArgumentException e) {
+                    request = failed(400);
+                }
+                if (request == null) {
+                    break;
+                }
+                enqueue(request);
+                if (request.error != 0) {
+                    buffer.position(buffer.limit());
+                }
+            }
+            if (!buffer.hasRemaining()) {
+                pending = null;
+            } else if (buffer == pending) {
+                pending.compact();
+            } else {
+                pending = ByteBuffer.allocate(Math.max(BUFFER_SIZE, buffer.remaining()));
+                pending.put(buffer);
+            }
+        }
+
+        /**
+         * Parse the request at the buffer's position. Returns null, leaving the position
+         * where it is, if its bytes have not all arrived; otherwise moves past it.
+         */
+        private Request parse(ByteBuffer buffer, Loop loop) {
+            int start = buffer.position();
+            int limit = buffer.limit();
+            if (partial == null) {
+                // a client may send blank lines between requests
+                while (start + 1 < limit && buffer.get(start) == '\r' && buffer.get(start + 1) == '\n') {
+                    buffer.position(start += 2);
+                }
+                int end = -1;
+                for (int i = Math.max(start, start + scanned - 3); i + 3 < limit; i++) {
+                    if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n'
+                            && buffer.get(i + 2) == '\r' && buffer.get(i + 3) == '\n') {
+                        end = i;
+                        break;
+                    }
+                }
+                if (end < 0) {
+                    scanned = limit - start;
+                    if (scanned > MAX_HEADER_BYTES) {
+                        return failed(431);
+                    }
+                    return null;
+                }
+                scanned = 0;
+                if (end - start > MAX_HEADER_BYTES) {
+                    return failed(431);
+                }
+                partial = head(buffer, start, end, loop);
+                headerLength = end + 4 - start;
+                if (partial.error != 0) {
+                    return failed(partial.error);
+                }
+            }
+            Request request = partial;
+            int bodyStart = start + headerLength;
+            if (limit - bodyStart < request.contentLength) {
+                if (request.expectContinue && !continueSent) {
+                    continueSent = true;
+                    try {
+                        channel.write(ByteBuffer.wrap("HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1)));
+                    } catch (IOException e) {
+                        // the client will send the body anyway, or go away
+                    }
+                }
+                return null;
+            }
+            if (request.contentLength > 0) {
+                request.body = new byte[request.contentLength];
+                buffer.get(bodyStart, request.body);
+            }
+            buffer.position(bodyStart + request.contentLength);
+            partial = null;
+            continueSent = false;
+            return request;
+        }
+
+        private Request failed(int status) {
+            Request request = partial != null ? partial : new Request();
+            partial = null;
+            scanned = 0;
+            request.error = status;
+            return request;
+        }
+
+        /** Parse the request line and headers in {@code buffer[start, end)}. */
+        private Request head(ByteBuffer buffer, int start, int end, Loop loop) {
+            Request request = new Request();
+            int lineEnd = lineEnd(buffer, start, end);
+            int space1 = indexOf(buffer, ' ', start, lineEnd);
+            int space2 = space1 < 0 ? -1 : indexOf(buffer, ' ', space1 + 1, lineEnd);
+            if (space2 < 0) {
+                throw new IllegalArgumentException("bad request line");
+            }
+            request.method = loop.string(buffer, start, space1);
+            request.target = loop.string(buffer, space1 + 1, space2);
+            String version = loop.string(buffer, space2 + 1, lineEnd);
+            if (!version.startsWith("HTTP/1.")) {
+                throw new IllegalArgumentException("bad version " + version);
+            }
+            request.http11 = !version.equals("HTTP/1.0");
+
+            for (int line = lineEnd + 2; line < end; line = lineEnd + 2) {
+                lineEnd = lineEnd(buffer, line, end);
+                int colon = indexOf(buffer, ':', line, lineEnd);
+                if (colon <= line) {
+                    throw new IllegalArgumentException("bad header");
+                }
+                int from = colon + 1;
+                int to = lineEnd;
+                while (from < to && (buffer.get(from) == ' ' || buffer.get(from) == '\t')) {
+                    from++;
+                }
+                while (to > from && (buffer.get(to - 1) == ' ' || buffer.get(to - 1) == '\t')) {
+                    to--;
+                }
+                request.headers.add(loop.string(buffer, line, colon), loop.string(buffer, from, to));
+            }
+
+            String connection = request.headers.getFirst("Connection");
+            request.keepAlive = request.http11
+                    ? connection == null || !connection.equalsIgnoreCase("close")
+                    : connection != null && connection.equalsIgnoreCase("keep-alive");
+            if (request.headers.containsKey("Transfer-Encoding")) {
+                request.error = 411;
+                return request;
+            }
+            String length = request.headers.getFirst("Content-Length");
+            if (length != null) {
+                long value = Long.parseLong(length.trim());
+                if (value < 0) {
+                    throw new IllegalArgumentException("bad length");
+                }
+                if (value > MAX_BODY_BYTES) {
+                    request.error = 413;
+                    return request;
+                }
+                request.contentLength = (int) value;
+            }
+            String expect = request.headers.getFirst("Expect");
+            request.expectContinue = expect != null && expect.equalsIgnoreCase("100-continue");
+            return request;
+        }
+
+        private int lineEnd(ByteBuffer buffer, int from, int end) {
+            for (int i = from; i + 1 < end; i++) {
+                if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n') {
+                    return i;
+                }
+            }
+            return end;
+        }
+
+        private int indexOf(ByteBuffer buffer, char c, int from, int to) {
+            for (int i = from; i < to; i++) {
+                if (buffer.get(i) == c) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private void enqueue(Request request) {
+            boolean start;
+            synchronized (this) {
+                queue.add(request);
+                start = !busy;
+                busy = true;
+                if (queue.size() >= MAX_PIPELINED && !paused) {
+                    paused = true;
+                    key.interestOps(0);
+                }
+            }
+            if (start) {
+                dispatch();
+            }
+        }
+
+        private void dispatch() {
+            Executor pool = executor;
+            if (pool == null) {
+                run();
+                return;
+            }
+            try {
+                pool.execute(this);
+            } catch (RejectedExecutionException e) {
+                close();
+            }
+        }
+
+        void peerClosed() {
+            synchronized (this) {
+                eof = true;
+                key.cancel();
+                if (busy) {
+                    return; // the requests already read are still answered
+                }
+            }
+            close();
+        }
+
+        /** Run the queued requests in order, until none are left. */
+        @Override
+        public void run() {
+            while (true) {
+                Request request;
+                synchronized (this) {
+                    request = queue.poll();
+                    if (request == null) {
+                        busy = false;
+                        if (paused && !eof) {
+                            paused = false;
+                            key.interestOps(SelectionKey.OP_READ);
+                            key.selector().wakeup();
+                        }
+                        if (!eof) {
+                            return;
+                        }
+                    }
+                }
+                if (request == null || !serve(request)) {
+                    close();
+                    return;
+                }
+            }
+        }
+
+        /** @return true if the connection can take another request */
+        private boolean serve(Request request) {
+            NioExchange exchange = new NioExchange(this, request);
+            try {
+                if (request.error != 0) {
+                    exchange.fail(request.error);
+                    return false;
+                }
+                String path;
+                try {
+                    path = exchange.getRequestURI().getRawPath();
+                } catch (IllegalArgumentException e) {
+                    exchange.fail(400);
+                    return false;
+                }
+                Context context = path != null ? match(path) : null;
+                if (context == null || context.handler == null) {
+                    exchange.fail(404);
+                    return exchange.finish();
+                }
+                exchange.setContext(context);
+                new Filter.Chain(context.filters, context.handler).doFilter(exchange);
+                return exchange.finish();
+            } catch (IOException | RuntimeException e) {
+                AccessLog.error("http", e);
+                try {
+                    if (!exchange.sent()) {
+                        exchange.fail(500);
+                    }
+                } catch (IOException ignored) {
+                    // closing anyway
+                }
+                return false;
+            }
+        }
+
+        /**
+         * Write all of the buffers, waiting for the socket when it is full.
+         *
+         * @throws IOException if the connection fails or the client stops reading
+         */
+        void write(ByteBuffer[] buffers) throws IOException {
+            while (buffers[buffers.length - 1].hasRemaining() || buffers[0].hasRemaining()) {
+                if (channel.write(buffers) == 0) {
+                    Selector selector = WRITE_SELECTOR.get();
+                    SelectionKey writable = channel.register(selector, SelectionKey.OP_WRITE);
+                    try {
+                        if (selector.select(WRITE_TIMEOUT_MILLIS) == 0) {
+                            throw new IOException("client not reading");
+                        }
+                    } finally {
+                        writable.cancel();
+                        selector.selectNow();
+                    }
+                }
+            }
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing more to do with it
+            }
+        }
+    }
+
+    /** A context of this server; authenticators are kept but not applied. */
+    private final class Context extends HttpContext {
+        final String path;
+        volatile HttpHandler handler;
+        final List<Filter> filters = new CopyOnWriteArrayList<>();
+        final Map<String, Object> attributes = new ConcurrentHashMap<>();
+        private Authenticator authenticator;
+
+        Context(String path) {
+            if (path == null || !path.startsWith("/")) {
+                throw new IllegalArgumentException("bad context path " + path);
+            }
+            this.path = path;
+        }
+
+        @Override
+        public HttpHandler getHandler() {
+            return handler;
+        }
+
+        @Override
+        public void setHandler(HttpHandler handler) {
+            if (this.handler != null) {
+                throw new IllegalArgumentException("handler already set");
+            }
+            this.handler = handler;
+        }
+
+        @Override
+        public String getPath() {
+            return path;
+        }
+
+        @Override
+        public HttpServer getServer() {
+            return NioHttpServer.this;
+        }
+
+        @Override
+        public Map<String, Object> getAttributes() {
+            return attributes;
+        }
+
+        @Override
+        public List<Filter> getFilters() {
+            return filters;
+        }
+
+        @Override
+        public Authenticator setAuthenticator(Authenticator auth) {
+            Authenticator old = authenticator;
+            authenticator = auth;
+            return old;
+        }
+
+        @Override
+        public Authenticator getAuthenticator() {
+            return authenticator;
+        }
+    }
+}
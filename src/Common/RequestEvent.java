@@ -0,0 +1,238 @@
+package Common;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.IOException;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder event for one HTTP request, with where its time went.
+ *
+ * <p>{@link #filter} times each request of a context and fills in the route, status
+ * and byte counts. While it runs, the handler's code adds to the phase fields through
+ * the static methods here: parsing JSON ({@link #parse}), calls to other services
+ * ({@link #downstream}), password hashing ({@link #hash}), work on the in-memory
+ * store ({@link #store}) and writing the response ({@link #respond}). Each takes the
+ * value of {@link #start()}, or for calls {@link #startDownstream()}, from when the
+ * phase began.</p>
+ *
+ * <p>When the event is not being recorded, the filter only checks a flag and
+ * {@link #start()} returns 0, which every phase method ignores, so the hooks can
+ * stay in place in production. See {@code microservices.jfc} for recording
+ * settings.</p>
+ */
+@Name("microservices.Request")
+@Label("Request")
+@Category("Microservices")
+@Description("An HTTP request handled by a service, with time per phase")
+@StackTrace(false)
+public final class RequestEvent extends Event {
+
+    private static final EventType TYPE = EventType.getEventType(RequestEvent.class);
+
+    /** The event of the request the current thread is handling, while it is recorded. */
+    private static final ThreadLocal<RequestEvent> CURRENT = new ThreadLocal<>();
+
+    @Label("Service")
+    public String service;
+
+    @Label("Method")
+    public String method;
+
+    @Label("Path")
+    public String path;
+
+    @Label("Status")
+    public int status;
+
+    @Label("User ID")
+    @Description("User the request is about, or -1")
+    public int userId = -1;
+
+    @Label("Product ID")
+    @Description("Product the request is about, or -1")
+    public int productId = -1;
+
+    @Label("Request Bytes")
+    @DataAmount
+    public long requestBytes;
+
+    @Label("Response Bytes")
+    @DataAmount
+    public long responseBytes;
+
+    @Label("Parse")
+    @Description("Time spent parsing JSON")
+    @Timespan
+    public long parse;
+
+    @Label("Downstream")
+    @Description("Time spent waiting for other services")
+    @Timespan
+    public long downstream;
+
+    @Label("Downstream Calls")
+    public int downstreamCalls;
+
+    @Label("Hash")
+    @Description("Time spent hashing passwords")
+    @Timespan
+    public long hash;
+
+    @Label("Store")
+    @Description("Time spent reading and writing the in-memory store, lock waits included")
+    @Timespan
+    public long store;
+
+    @Label("Respond")
+    @Description("Time spent writing the response")
+    @Timespan
+    public long respond;
+
+    /** True while a downstream phase is being timed; not recorded. */
+    private transient boolean inDownstream;
+
+    /**
+     * @param service name recorded with each request, e.g. {@code "order"}
+     * @return a filter recording an event for every request of the context it is added to
+     */
+    public static Filter filter(String service) {
+        return new Filter() {
+            @Override
+            public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+                if (!TYPE.isEnabled()) {
+                    chain.doFilter(exchange);
+                    return;
+                }
+                RequestEvent event = new RequestEvent();
+                CURRENT.set(event);
+                event.begin();
+                try {
+                    chain.doFilter(exchange);
+                } finally {
+                    CURRENT.remove();
+                    event.end();
+                    if (event.shouldCommit()) {
+                        event.service = service;
+                        event.method = exchange.getRequestMethod();
+                        event.path = exchange.getRequestURI().getRawPath();
+                        event.status = exchange.getResponseCode();
+                        event.requestBytes = length(exchange.getRequestHeaders().getFirst("Content-length"));
+                        event.responseBytes = length(exchange.getResponseHeaders().getFirst("Content-length"));
+                        event.commit();
+                    }
+                }
+            }
+
+            @Override
+            public String description() {
+                return "request events";
+            }
+        };
+    }
+
+    /** @return a start time to pass to a phase method, or 0 when nothing is being recorded */
+    public static long start() {
+        return CURRENT.get() != null ? System.nanoTime() : 0;
+    }
+
+    /** @return true while the current thread's request is being recorded */
+    static boolean active() {
+        return CURRENT.get() != null;
+    }
+
+    /** Count JSON parsing since {@code started}. */
+    public static void parse(long started) {
+        RequestEvent event = current(started);
+        if (event != null) {
+            event.parse += System.nanoTime() - started;
+        }
+    }
+
+    /**
+     * Like {@link #start()}, for {@link #downstream}. Returns 0 while a downstream phase
+     * is already being timed, so that a call made inside another (e.g. the one a
+     * coalesced lookup waits for) counts once.
+     */
+    public static long startDownstream() {
+        RequestEvent event = CURRENT.get();
+        if (event == null || event.inDownstream) {
+            return 0;
+        }
+        event.inDownstream = true;
+        return System.nanoTime();
+    }
+
+    /** Count a call to another service, or a wait for one, begun at {@link #startDownstream()}. */
+    public static void downstream(long started) {
+        RequestEvent event = current(started);
+        if (event != null) {
+            event.downstream += System.nanoTime() - started;
+            event.downstreamCalls++;
+            event.inDownstream = false;
+        }
+    }
+
+    /** Count password hashing since {@code started}. */
+    public static void hash(long started) {
+        RequestEvent event = current(started);
+        if (event != null) {
+            event.hash += System.nanoTime() - started;
+        }
+    }
+
+    /** Count store work since {@code started}. */
+    public static void store(long started) {
+        RequestEvent event = current(started);
+        if (event != null) {
+            event.store += System.nanoTime() - started;
+        }
+    }
+
+    /** Count response writing since {@code started}. */
+    public static void respond(long started) {
+        RequestEvent event = current(started);
+        if (event != null) {
+            event.respond += System.nanoTime() - started;
+        }
+    }
+
+    /** Record the user the current request is about. */
+    public static void user(int id) {
+        RequestEvent event = CURRENT.get();
+        if (event != null) {
+            event.userId = id;
+        }
+    }
+
+    /** Record the product the current request is about. */
+    public static void product(int id) {
+        RequestEvent event = CURRENT.get();
+        if (event != null) {
+            event.productId = id;
+        }
+    }
+
+    private static RequestEvent current(long started) {
+        return started != 0 ? CURRENT.get() : null;
+    }
+
+    private static long length(String header) {
+        if (header == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(header.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package Common;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Dispatches requests by method and path to handler methods, from route templates
+ * compiled once into a trie of path segments.
+ *
+ * <pre>
+ *   Router routes = new Router(exchange -&gt; sendJsonwithCode(exchange, "{}", 400))
+ *           .get("/product/search", ProductHandler::searchHandler)
+ *           .get("/product/{id}", ProductHandler::getHandler)       // (exchange, int id)
+ *           .post("/product", ProductHandler::postHandler);
+ * </pre>
+ *
+ * <p>A template is a path of literal segments and at most one {@code {name}} segment,
+ * which matches an integer and is passed to the handler as an {@code int}. A request
+ * is matched in one pass over its raw path: segments are compared in place and the
+ * parameter is parsed from the characters, so no substrings, arrays or boxed values
+ * are created. Where a literal and a parameter could both match, the literal wins.
+ * Empty segments, e.g. from a trailing slash, are skipped. Percent-encoded segments are
+ * not decoded. A request that matches no template, or a template without a handler
+ * for its method, goes to the {@code unmatched} handler.</p>
+ *
+ * <p>Routes are added before the router is shared with the server's threads, and not
+ * after.</p>
+ */
+public final class Router implements HttpHandler {
+
+    /** Handler for a route without a path parameter. */
+    @FunctionalInterface
+    public interface Handler {
+        void handle(HttpExchange exchange) throws IOException;
+    }
+
+    /** Handler for a route with an integer path parameter. */
+    @FunctionalInterface
+    public interface IdHandler {
+        void handle(HttpExchange exchange, int id) throws IOException;
+    }
+
+    private static final String[] METHODS = {"GET", "POST", "PUT", "DELETE", "PATCH", "HEAD", "OPTIONS"};
+
+    /** Returned by {@link #parseInt} for a segment that is not an int. */
+    private static final long NOT_INT = Long.MIN_VALUE;
+
+    /** One path segment of one or more templates. */
+    private static final class Node {
+        String[] names = new String[0];
+        Node[] children = new Node[0];
+        Node param;
+        IdHandler[] handlers;
+
+        Node literal(String path, int start, int end) {
+            int length = end - start;
+            for (int i = 0; i < names.length; i++) {
+                String name = names[i];
+                if (name.length() == length && path.regionMatches(start, name, 0, length)) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        Node addLiteral(String name) {
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].equals(name)) {
+                    return children[i];
+                }
+            }
+            names = Arrays.copyOf(names, names.length + 1);
+            children = Arrays.copyOf(children, children.length + 1);
+            names[names.length - 1] = name;
+            return children[children.length - 1] = new Node();
+        }
+    }
+
+    private final Node root = new Node();
+    private final Handler unmatched;
+
+    /**
+     * @param unmatched handler for requests no route matches, e.g. one answering 400 or 404
+     */
+    public Router(Handler unmatched) {
+        this.unmatched = unmatched;
+    }
+
+    /** Add a GET route; see {@link #route(String, String, Handler)}. */
+    public Router get(String template, Handler handler) {
+        return route("GET", template, handler);
+    }
+
+    /** Add a GET route with a parameter; see {@link #route(String, String, IdHandler)}. */
+    public Router get(String template, IdHandler handler) {
+        return route("GET", template, handler);
+    }
+
+    /** Add a POST route; see {@link #route(String, String, Handler)}. */
+    public Router post(String template, Handler handler) {
+        return route("POST", template, handler);
+    }
+
+    /** Add a POST route with a parameter; see {@link #route(String, String, IdHandler)}. */
+    public Router post(String template, IdHandler handler) {
+        return route("POST", template, handler);
+    }
+
+    /**
+     * Add a route. A {@code {name}} segment in the template still has to match an
+     * integer, but the value is not passed on.
+     *
+     * @param method HTTP method, e.g. {@code "GET"}
+     * @param template path template, e.g. {@code "/user/export"}
+     * @param handler handler for matching requests
+     * @return this router
+     * @throws IllegalArgumentException if the method is unknown, the template is
+     *         invalid or the route is already taken
+     */
+    public Router route(String method, String template, Handler handler) {
+        return add(method, template, (exchange, id) -> handler.handle(exchange), false);
+    }
+
+    /**
+     * Add a route with an integer parameter.
+     *
+     * @param method HTTP method, e.g. {@code "GET"}
+     * @param template path template with one parameter, e.g. {@code "/user/{id}"}
+     * @param handler handler for matching requests, given the parameter's value
+     * @return this router
+     * @throws IllegalArgumentException if the method is unknown, the template does not
+     *         have exactly one parameter or the route is already taken
+     */
+    public Router route(String method, String template, IdHandler handler) {
+        return add(method, template, handler, true);
+    }
+
+    private Router add(String method, String template, IdHandler handler, boolean needsParam) {
+        int m = methodIndex(method);
+        if (m < 0) {
+            throw new IllegalArgumentException("unknown method " + method);
+        }
+        Node node = root;
+        int params = 0;
+        for (String segment : template.split("/")) {
+            if (segment.isEmpty()) {
+                continue;
+            }
+            if (segment.startsWith("{") && segment.endsWith("}")) {
+                if (++params > 1) {
+                    throw new IllegalArgumentException("more than one parameter in " + template);
+                }
+                if (node.param == null) {
+                    node.param = new Node();
+                }
+                node = node.param;
+            } else {
+                node = node.addLiteral(segment);
+            }
+        }
+        if (needsParam && params == 0) {
+            throw new IllegalArgumentException("no parameter in " + template);
+        }
+        if (node.handlers == null) {
+            node.handlers = new IdHandler[METHODS.length];
+        }
+        if (node.handlers[m] != null) {
+            throw new IllegalArgumentException("duplicate route " + method + " " + template);
+        }
+        node.handlers[m] = handler;
+        return this;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getRawPath();
+        Node node = root;
+        int id = 0;
+        int length = path != null ? path.length() : 0;
+        int start = 0;
+        while (start < length) {
+            if (path.charAt(start) == '/') {
+                start++;
+                continue;
+            }
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = length;
+            }
+            Node next = node.literal(path, start, end);
+            if (next == null && node.param != null) {
+                long value = parseInt(path, start, end);
+                if (value != NOT_INT) {
+                    id = (int) value;
+                    next = node.param;
+                }
+            }
+            if (next == null) {
+                unmatched.handle(exchange);
+                return;
+            }
+            node = next;
+            start = end;
+        }
+        int m = methodIndex(exchange.getRequestMethod());
+        IdHandler handler = node.handlers != null && m >= 0 ? node.handlers[m] : null;
+        if (handler == null) {
+            unmatched.handle(exchange);
+            return;
+        }
+        handler.handle(exchange, id);
+    }
+
+    private static int methodIndex(String method) {
+        switch (method) {
+            case "GET":
+                return 0;
+            case "POST":
+                return 1;
+            case "PUT":
+                return 2;
+            case "DELETE":
+                return 3;
+            case "PATCH":
+                return 4;
+            case "HEAD":
+                return 5;
+            case "OPTIONS":
+                return 6;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Parse {@code path[start, end)} as {@link Integer#parseInt} would, without a substring.
+     *
+     * @return the value, or {@link #NOT_INT}
+     */
+    private static long parseInt(String path, int start, int end) {
+        boolean negative = false;
+        int i = start;
+        char first = path.charAt(i);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            i++;
+        }
+        if (i == end) {
+            return NOT_INT;
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = path.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return NOT_INT;
+            }
+            value = value * 10 + digit;
+            if (value > (long) Integer.MAX_VALUE + 1) {
+                return NOT_INT;
+            }
+        }
+        value = negative ? -value : value;
+        return value < Integer.MIN_VALUE || value > Integer.MAX_VALUE ? NOT_INT : value;
+    }
+}
@@ -0,0 +1,100 @@
+package Common;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Wire format of the internal binary protocol spoken between OrderServer and the
+ * User and Product services (see {@link RpcServer} and {@link RpcClient}).
+ *
+ * <p>Every message is a length-prefixed frame; all integers are big-endian.</p>
+ * <pre>
+ *   request:  int length | long correlation id | long deadline | byte op | payload
+ *   response: int length | long correlation id | short status | payload
+ * </pre>
+ * <p>{@code length} counts the bytes after itself. The status is an HTTP status code,
+ * so callers handle it exactly like the JSON API's. The correlation id is chosen by
+ * the client and echoed by the server, so many requests can be in flight on one
+ * connection and answered in any order. The deadline is in epoch milliseconds, or 0
+ * for none, as in {@link Deadline#HEADER}: a request read after it is answered with a
+ * bodyless {@code 504} without being run.</p>
+ *
+ * <p>A {@code str} is an unsigned short byte count followed by UTF-8 bytes; a count of
+ * {@link #ABSENT} stands for a field that is not present. A version of 0 means
+ * "none".</p>
+ * <pre>
+ *   USER_GET         int id | long known version         -> 200 user | 304 | 404
+ *   USER_UPDATE      int id | long if-match version
+ *                    | str username | str email | str password
+ *                                                         -> 200 user | 400 | 404 | 409 | 412
+ *   PRODUCT_GET      int id | long known version         -> 200 product | 304 | 404
+ *   PRODUCT_UPDATE   int id | long if-match version
+ *                    | str name | str price | int quantity (-1 absent) | str description
+ *                                                         -> 200 product | 400 | 404 | 412
+ *   PRODUCT_RESERVE  int id | int quantity                -> 200 product | 400 | 404 | 409
+ *   PRODUCT_RESERVE_BATCH
+ *                    int id | int count | count x int quantity
+ *                                                         -> 200 batch | 400 | 404
+ *
+ *   user:    long version | str username | str email | str password hash
+ *   product: long version | str name | str price | int quantity | str description
+ *   batch:   long version | int quantity | int count | count x int stock left
+ *            after that reservation, or -1 if it was refused for lack of stock
+ * </pre>
+ * <p>Error statuses carry no payload. A GET whose known version is current is
+ * answered with a bodyless 304, like {@code If-None-Match}. A hot product, whose
+ * stock changes without a new version, is always sent in full with version 0.</p>
+ */
+public final class Rpc {
+
+    public static final byte USER_GET = 1;
+    public static final byte USER_UPDATE = 2;
+    public static final byte PRODUCT_GET = 3;
+    public static final byte PRODUCT_UPDATE = 4;
+    public static final byte PRODUCT_RESERVE = 5;
+    public static final byte PRODUCT_RESERVE_BATCH = 6;
+
+    /** Largest frame either side accepts, length prefix excluded. */
+    public static final int MAX_FRAME = 1 << 20;
+
+    /** String length marking an absent field. */
+    static final int ABSENT = 0xFFFF;
+
+    private Rpc() {
+    }
+
+    /**
+     * Write a string field.
+     *
+     * @param out buffer to append to
+     * @param value the string, or null for an absent field
+     */
+    public static void putString(ByteBuffer out, String value) {
+        if (value == null) {
+            out.putShort((short) ABSENT);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length >= ABSENT) {
+            throw new IllegalArgumentException("string field too long: " + bytes.length + " bytes");
+        }
+        out.putShort((short) bytes.length);
+        out.put(bytes);
+    }
+
+    /**
+     * Read a string field.
+     *
+     * @param in buffer positioned at the field
+     * @return the string, or null if the field is absent
+     */
+    public static String getString(ByteBuffer in) {
+        int length = in.getShort() & 0xFFFF;
+        if (length == ABSENT) {
+            return null;
+        }
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+}
@@ -0,0 +1,217 @@
+package Common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client for the binary protocol described in {@link Rpc}.
+ *
+ * <p>All callers share one persistent connection. Requests are written whole under a
+ * lock and tagged with a fresh correlation id; a reader thread matches each response
+ * to its waiting caller by that id, so concurrent calls are multiplexed rather than
+ * queued behind each other. The connection is opened on first use and reopened on the
+ * next call after it fails; calls in flight when it fails get an {@link IOException}.</p>
+ */
+public final class RpcClient implements Closeable {
+
+    /** Writes a request payload. */
+    public interface Payload {
+        void writeTo(ByteBuffer out);
+    }
+
+    /** A response: its status and payload. */
+    public static final class Response {
+        public final int status;
+        public final ByteBuffer payload;
+
+        Response(int status, ByteBuffer payload) {
+            this.status = status;
+            this.payload = payload;
+        }
+    }
+
+    private static final ThreadLocal<ByteBuffer> FRAME = ThreadLocal.withInitial(() -> ByteBuffer.allocate(4096));
+
+    private final InetSocketAddress address;
+    private final long timeoutMillis;
+    private final AtomicLong ids = new AtomicLong();
+    private final ConcurrentHashMap<Long, CompletableFuture<Response>> pending = new ConcurrentHashMap<>();
+    private final Object writeLock = new Object();
+    private SocketChannel channel;
+
+    /**
+     * @param ip server address
+     * @param port server RPC port
+     * @param timeoutMillis how long a call waits for its response
+     */
+    public RpcClient(String ip, int port, long timeoutMillis) {
+        this.address = new InetSocketAddress(ip, port);
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Send a request and wait for its response.
+     *
+     * @param op operation code from {@link Rpc}
+     * @param payload writes the request payload
+     * @return the response
+     * @throws IOException if the connection fails; {@link SocketTimeoutException} if the
+     *         response does not arrive in time
+     */
+    public Response call(byte op, Payload payload) throws IOException {
+        return call(op, payload, timeoutMillis);
+    }
+
+    /**
+     * Send a request and wait at most {@code timeoutMillis} for its response, e.g. the
+     * time left before the caller's deadline. The request carries the end of that wait
+     * as its deadline, so the server does not run it once the caller has given up.
+     *
+     * @param op operation code from {@link Rpc}
+     * @param payload writes the request payload
+     * @param timeoutMillis how long to wait for the response
+     * @return the response
+     * @throws IOException if the connection fails; {@link SocketTimeoutException} if the
+     *         response does not arrive in time
+     */
+    public Response call(byte op, Payload payload, long timeoutMillis) throws IOException {
+        long id = ids.incrementAndGet();
+        ByteBuffer frame = frame(id, System.currentTimeMillis() + timeoutMillis, op, payload);
+
+        CompletableFuture<Response> response = new CompletableFuture<>();
+        pending.put(id, response);
+        try {
+            synchronized (writeLock) {
+                SocketChannel ch = connection();
+                while (frame.hasRemaining()) {
+                    ch.write(frame);
+                }
+            }
+            return response.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (IOException e) {
+            disconnect(e);
+            throw e;
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new SocketTimeoutException("no response from " + address + " within " + timeoutMillis + " ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } finally {
+            pending.remove(id);
+        }
+    }
+
+    /** Encode a request into this thread's frame buffer, growing it if the payload does not fit. */
+    private static ByteBuffer frame(long id, long deadline, byte op, Payload payload) {
+        ByteBuffer frame = FRAME.get();
+        while (true) {
+            try {
+                frame.clear();
+                frame.position(4);
+                frame.putLong(id).putLong(deadline).put(op);
+                payload.writeTo(frame);
+                frame.putInt(0, frame.position() - 4);
+                frame.flip();
+                return frame;
+            } catch (BufferOverflowException e) {
+                if (frame.capacity() >= 4 + Rpc.MAX_FRAME) {
+                    throw new IllegalArgumentException("request larger than " + Rpc.MAX_FRAME + " bytes");
+                }
+                frame = ByteBuffer.allocate(Math.min(frame.capacity() * 2, 4 + Rpc.MAX_FRAME));
+                FRAME.set(frame);
+            }
+        }
+    }
+
+    /** Caller holds {@link #writeLock}. */
+    private SocketChannel connection() throws IOException {
+        if (channel == null || !channel.isOpen()) {
+            SocketChannel ch = SocketChannel.open(address);
+            ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel = ch;
+            Thread reader = new Thread(() -> readLoop(ch), "rpc-client-" + address.getPort());
+            reader.setDaemon(true);
+            reader.start();
+        }
+        return channel;
+    }
+
+    private void readLoop(SocketChannel ch) {
+        ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+        try {
+            while (true) {
+                if (ch.read(in) < 0) {
+                    throw new IOException("connection to " + address + " closed");
+                }
+                in.flip();
+                while (in.remaining() >= 4) {
+                    int length = in.getInt(in.position());
+                    if (length < 10 || length > Rpc.MAX_FRAME) {
+                        throw new IOException("bad frame length " + length);
+                    }
+                    if (in.remaining() < 4 + length) {
+                        if (in.capacity() < 4 + length) {
+                            in = ByteBuffer.allocate(4 + length).put(in);
+                            in.flip();
+                        }
+                        break;
+                    }
+                    in.getInt();
+                    long id = in.getLong();
+                    int status = in.getShort();
+                    byte[] body = new byte[length - 10];
+                    in.get(body);
+                    CompletableFuture<Response> waiting = pending.remove(id);
+                    if (waiting != null) {
+                        waiting.complete(new Response(status, ByteBuffer.wrap(body)));
+                    }
+                }
+                in.compact();
+            }
+        } catch (IOException e) {
+            synchronized (writeLock) {
+                if (channel == ch) {
+                    disconnect(e);
+                }
+            }
+        }
+    }
+
+    private void disconnect(IOException cause) {
+        synchronized (writeLock) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // already failing
+                }
+                channel = null;
+            }
+        }
+        for (Long id : pending.keySet()) {
+            CompletableFuture<Response> waiting = pending.remove(id);
+            if (waiting != null) {
+                waiting.completeExceptionally(cause);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        disconnect(new IOException("client closed"));
+    }
+}
@@ -0,0 +1,291 @@
+package Common;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Listener for the binary protocol described in {@link Rpc}.
+ *
+ * <p>One thread runs a selector over the listening socket and every client
+ * connection. Each complete request frame is handed to the {@link Dispatcher} on that
+ * thread and its response queued on the same connection, so a client may pipeline as
+ * many requests as it likes. Dispatch must therefore be quick and non-blocking: the
+ * services answer from their in-memory stores.</p>
+ *
+ * <p>A request that would have to wait, e.g. for the thread that owns the data it
+ * writes, is instead placed on an executor by the {@link Placement}. It then runs
+ * there on a copy of its payload, and its response is handed back to the selector
+ * thread and queued on its connection when ready, possibly after responses to later
+ * requests; clients match responses by correlation id.</p>
+ */
+public final class RpcServer implements Runnable {
+
+    /** Executes one request whose deadline, if any, has not passed. */
+    public interface Dispatcher {
+        /**
+         * @param op operation code from {@link Rpc}
+         * @param request payload, positioned at its first byte
+         * @param response buffer to write the response payload into
+         * @return HTTP-style status code
+         */
+        int dispatch(byte op, ByteBuffer request, ByteBuffer response);
+    }
+
+    /** Chooses where each request is dispatched. */
+    public interface Placement {
+        /**
+         * @param op operation code from {@link Rpc}
+         * @param request payload, positioned at its first byte; may be read with absolute
+         *                gets only
+         * @return executor to dispatch the request on, or null to dispatch it right away
+         *         on the selector thread
+         */
+        Executor executor(byte op, ByteBuffer request);
+    }
+
+    /** Response buffer of each thread dispatching placed requests. */
+    private static final ThreadLocal<ByteBuffer> placedPayload =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(Rpc.MAX_FRAME));
+
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final Dispatcher dispatcher;
+    private final Placement placement;
+    private final ByteBuffer payload = ByteBuffer.allocate(Rpc.MAX_FRAME);
+
+    /** Responses of placed requests, to be queued by the selector thread. */
+    private final ConcurrentLinkedQueue<Runnable> completed = new ConcurrentLinkedQueue<>();
+
+    private RpcServer(Selector selector, ServerSocketChannel server, Dispatcher dispatcher, Placement placement) {
+        this.selector = selector;
+        this.server = server;
+        this.dispatcher = dispatcher;
+        this.placement = placement;
+    }
+
+    /**
+     * Bind a listener and start its selector thread.
+     *
+     * @param ip address to bind
+     * @param port port to bind
+     * @param dispatcher executes requests
+     * @return the running server
+     * @throws IOException if the port cannot be bound
+     */
+    public static RpcServer start(String ip, int port, Dispatcher dispatcher) throws IOException {
+        return start(ip, port, dispatcher, (op, request) -> null);
+    }
+
+    /**
+     * Bind a listener whose requests are dispatched where {@code placement} says, and
+     * start its selector thread.
+     *
+     * @param ip address to bind
+     * @param port port to bind
+     * @param dispatcher executes requests
+     * @param placement chooses the executor of each request
+     * @return the running server
+     * @throws IOException if the port cannot be bound
+     */
+    public static RpcServer start(String ip, int port, Dispatcher dispatcher, Placement placement) throws IOException {
+        Selector selector = Selector.open();
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(ip, port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        RpcServer rpc = new RpcServer(selector, server, dispatcher, placement);
+        Thread thread = new Thread(rpc, "rpc-" + port);
+        thread.setDaemon(true);
+        thread.start();
+        return rpc;
+    }
+
+    @Override
+    public void run() {
+        while (server.isOpen()) {
+            try {
+                selector.select();
+                for (Runnable response; (response = completed.poll()) != null; ) {
+                    response.run();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            Connection connection = (Connection) key.attachment();
+                            if (key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.write();
+                            }
+                        }
+                    } catch (IOException e) {
+                        key.cancel();
+                        key.channel().close();
+                    }
+                }
+            } catch (IOException e) {
+                AccessLog.error("rpc", e);
+            }
+        }
+    }
+
+    /**
+     * Dispatch one request, answering a malformed one 400 and one whose response does
+     * not fit 500.
+     */
+    private int dispatch(byte op, ByteBuffer request, ByteBuffer response) {
+        try {
+            return dispatcher.dispatch(op, request, response);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            response.clear();
+            return 400;
+        } catch (BufferOverflowException e) {
+            response.clear();
+            return 500;
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(channel, key));
+    }
+
+    /** Buffers and frame state of one client connection. */
+    private final class Connection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+        private ByteBuffer out = ByteBuffer.allocate(64 * 1024);
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        void read() throws IOException {
+            if (channel.read(in) < 0) {
+                throw new IOException("closed");
+            }
+            in.flip();
+            while (in.remaining() >= 4) {
+                int length = in.getInt(in.position());
+                if (length < 17 || length > Rpc.MAX_FRAME) {
+                    throw new IOException("bad frame length " + length);
+                }
+                if (in.remaining() < 4 + length) {
+                    if (in.capacity() < 4 + length) {
+                        in = ByteBuffer.allocate(4 + length).put(in);
+                        in.flip();
+                    }
+                    break;
+                }
+                int end = in.position() + 4 + length;
+                in.getInt();
+                long correlation = in.getLong();
+                long deadline = in.getLong();
+                byte op = in.get();
+                ByteBuffer request = in.slice(in.position(), end - in.position());
+                in.position(end);
+                respond(correlation, deadline, op, request);
+            }
+            in.compact();
+            write();
+        }
+
+        private void respond(long correlation, long deadline, byte op, ByteBuffer request) {
+            payload.clear();
+            Executor executor = null;
+            int status;
+            if (Deadline.passed(deadline)) {
+                status = 504; // nobody waits for the answer any more
+            } else if ((executor = placement.executor(op, request)) == null) {
+                status = dispatch(op, request, payload);
+            } else {
+                place(executor, correlation, op, request);
+                return;
+            }
+            payload.flip();
+            queue(correlation, status, payload);
+        }
+
+        /** Dispatch a request on {@code executor} and queue its response from the selector thread. */
+        private void place(Executor executor, long correlation, byte op, ByteBuffer request) {
+            ByteBuffer copy = ByteBuffer.allocate(request.remaining()).put(request).flip();
+            executor.execute(() -> {
+                ByteBuffer response = placedPayload.get();
+                response.clear();
+                int dispatched;
+                try {
+                    dispatched = dispatch(op, copy, response);
+                } catch (RuntimeException e) {
+                    AccessLog.error("rpc", e);
+                    response.clear();
+                    dispatched = 500;
+                }
+                int status = dispatched;
+                response.flip();
+                ByteBuffer body = ByteBuffer.allocate(response.remaining()).put(response).flip();
+                completed.add(() -> {
+                    if (!key.isValid()) {
+                        return; // the connection closed meanwhile
+                    }
+                    queue(correlation, status, body);
+                    try {
+                        write();
+                    } catch (IOException e) {
+                        key.cancel();
+                        try {
+                            channel.close();
+                        } catch (IOException ignored) {
+                            // already failed
+                        }
+                    }
+                });
+                selector.wakeup();
+            });
+        }
+
+        /** Append a response frame to the output buffer. */
+        private void queue(long correlation, int status, ByteBuffer body) {
+            int length = 8 + 2 + body.remaining();
+            if (out.remaining() < 4 + length) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + 4 + length));
+                out.flip();
+                out = bigger.put(out);
+            }
+            out.putInt(length).putLong(correlation).putShort((short) status).put(body);
+        }
+
+        void write() throws IOException {
+            out.flip();
+            channel.write(out);
+            out.compact();
+            key.interestOps(out.position() > 0
+                    ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                    : SelectionKey.OP_READ);
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package Common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Parses a large seed file of records in parallel, for bulk-loading a store at startup.
+ *
+ * <p>The file is split into byte ranges that end on line boundaries; each range is
+ * memory-mapped and parsed by its own fork-join task, so no thread ever copies the
+ * file through a stream. Two formats are accepted, chosen by file extension:</p>
+ * <ul>
+ *   <li>{@code .csv} - the first line names the columns; fields may be quoted with
+ *       {@code "} and contain commas or doubled quotes;</li>
+ *   <li>anything else - NDJSON, one flat JSON object per line.</li>
+ * </ul>
+ *
+ * <p>Every line becomes a map of field name to value (as a string, the same shape
+ * {@code stringToMap} produces for request bodies) and is passed to a converter that
+ * validates it and returns the record to store, or null to reject it. Blank lines are
+ * skipped; malformed lines count as rejected.</p>
+ */
+public final class SeedLoader {
+
+    /** Largest byte range a single task maps and parses. */
+    static final long MAX_CHUNK = 256L << 20;
+
+    /** Outcome of a load: accepted records grouped by chunk, plus the rejected count. */
+    public static final class Result<T> {
+        /** Accepted records, one list per chunk of the file. */
+        public final List<ArrayList<T>> chunks;
+        /** Lines that could not be parsed or were refused by the converter. */
+        public final long rejected;
+
+        Result(List<ArrayList<T>> chunks, long rejected) {
+            this.chunks = chunks;
+            this.rejected = rejected;
+        }
+
+        /** @return total number of accepted records */
+        public long accepted() {
+            long n = 0;
+            for (ArrayList<T> chunk : chunks) {
+                n += chunk.size();
+            }
+            return n;
+        }
+    }
+
+    private SeedLoader() {
+    }
+
+    /**
+     * Parse a seed file on the common fork-join pool.
+     *
+     * @param file CSV or NDJSON seed file
+     * @param convert validates one parsed line and returns the record, or null to reject it;
+     *                called concurrently from pool threads
+     * @return accepted records and rejected count
+     * @throws IOException if the file cannot be read
+     */
+    public static <T> Result<T> load(Path file, Function<HashMap<String, String>, T> convert) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            boolean csv = file.getFileName().toString().toLowerCase().endsWith(".csv");
+
+            long start = 0;
+            String[] header = null;
+            if (csv) {
+                start = nextLine(channel, 0, size);
+                header = splitCsv(readRange(channel, 0, start)).toArray(new String[0]);
+            }
+
+            int parallelism = ForkJoinPool.commonPool().getParallelism();
+            int pieces = (int) Math.max(parallelism * 4L, (size - start) / MAX_CHUNK + 1);
+            ArrayList<long[]> ranges = new ArrayList<>();
+            long from = start;
+            for (int i = 1; i <= pieces && from < size; i++) {
+                long to = i == pieces ? size : nextLine(channel, Math.max(from, start + (size - start) * i / pieces), size);
+                if (to > from) {
+                    ranges.add(new long[] {from, to});
+                }
+                from = to;
+            }
+
+            AtomicLong rejected = new AtomicLong();
+            List<ArrayList<T>> chunks = ForkJoinPool.commonPool()
+                    .invoke(new Split<>(channel, ranges, 0, ranges.size(), header, convert, rejected));
+            return new Result<>(chunks, rejected.get());
+        }
+    }
+
+    /** Recursively halves the list of ranges until each task owns one. */
+    private static final class Split<T> extends RecursiveTask<List<ArrayList<T>>> {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final List<long[]> ranges;
+        private final int lo, hi;
+        private final String[] header;
+        private final Function<HashMap<String, String>, T> convert;
+        private final AtomicLong rejected;
+
+        Split(FileChannel channel, List<long[]> ranges, int lo, int hi, String[] header,
+              Function<HashMap<String, String>, T> convert, AtomicLong rejected) {
+            this.channel = channel;
+            this.ranges = ranges;
+            this.lo = lo;
+            this.hi = hi;
+            this.header = header;
+            this.convert = convert;
+            this.rejected = rejected;
+        }
+
+        @Override
+        protected List<ArrayList<T>> compute() {
+            if (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                Split<T> left = new Split<>(channel, ranges, lo, mid, header, convert, rejected);
+                left.fork();
+                List<ArrayList<T>> right = new Split<>(channel, ranges, mid, hi, header, convert, rejected).compute();
+                List<ArrayList<T>> out = new ArrayList<>(left.join());
+                out.addAll(right);
+                return out;
+            }
+            ArrayList<ArrayList<T>> out = new ArrayList<>();
+            if (hi > lo) {
+                try {
+                    out.add(parseRange(ranges.get(lo)));
+                } catch (IOException e) {
+                    throw new IllegalStateException("failed to read seed file", e);
+                }
+            }
+            return out;
+        }
+
+        private ArrayList<T> parseRange(long[] range) throws IOException {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, range[0], range[1] - range[0]);
+            ArrayList<T> out = new ArrayList<>();
+            byte[] bytes = new byte[4096];
+            int lineStart = 0;
+            int limit = map.limit();
+            for (int i = 0; i <= limit; i++) {
+                if (i < limit && map.get(i) != '\n') {
+                    continue;
+                }
+                int end = i;
+                if (end > lineStart && map.get(end - 1) == '\r') {
+                    end--;
+                }
+                if (end > lineStart) {
+                    int length = end - lineStart;
+                    if (length > bytes.length) {
+                        bytes = new byte[Math.max(length, bytes.length * 2)];
+                    }
+                    map.get(lineStart, bytes, 0, length);
+                    String line = new String(bytes, 0, length, StandardCharsets.UTF_8);
+                    T record = null;
+                    if (!line.isBlank()) {
+                        HashMap<String, String> fields = header != null ? csvRecord(header, line) : parseObject(line);
+                        record = fields != null ? convert.apply(fields) : null;
+                        if (record != null) {
+                            out.add(record);
+                        } else {
+                            rejected.incrementAndGet();
+                        }
+                    }
+                }
+                lineStart = i + 1;
+            }
+            return out;
+        }
+    }
+
+    /** Position just after the first newline at or after {@code pos}, or {@code size}. */
+    private static long nextLine(FileChannel channel, long pos, long size) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(8192);
+        while (pos < size) {
+            buf.clear();
+            int n = channel.read(buf, pos);
+            if (n <= 0) {
+                break;
+            }
+            for (int i = 0; i < n; i++) {
+                if (buf.get(i) == '\n') {
+                    return pos + i + 1;
+                }
+            }
+            pos += n;
+        }
+        return size;
+    }
+
+    private static String readRange(FileChannel channel, long from, long to) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate((int) (to - from));
+        while (buf.hasRemaining() && channel.read(buf, from + buf.position()) > 0) {
+            // keep reading
+        }
+        buf.flip();
+        return StandardCharsets.UTF_8.decode(buf).toString().trim();
+    }
+
+    private static HashMap<String, String> csvRecord(String[] header, String line) {
+        ArrayList<String> values = splitCsv(line);
+        if (values.size() != header.length) {
+            return null;
+        }
+        HashMap<String, String> fields = new HashMap<>();
+        for (int i = 0; i < header.length; i++) {
+            fields.put(header[i], values.get(i));
+        }
+        return fields;
+    }
+
+    /**
+     * Split one CSV line into fields, honouring double-quoted fields.
+     *
+     * @param line CSV line without its terminator
+     * @return field values, unquoted
+     */
+    static ArrayList<String> splitCsv(String line) {
+        ArrayList<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString().trim());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString().trim());
+        return fields;
+    }
+
+    /**
+     * Parse one flat JSON object. String values are unescaped; numbers, booleans and
+     * null are kept as their literal text.
+     *
+     * @param json JSON object text
+     * @return map of keys to values, or null if the text is not a flat JSON object
+     */
+    public static HashMap<String, String> parseObject(String json) {
+        HashMap<String, String> out = new HashMap<>();
+        int[] pos = {skipSpace(json, 0)};
+        if (pos[0] >= json.length() || json.charAt(pos[0]) != '{') {
+            return null;
+        }
+        pos[0] = skipSpace(json, pos[0] + 1);
+        if (pos[0] < json.length() && json.charAt(pos[0]) == '}') {
+            return out;
+        }
+        while (pos[0] < json.length()) {
+            String key = parseString(json, pos);
+            if (key == null) {
+                return null;
+            }
+            pos[0] = skipSpace(json, pos[0]);
+            if (pos[0] >= json.length() || json.charAt(pos[0]) != ':') {
+                return null;
+            }
+            pos[0] = skipSpace(json, pos[0] + 1);
+            String value;
+            if (pos[0] < json.length() && json.charAt(pos[0]) == '"') {
+                value = parseString(json, pos);
+            } else {
+                int start = pos[0];
+                while (pos[0] < json.length() && ",} \t".indexOf(json.charAt(pos[0])) < 0) {
+                    pos[0]++;
+                }
+                value = json.substring(start, pos[0]);
+            }
+            if (value == null || value.isEmpty()) {
+                return null;
+            }
+            out.put(key, value);
+            pos[0] = skipSpace(json, pos[0]);
+            if (pos[0] >= json.length()) {
+                return null;
+            }
+            char c = json.charAt(pos[0]);
+            if (c == '}') {
+                return skipSpace(json, pos[0] + 1) == json.length() ? out : null;
+            }
+            if (c != ',') {
+                return null;
+            }
+            pos[0] = skipSpace(json, pos[0] + 1);
+        }
+        return null;
+    }
+
+    private static String parseString(String json, int[] pos) {
+        if (pos[0] >= json.length() || json.charAt(pos[0]) != '"') {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = pos[0] + 1; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (c == '"') {
+                pos[0] = i + 1;
+                return sb.toString();
+            }
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            if (++i >= json.length()) {
+                return null;
+            }
+            char e = json.charAt(i);
+            switch (e) {
+                case 'n': sb.append('\n'); break;
+                case 't': sb.append('\t'); break;
+                case 'r': sb.append('\r'); break;
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'u':
+                    if (i + 4 >= json.length()) {
+                        return null;
+                    }
+                    try {
+                        sb.append((char) Integer.parseInt(json.substring(i + 1, i + 5), 16));
+                    } catch (NumberFormatException ex) {
+                        return null;
+                    }
+                    i += 4;
+                    break;
+                default: sb.append(e);
+            }
+        }
+        return null;
+    }
+
+    private static int skipSpace(String s, int i) {
+        while (i < s.length() && Character.isWhitespace(s.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+}
@@ -0,0 +1,87 @@
+package Common;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for one write to a service's in-memory store, lock wait
+ * included. Its duration also counts towards the {@link RequestEvent#store} phase of
+ * the request it belongs to.
+ *
+ * <pre>
+ *   StoreEvent event = StoreEvent.begin("product", "update", id);
+ *   ...
+ *   StoreEvent.end(event, 200);
+ * </pre>
+ *
+ * <p>{@link #begin} returns null when neither event is being recorded, and
+ * {@link #end} ignores null, so an unrecorded write costs two flag checks.</p>
+ */
+@Name("microservices.StoreOperation")
+@Label("Store Operation")
+@Category("Microservices")
+@Description("A write to a service's in-memory store")
+@StackTrace(false)
+public final class StoreEvent extends Event {
+
+    private static final EventType TYPE = EventType.getEventType(StoreEvent.class);
+
+    @Label("Service")
+    public String service;
+
+    @Label("Operation")
+    public String operation;
+
+    @Label("ID")
+    public int id;
+
+    @Label("Status")
+    public int status;
+
+    /** {@link System#nanoTime()} at {@link #begin}, for the request's store phase; not recorded. */
+    private transient long started;
+
+    /**
+     * Start timing a store write.
+     *
+     * @param service service name, e.g. {@code "product"}
+     * @param operation e.g. {@code "update"} or {@code "reserve"}
+     * @param id id of the record written
+     * @return the event to pass to {@link #end}, or null when nothing is being recorded
+     */
+    public static StoreEvent begin(String service, String operation, int id) {
+        if (!TYPE.isEnabled() && !RequestEvent.active()) {
+            return null;
+        }
+        StoreEvent event = new StoreEvent();
+        event.service = service;
+        event.operation = operation;
+        event.id = id;
+        event.started = System.nanoTime();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Finish timing a store write and record it.
+     *
+     * @param event value of {@link #begin}, or null
+     * @param status outcome as an HTTP status code
+     */
+    public static void end(StoreEvent event, int status) {
+        if (event == null) {
+            return;
+        }
+        event.end();
+        RequestEvent.store(event.started);
+        if (event.shouldCommit()) {
+            event.status = status;
+            event.commit();
+        }
+    }
+}
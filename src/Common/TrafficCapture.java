@@ -0,0 +1,348 @@
+package Common;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Process-wide capture of incoming requests to a compact binary file, for replaying
+ * real traffic against a test deployment (see {@code Launcher.ReplayLauncher}).
+ *
+ * <p>The file starts with {@link #MAGIC} and holds one record per request, in the
+ * order requests complete, all integers big-endian:</p>
+ * <pre>
+ *   int    length of the rest of the record
+ *   long   arrival, microseconds since the epoch
+ *   int    time to answer, microseconds
+ *   short  status, or -1 if none was sent
+ *   byte   length, then service name, e.g. "order"
+ *   byte   length, then method
+ *   short  length, then path and query as sent
+ *   int    length, then body
+ * </pre>
+ *
+ * <p>As in {@link AccessLog}, a request thread only claims a slot in a fixed ring with
+ * one compare-and-set and stores references to what the request already holds; one
+ * writer thread encodes the records and appends them in batches. The body is read
+ * before the handler runs and handed on to it from memory. When the ring is full,
+ * requests go uncaptured and are counted, and once the file reaches
+ * {@code capture_max_mb} capturing stops; both are reported at exit.</p>
+ *
+ * <p>Capturing starts when {@link #configure} finds {@code capture_file} in a
+ * service's config. In a process hosting several services the first file opened is
+ * shared, and the service name tells their requests apart.</p>
+ */
+public final class TrafficCapture {
+
+    /** First bytes of a capture file. */
+    public static final byte[] MAGIC = "MSCAP1\n".getBytes(StandardCharsets.US_ASCII);
+
+    /** Requests the ring holds; a power of two. */
+    static final int CAPACITY = 1 << 12;
+
+    /** Default for {@code capture_max_mb}: size at which capturing stops. */
+    static final long DEFAULT_MAX_MB = 1024;
+
+    /** Size of the writer's staging buffer; a record that does not fit gets its own. */
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /** Pause of the writer while the ring is empty. */
+    private static final long IDLE_NANOS = 1_000_000;
+
+    private static final int MASK = CAPACITY - 1;
+
+    /** Arrival times are this plus elapsed {@code nanoTime}, for microsecond spacing. */
+    private static final long EPOCH_MICROS = System.currentTimeMillis() * 1000;
+    private static final long EPOCH_NANOS = System.nanoTime();
+
+    // Slot i's fields: LONGS[3i..3i+2] = arrival in micros, duration in micros, status;
+    // REFS[4i..4i+3] = service, method, path and query, body
+    private static final long[] LONGS = new long[CAPACITY * 3];
+    private static final Object[] REFS = new Object[CAPACITY * 4];
+
+    /** Per slot: the claim position it is free for, or that position + 1 once filled. */
+    private static final AtomicLongArray SEQUENCE = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong TAIL = new AtomicLong();
+    private static final AtomicLong DROPPED = new AtomicLong();
+
+    private static volatile boolean enabled;
+
+    // Writer side
+    private static long head;
+    private static FileChannel file;
+    private static Path path;
+    private static long maxBytes;
+    private static long size;
+    private static long written;
+    private static ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            SEQUENCE.set(i, i);
+        }
+    }
+
+    private TrafficCapture() {
+    }
+
+    /**
+     * Start capturing to the file named by a service's config section, if it names one
+     * and no file is open yet. An existing file is replaced.
+     *
+     * @param config the service's section of config.json
+     * @throws IOException if the file cannot be created
+     */
+    public static synchronized void configure(HashMap<String, String> config) throws IOException {
+        String name = config.get("capture_file");
+        if (name == null || file != null) {
+            return;
+        }
+        path = Path.of(name);
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        file.write(ByteBuffer.wrap(MAGIC));
+        size = MAGIC.length;
+        maxBytes = Long.parseLong(config.getOrDefault("capture_max_mb", String.valueOf(DEFAULT_MAX_MB))) << 20;
+        enabled = true;
+
+        Thread writer = new Thread(TrafficCapture::drainForever, "traffic-capture");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(TrafficCapture::finish, "traffic-capture-flush"));
+        System.out.println("Capturing requests to " + path);
+    }
+
+    /**
+     * @param service name recorded with each request, e.g. {@code "order"}
+     * @return a filter capturing every request of the context it is added to
+     */
+    public static Filter filter(String service) {
+        return new Filter() {
+            @Override
+            public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+                if (!enabled) {
+                    chain.doFilter(exchange);
+                    return;
+                }
+                long arrived = System.nanoTime();
+                byte[] body = exchange.getRequestBody().readAllBytes();
+                exchange.setStreams(new ByteArrayInputStream(body), null);
+                try {
+                    chain.doFilter(exchange);
+                } finally {
+                    String query = exchange.getRequestURI().getRawQuery();
+                    String target = exchange.getRequestURI().getRawPath() + (query != null ? "?" + query : "");
+                    capture(service, exchange.getRequestMethod(), target, body, arrived,
+                            exchange.getResponseCode());
+                }
+            }
+
+            @Override
+            public String description() {
+                return "traffic capture";
+            }
+        };
+    }
+
+    private static void capture(String service, String method, String target, byte[] body, long arrived, int status) {
+        long pos = claim();
+        if (pos < 0) {
+            return;
+        }
+        int slot = (int) pos & MASK;
+        LONGS[slot * 3] = EPOCH_MICROS + (arrived - EPOCH_NANOS) / 1000;
+        LONGS[slot * 3 + 1] = (System.nanoTime() - arrived) / 1000;
+        LONGS[slot * 3 + 2] = status;
+        REFS[slot * 4] = service;
+        REFS[slot * 4 + 1] = method;
+        REFS[slot * 4 + 2] = target;
+        REFS[slot * 4 + 3] = body;
+        SEQUENCE.set(slot, pos + 1);
+    }
+
+    /** Claim the next free slot; -1, counted as dropped, if the ring is full. */
+    private static long claim() {
+        while (true) {
+            long pos = TAIL.get();
+            long seq = SEQUENCE.get((int) pos & MASK);
+            if (seq == pos) {
+                if (TAIL.compareAndSet(pos, pos + 1)) {
+                    return pos;
+                }
+            } else if (seq < pos) {
+                DROPPED.incrementAndGet();
+                return -1;
+            }
+        }
+    }
+
+    // Writer side: only the writer thread, and the shutdown hook at exit, run the code below.
+
+    private static void drainForever() {
+        while (true) {
+            if (!drain()) {
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+    }
+
+    /** Write out up to a ring's worth of captured requests; false if there were none. */
+    private static synchronized boolean drain() {
+        boolean any = false;
+        try {
+            for (int n = 0; n < CAPACITY; n++) {
+                int slot = (int) head & MASK;
+                if (SEQUENCE.get(slot) != head + 1) {
+                    break;
+                }
+                if (enabled) {
+                    encode(slot);
+                }
+                Arrays.fill(REFS, slot * 4, slot * 4 + 4, null);
+                SEQUENCE.set(slot, head + CAPACITY);
+                head++;
+                any = true;
+            }
+            if (any) {
+                flush();
+            }
+        } catch (IOException | RuntimeException e) {
+            enabled = false;
+            AccessLog.error("capture", e);
+        }
+        return any;
+    }
+
+    private static void encode(int slot) throws IOException {
+        byte[] service = ((String) REFS[slot * 4]).getBytes(StandardCharsets.UTF_8);
+        byte[] method = ((String) REFS[slot * 4 + 1]).getBytes(StandardCharsets.UTF_8);
+        byte[] target = ((String) REFS[slot * 4 + 2]).getBytes(StandardCharsets.UTF_8);
+        byte[] body = (byte[]) REFS[slot * 4 + 3];
+        int targetLength = Math.min(target.length, 0xFFFF);
+        int length = 8 + 4 + 2 + 1 + service.length + 1 + method.length + 2 + targetLength + 4 + body.length;
+        if (size + 4 + length > maxBytes) {
+            enabled = false;
+            System.out.println("Capture file " + path + " is full; capturing stopped");
+            return;
+        }
+        if (buffer.remaining() < 4 + length) {
+            flush();
+            if (buffer.capacity() < 4 + length) {
+                buffer = ByteBuffer.allocate(4 + length);
+            }
+        }
+        buffer.putInt(length)
+                .putLong(LONGS[slot * 3])
+                .putInt((int) Math.min(LONGS[slot * 3 + 1], Integer.MAX_VALUE))
+                .putShort((short) LONGS[slot * 3 + 2])
+                .put((byte) service.length).put(service)
+                .put((byte) method.length).put(method)
+                .putShort((short) targetLength).put(target, 0, targetLength)
+                .putInt(body.length).put(body);
+        size += 4 + length;
+        written++;
+    }
+
+    private static void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            file.write(buffer);
+        }
+        buffer.clear();
+        if (buffer.capacity() > BUFFER_SIZE) {
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    }
+
+    /** Write out what is left at exit and report the totals. */
+    private static void finish() {
+        drain();
+        System.out.println("Captured " + written + " requests to " + path + " (" + DROPPED.get() + " dropped)");
+    }
+
+    /** One captured request. */
+    public static final class Request {
+        /** Arrival, microseconds since the epoch. */
+        public final long arrivedMicros;
+        /** Time to answer, microseconds. */
+        public final int durationMicros;
+        /** Status answered, or -1. */
+        public final int status;
+        public final String service;
+        public final String method;
+        /** Path and query, as sent. */
+        public final String target;
+        public final byte[] body;
+
+        Request(long arrivedMicros, int durationMicros, int status, String service, String method,
+                String target, byte[] body) {
+            this.arrivedMicros = arrivedMicros;
+            this.durationMicros = durationMicros;
+            this.status = status;
+            this.service = service;
+            this.method = method;
+            this.target = target;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Read a capture file. A record cut short at the end, e.g. by a crash, is ignored.
+     *
+     * @param in the file's contents
+     * @return its requests, in file order
+     * @throws IOException if it cannot be read or is not a capture file
+     */
+    public static ArrayList<Request> read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        byte[] magic = new byte[MAGIC.length];
+        data.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("not a capture file");
+        }
+        ArrayList<Request> requests = new ArrayList<>();
+        while (true) {
+            try {
+                byte[] record = new byte[data.readInt()];
+                data.readFully(record);
+                ByteBuffer fields = ByteBuffer.wrap(record);
+                long arrived = fields.getLong();
+                int duration = fields.getInt();
+                int status = fields.getShort();
+                String service = string(fields, fields.get() & 0xFF);
+                String method = string(fields, fields.get() & 0xFF);
+                String target = string(fields, fields.getShort() & 0xFFFF);
+                byte[] body = new byte[fields.getInt()];
+                fields.get(body);
+                requests.add(new Request(arrived, duration, status, service, method, target, body));
+            } catch (EOFException e) {
+                return requests;
+            }
+        }
+    }
+
+    private static String string(ByteBuffer in, int length) {
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
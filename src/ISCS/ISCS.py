@@ -6,12 +6,16 @@ requests between services (User, Product, Order). It exposes a
 to perform HTTP requests to the downstream services.
 
 The module expects a `config.json` file in the current working
-directory with service addresses.
+directory with service addresses. `--port N` runs an extra instance on
+another port; the Order service balances over the instances listed under
+`endpoints` in its config.
 """
 
 from http.server import BaseHTTPRequestHandler, HTTPServer
 import json
 import re
+import sys
+import time
 import requests
 from typing import Union
 
@@ -25,11 +29,22 @@ user_port = config["UserService"]["port"]
 product_ip = config["ProductService"]["ip"]
 product_port = config["ProductService"]["port"]
 
+# Read-only followers of the Product service, as "ip:port" entries separated by
+# spaces. Product reads are spread across them in turn; writes always go to the
+# primary above.
+product_replicas = [
+    (address.rsplit(":", 1)[0], int(address.rsplit(":", 1)[1]))
+    for address in config["ProductService"].get("replicas", "").split()
+]
+next_replica = 0
+
 order_ip = config["OrderService"]["ip"]
 order_port = config["OrderService"]["port"]
 
 ISCS_IP = config["InterServiceCommunication"]["ip"]
 ISCS_PORT = config["InterServiceCommunication"]["port"]
+if "--port" in sys.argv:
+    ISCS_PORT = int(sys.argv[sys.argv.index("--port") + 1])
 
 class MyHandler(BaseHTTPRequestHandler):
     """HTTP request handler for ISCS.
@@ -43,16 +58,52 @@ class MyHandler(BaseHTTPRequestHandler):
         """Override BaseHTTPRequestHandler.log_message to silence access logs."""
         pass
 
+    def relay(self, result):
+        """Send a backend response back to the caller.
+
+        The status code, ETag and replica lag are kept; a 304 is relayed without
+        a body.
+        """
+        self.send_response(result["status_code"])
+        if result.get("etag"):
+            self.send_header("ETag", result["etag"])
+        if result.get("lag"):
+            self.send_header("X-Replica-Lag-Ms", result["lag"])
+        if result["status_code"] == 304:
+            self.end_headers()
+            return
+        self.send_header("Content-Type", "application/json")
+        self.end_headers()
+        self.wfile.write(result["response_json"].encode("utf-8"))
+
+    def reject_late(self):
+        """Answer 504: the caller's deadline passed while the request queued here."""
+        self.send_response(504)
+        self.send_header("Content-Type", "application/json")
+        self.end_headers()
+        self.wfile.write(b'{"status": "Deadline Exceeded"}')
+
     def do_GET(self):
         """Handle incoming GET requests.
 
-        Valid paths: /user/<id> and /product/<id>. The method expects a
-        JSON body containing an "id" field which must match the id in
-        the path. On success the response body from the backend service
+        Valid paths: /user/<id>, /user?email=<email>, /user?username=<name>,
+        /product/<id>, /product/search?q=<text>, /product?<range> and /health.
+        A request whose X-Deadline has passed is answered 504 unforwarded. For the id paths the method expects a JSON body
+        containing an "id" field which must match the id in the path. On success the response body from the backend service
         is proxied back to the client with the same status code.
         """
 
-        if re.match(r"^/user/\d+$", self.path):
+        if deadline_passed(self.headers):
+            self.reject_late()
+
+        elif self.path == "/health":
+            # Probed by the Order service's load balancer
+            self.send_response(200)
+            self.send_header("Content-Type", "application/json")
+            self.end_headers()
+            self.wfile.write(b"{}")
+
+        elif re.match(r"^/user/\d+$", self.path):
             num = int(self.path.split("/")[-1])
 
             content_length = int(self.headers.get("Content-Length", 0))
@@ -79,14 +130,11 @@ class MyHandler(BaseHTTPRequestHandler):
                 user_ip,
                 user_port,
                 f"user/{num}",
-                {}
+                {},
+                headers=conditional_headers(self.headers)
             )
 
-
-            self.send_response(output_from_server["status_code"])
-            self.send_header("Content-Type", "application/json")
-            self.end_headers()
-            self.wfile.write(output_from_server["response_json"].encode("utf-8"))
+            self.relay(output_from_server)
 
         elif re.match(r"^/product/\d+$", self.path):
             num = int(self.path.split("/")[-1])
@@ -112,19 +160,34 @@ class MyHandler(BaseHTTPRequestHandler):
                     self.end_headers()
                     return
 
-            output_from_server = get_json(
-                product_ip,
-                product_port,
+            output_from_server = get_product(
                 f"product/{num}",
-                {}
+                headers=conditional_headers(self.headers)
             )
 
+            self.relay(output_from_server)
+
+
+        elif re.match(r"^/user\?", self.path):
+            # Secondary index lookups: /user?email=... or /user?username=...
+            output_from_server = get_json(
+                user_ip,
+                user_port,
+                self.path.lstrip("/"),
+                {}
+            )
 
             self.send_response(output_from_server["status_code"])
             self.send_header("Content-Type", "application/json")
             self.end_headers()
             self.wfile.write(output_from_server["response_json"].encode("utf-8"))
 
+        elif re.match(r"^/product(/search)?(\?|$)", self.path):
+            # Catalog search (/product/search?q=...) and range listing
+            # (/product?from=...&to=...&min_price=...&max_price=...)
+            output_from_server = get_product(self.path.lstrip("/"))
+
+            self.relay(output_from_server)
 
         else:
             self.send_response(404)
@@ -136,9 +199,13 @@ class MyHandler(BaseHTTPRequestHandler):
         Supported endpoints: /user and /product. The method validates the
         JSON payload for required fields and forwards the payload to the
         corresponding backend service. The backend response is proxied
-        back to the client.
+        back to the client. A request whose X-Deadline has passed is
+        answered 504 unforwarded.
         """
-        if self.path == "/user":
+        if deadline_passed(self.headers):
+            self.reject_late()
+
+        elif self.path == "/user":
             content_length = int(self.headers.get("Content-Length", 0))
             if content_length == 0:
                 self.send_response(400)
@@ -182,12 +249,10 @@ class MyHandler(BaseHTTPRequestHandler):
                 user_ip,
                 user_port,
                 "/user",
-                data
+                data,
+                headers=conditional_headers(self.headers)
             )
-            self.send_response(result["status_code"])
-            self.send_header("Content-Type", "application/json")
-            self.end_headers()
-            self.wfile.write(result["response_json"].encode("utf-8"))
+            self.relay(result)
 
         elif self.path == "/product":
             content_length = int(self.headers.get("Content-Length", 0))
@@ -209,21 +274,45 @@ class MyHandler(BaseHTTPRequestHandler):
             command = data.get("command")
             id_val = data.get("id")
 
-            if command is None or id_val is None:
+            # confirm and release name a stock hold rather than a product
+            if command in ["confirm", "release"]:
+                if not str(data.get("hold", "")).isdigit():
+                    self.send_response(400)
+                    self.end_headers()
+                    return
+            elif command is None or id_val is None:
                 self.send_response(400)
                 self.end_headers()
                 return
-
-            if not str(id_val).isdigit():
+            elif not str(id_val).isdigit():
                 self.send_response(400)
                 self.end_headers()
                 return
-            if command in ["create", "delete"]:
+
+            if command in ["confirm", "release"]:
+                pass
+            elif command in ["create", "delete"]:
                 if not (data["name"] and (command == "delete" or data["description"]) and data["price"] and data["quantity"]):
                     self.send_response(400)
                     self.end_headers()
                     return
-            elif command == "update":
+            elif command == "reserve":
+                if data.get("quantity") is None:
+                    self.send_response(400)
+                    self.end_headers()
+                    return
+            elif command == "hold":
+                if not str(data.get("quantity", "")).isdigit() or (
+                        data.get("ttl_ms") is not None and not str(data["ttl_ms"]).isdigit()):
+                    self.send_response(400)
+                    self.end_headers()
+                    return
+            elif command == "reserve batch":
+                if not data.get("quantities"):
+                    self.send_response(400)
+                    self.end_headers()
+                    return
+            elif command in ["update", "hot", "cold"]:
                 pass
             else:
                 self.send_response(400)
@@ -233,12 +322,10 @@ class MyHandler(BaseHTTPRequestHandler):
                 product_ip,
                 product_port,
                 "/product",
-                data
+                data,
+                headers=conditional_headers(self.headers)
             )
-            self.send_response(result["status_code"])
-            self.send_header("Content-Type", "application/json")
-            self.end_headers()
-            self.wfile.write(result["response_json"].encode("utf-8"))
+            self.relay(result)
 
         elif self.path == "/order":
             pass
@@ -248,17 +335,47 @@ class MyHandler(BaseHTTPRequestHandler):
             self.end_headers()
 
 
-def get_json(ip: str, port: int, endpoint: str, params: dict, timeout=10)-> Union[dict, str]:
+def conditional_headers(headers) -> dict:
+    """Pick the headers to forward: If-None-Match, If-Match and the caller's X-Deadline."""
+    return {name: headers[name] for name in ("If-None-Match", "If-Match", "X-Deadline") if headers.get(name)}
+
+
+def deadline_passed(headers) -> bool:
+    """True if the request carries an X-Deadline (epoch milliseconds) that has passed."""
+    deadline = headers.get("X-Deadline")
+    return deadline is not None and deadline.strip().isdigit() and int(deadline) <= time.time() * 1000
+
+
+def get_product(endpoint: str, headers=None) -> Union[dict, str]:
+    """GET from the Product service, reading from the next replica if any are configured.
+
+    A replica that cannot be reached or answers 503 (too far behind the primary)
+    is skipped and the read goes to the primary instead.
+    """
+    global next_replica
+    if product_replicas:
+        ip, port = product_replicas[next_replica % len(product_replicas)]
+        next_replica += 1
+        result = get_json(ip, port, endpoint, {}, headers=headers)
+        if isinstance(result, dict) and result["status_code"] != 503:
+            return result
+    return get_json(product_ip, product_port, endpoint, {}, headers=headers)
+
+
+def get_json(ip: str, port: int, endpoint: str, params: dict, timeout=10, headers=None)-> Union[dict, str]:
     """Perform an HTTP GET to a backend service and return a dict.
 
-    Returns a dictionary with keys ``status_code`` and ``response_json`` on
-    success. On network errors returns a string describing the error.
+    Returns a dictionary with keys ``status_code``, ``response_json``,
+    ``etag`` and ``lag`` (None if the backend sent no ETag or
+    X-Replica-Lag-Ms) on success. On network errors returns a string
+    describing the error.
 
     :param ip: target host
     :param port: target port
     :param endpoint: path on the target (without leading slash is tolerated)
     :param params: query parameters or body payload
     :param timeout: request timeout in seconds
+    :param headers: extra request headers, e.g. If-None-Match
     :return: dict or error string
     """
     url = f"http://{ip}:{port}/{endpoint}"
@@ -266,19 +383,23 @@ def get_json(ip: str, port: int, endpoint: str, params: dict, timeout=10)-> Unio
         response = requests.get(
             url,
             params=params,
-            timeout=timeout
+            timeout=timeout,
+            headers=headers
         )
         return {
             "status_code": response.status_code,
-            "response_json": response.text
+            "response_json": response.text,
+            "etag": response.headers.get("ETag"),
+            "lag": response.headers.get("X-Replica-Lag-Ms")
         }
     except requests.exceptions.RequestException as e:
         return "error: " + str(e)
 
-def post_json(ip: str, port: int, endpoint: str, payload: dict, timeout=10):
+def post_json(ip: str, port: int, endpoint: str, payload: dict, timeout=10, headers=None):
     """Perform an HTTP POST to a backend service and return a dict.
 
-    Returns a dictionary with keys ``status_code`` and ``response_json`` on
+    Returns a dictionary with keys ``status_code``, ``response_json`` and
+    ``etag`` (None if the backend sent none) on
     success. On network errors returns None.
 
     :param ip: target host
@@ -286,14 +407,16 @@ def post_json(ip: str, port: int, endpoint: str, payload: dict, timeout=10):
     :param endpoint: path on the target (should start with '/')
     :param payload: JSON-serializable payload to POST
     :param timeout: request timeout in seconds
+    :param headers: extra request headers, e.g. If-Match
     :return: dict or None on network error
     """
     url = f"http://{ip}:{port}{endpoint}"
     try:
-        response = requests.post(url, json=payload, timeout=timeout)
+        response = requests.post(url, json=payload, timeout=timeout, headers=headers)
         return {
             "status_code": response.status_code,
-            "response_json": response.text
+            "response_json": response.text,
+            "etag": response.headers.get("ETag")
         }
     except requests.exceptions.RequestException as e:
         return None
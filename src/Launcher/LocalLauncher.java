@@ -0,0 +1,90 @@
+package Launcher;
+
+import com.sun.net.httpserver.HttpHandler;
+import Common.LocalExchange;
+import OrderService.OrderServer;
+import ProductService.ProductServer;
+import UserService.UserServer;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Runs the User, Product and Order services together in a single JVM.
+ *
+ * <p>Only the Order service binds a port. Its calls to the User and Product services,
+ * which normally go over HTTP through the ISCS, are handed straight to their handlers
+ * on the calling thread through a {@link LocalExchange}; status codes, headers (ETags
+ * included) and bodies are the same as over the network. The ISCS, the User and Product
+ * ports and their config entries are not used.</p>
+ *
+ * <p>Usage: {@code LocalLauncher config.json [--users seed_file] [--products seed_file]}</p>
+ */
+public class LocalLauncher {
+
+    /**
+     * Start all three services in this JVM.
+     *
+     * @param args args[0] is the path to config.json, optionally followed by
+     *             {@code --users <seed file>} and {@code --products <seed file>}
+     * @throws IOException if the config or a seed file cannot be read, or the Order port cannot be bound
+     */
+    public static void main(String[] args) throws IOException {
+        String config = args[0];
+        String userSeed = null;
+        String productSeed = null;
+        for (int i = 1; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--users" -> userSeed = args[i + 1];
+                case "--products" -> productSeed = args[i + 1];
+                default -> throw new IllegalArgumentException("unknown option " + args[i]);
+            }
+        }
+
+        UserServer.init(config, userSeed);
+        ProductServer.init(config, productSeed);
+        OrderServer.init(config);
+        OrderServer.useTransport(new InProcessTransport(UserServer.handler(), ProductServer.handler()));
+        OrderServer.start();
+        System.out.println("User and Product services running in-process");
+    }
+
+    /**
+     * Routes OrderServer's downstream requests to the in-process handlers the same way
+     * the ISCS routes them: by the first path segment.
+     */
+    static class InProcessTransport implements OrderServer.Transport {
+        private final HttpHandler users;
+        private final HttpHandler products;
+
+        InProcessTransport(HttpHandler users, HttpHandler products) {
+            this.users = users;
+            this.products = products;
+        }
+
+        @Override
+        public HashMap<String, String> send(String endpoint, String method, String jsonBody,
+                                            HashMap<String, String> headers) {
+            HttpHandler handler = under(endpoint, "/user") ? users
+                    : under(endpoint, "/product") ? products
+                    : null;
+            if (handler == null) {
+                HashMap<String, String> retVal = new HashMap<>();
+                retVal.put("status", "404");
+                retVal.put("body", "{}");
+                return retVal;
+            }
+            return LocalExchange.call(handler, method, endpoint, jsonBody, headers);
+        }
+
+        private static boolean under(String endpoint, String context) {
+            if (!endpoint.startsWith(context)) {
+                return false;
+            }
+            if (endpoint.length() == context.length()) {
+                return true;
+            }
+            char next = endpoint.charAt(context.length());
+            return next == '/' || next == '?';
+        }
+    }
+}
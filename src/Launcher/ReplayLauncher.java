@@ -0,0 +1,273 @@
+package Launcher;
+
+import Common.TrafficCapture;
+import OrderService.OrderServer;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a {@link TrafficCapture} file against the services named in a config, to
+ * load a deployment with the traffic mix it saw in production.
+ *
+ * <p>Requests are sent to the service they were captured on, by their recorded
+ * method, path and body, in order of arrival. At {@code --speed 1} (the default) each
+ * is sent at its original offset from the first, open loop, so requests overlap as
+ * they did when captured whatever the deployment's latency; {@code --speed 4} keeps
+ * the spacing but four times as tight. {@code --speed 0} sends them as fast as
+ * possible from {@code --clients} threads, each sending its next request once the last
+ * is answered; by default as many threads as the capture ever had requests in
+ * flight.</p>
+ *
+ * <p>It then prints the throughput, latency percentiles beside the captured ones,
+ * status counts and how many statuses differ from the capture, and, when timed, how
+ * late requests went out. GET and HEAD requests are sent without a body.</p>
+ *
+ * <p>Usage: {@code ReplayLauncher config.json capture_file [--speed x] [--clients n] [--services order,user]}</p>
+ */
+public class ReplayLauncher {
+
+    /** Longest wait for a response; a streaming request held open longer counts as failed. */
+    static final int TIMEOUT_MILLIS = 30_000;
+
+    /** Config section of each service name recorded in a capture. */
+    static final Map<String, String> SECTIONS = Map.of(
+            "user", "UserService", "product", "ProductService", "order", "OrderService");
+
+    /**
+     * Replay a capture and report on it.
+     *
+     * @param args args[0] is the path to config.json and args[1] the capture file,
+     *             optionally followed by {@code --speed <x>}, {@code --clients <n>} and
+     *             {@code --services <names>}
+     * @throws IOException if the config or capture cannot be read
+     * @throws InterruptedException if interrupted while replaying
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Path capture = Path.of(args[1]);
+        double speed = 1;
+        int clients = 0;
+        HashSet<String> services = null;
+        for (int i = 2; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--speed" -> speed = Double.parseDouble(args[i + 1]);
+                case "--clients" -> clients = Integer.parseInt(args[i + 1]);
+                case "--services" -> services = new HashSet<>(Arrays.asList(args[i + 1].split(",")));
+                default -> throw new IllegalArgumentException("unknown option " + args[i]);
+            }
+        }
+
+        HashMap<String, HashMap<String, String>> config = OrderServer.parseConfig(Files.readString(Path.of(args[0])));
+        ArrayList<TrafficCapture.Request> requests;
+        try (InputStream in = Files.newInputStream(capture)) {
+            requests = TrafficCapture.read(new BufferedInputStream(in));
+        }
+        HashSet<String> wanted = services;
+        requests.removeIf(request -> (wanted != null && !wanted.contains(request.service))
+                || config.get(SECTIONS.get(request.service)) == null);
+        if (requests.isEmpty()) {
+            System.out.println("Nothing to replay in " + capture);
+            return;
+        }
+        // records are written as requests complete; replay them as they arrived
+        requests.sort(Comparator.comparingLong(request -> request.arrivedMicros));
+
+        HashMap<String, String> bases = new HashMap<>();
+        SECTIONS.forEach((service, section) -> {
+            HashMap<String, String> settings = config.get(section);
+            if (settings != null) {
+                bases.put(service, "http://" + settings.get("ip") + ":" + settings.get("port"));
+            }
+        });
+        int capturedPeak = peakInFlight(requests);
+        if (clients <= 0) {
+            clients = capturedPeak;
+        }
+        System.setProperty("http.maxConnections", String.valueOf(Math.max(clients, capturedPeak)));
+
+        Replay replay = new Replay(requests, bases);
+        long started = System.nanoTime();
+        if (speed > 0) {
+            replay.timed(speed);
+        } else {
+            replay.fast(clients);
+        }
+        long elapsed = System.nanoTime() - started;
+        replay.report(capture, speed, clients, elapsed, capturedPeak);
+        System.exit(0);
+    }
+
+    /** @return the most requests the capture had in flight at once */
+    static int peakInFlight(List<TrafficCapture.Request> requests) {
+        long[] ends = new long[requests.size()];
+        for (int i = 0; i < ends.length; i++) {
+            ends[i] = requests.get(i).arrivedMicros + requests.get(i).durationMicros;
+        }
+        Arrays.sort(ends);
+        int peak = 0;
+        int done = 0;
+        for (int i = 0; i < requests.size(); i++) {
+            long arrived = requests.get(i).arrivedMicros;
+            while (ends[done] < arrived) {
+                done++;
+            }
+            peak = Math.max(peak, i + 1 - done);
+        }
+        return Math.max(1, peak);
+    }
+
+    /** One run over the requests, with what each one got. */
+    static class Replay {
+        private final List<TrafficCapture.Request> requests;
+        private final Map<String, String> bases;
+        private final long[] latencies;
+        private final int[] statuses;
+        private final long[] lateness;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger peak = new AtomicInteger();
+
+        Replay(List<TrafficCapture.Request> requests, Map<String, String> bases) {
+            this.requests = requests;
+            this.bases = bases;
+            this.latencies = new long[requests.size()];
+            this.statuses = new int[requests.size()];
+            this.lateness = new long[requests.size()];
+        }
+
+        /** Send each request at its captured offset, scaled by {@code speed}. */
+        void timed(double speed) throws InterruptedException {
+            ExecutorService pool = Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, "replay");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long first = requests.get(0).arrivedMicros;
+            long start = System.nanoTime();
+            for (int i = 0; i < requests.size(); i++) {
+                long due = start + (long) ((requests.get(i).arrivedMicros - first) * 1000 / speed);
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                int index = i;
+                pool.execute(() -> {
+                    lateness[index] = System.nanoTime() - due;
+                    send(index);
+                });
+            }
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+
+        /** Send the requests in order from {@code clients} closed-loop threads. */
+        void fast(int clients) throws InterruptedException {
+            AtomicInteger next = new AtomicInteger();
+            Thread[] threads = new Thread[clients];
+            for (int c = 0; c < clients; c++) {
+                threads[c] = new Thread(() -> {
+                    int index;
+                    while ((index = next.getAndIncrement()) < requests.size()) {
+                        send(index);
+                    }
+                }, "replay-" + c);
+                threads[c].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+
+        private void send(int index) {
+            TrafficCapture.Request request = requests.get(index);
+            peak.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            long sent = System.nanoTime();
+            statuses[index] = call(bases.get(request.service) + request.target, request.method, request.body);
+            latencies[index] = System.nanoTime() - sent;
+            inFlight.decrementAndGet();
+        }
+
+        /** @return the status code, or -1 if there was no response */
+        private static int call(String url, String method, byte[] body) {
+            try {
+                HttpURLConnection connection = (HttpURLConnection) URI.create(url).toURL().openConnection();
+                connection.setRequestMethod(method);
+                connection.setConnectTimeout(TIMEOUT_MILLIS);
+                connection.setReadTimeout(TIMEOUT_MILLIS);
+                // HttpURLConnection would turn a GET with a body into a POST
+                if (body.length > 0 && !method.equals("GET") && !method.equals("HEAD")) {
+                    connection.setDoOutput(true);
+                    connection.setRequestProperty("Content-Type", "application/json");
+                    try (OutputStream out = connection.getOutputStream()) {
+                        out.write(body);
+                    }
+                }
+                int status = connection.getResponseCode();
+                InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+                if (in != null) {
+                    try (in) {
+                        in.readAllBytes();
+                    }
+                }
+                return status;
+            } catch (IOException | IllegalArgumentException e) {
+                return -1;
+            }
+        }
+
+        void report(Path capture, double speed, int clients, long elapsedNanos, int capturedPeak) {
+            int total = requests.size();
+            double span = (requests.get(total - 1).arrivedMicros - requests.get(0).arrivedMicros) / 1e6;
+            double seconds = elapsedNanos / 1e9;
+            System.out.printf("%d requests from %s, captured over %.1f s, replayed %s in %.1f s: %.0f requests/s%n",
+                    total, capture, span, speed > 0 ? "at " + speed + "x" : "as fast as possible from " + clients + " clients",
+                    seconds, total / seconds);
+
+            long[] replayed = latencies.clone();
+            long[] captured = new long[total];
+            TreeMap<Integer, Integer> counts = new TreeMap<>();
+            int changed = 0;
+            for (int i = 0; i < total; i++) {
+                captured[i] = requests.get(i).durationMicros * 1000L;
+                counts.merge(statuses[i], 1, Integer::sum);
+                if (statuses[i] != requests.get(i).status) {
+                    changed++;
+                }
+            }
+            System.out.println("latency ms  replayed: " + percentiles(replayed));
+            System.out.println("            captured: " + percentiles(captured));
+            System.out.println("in flight   replayed peak " + peak.get() + ", captured peak " + capturedPeak);
+            System.out.println("status: " + counts + ", " + changed + " differ from the capture");
+            if (speed > 0) {
+                System.out.println("sent late ms: " + percentiles(lateness.clone()));
+            }
+        }
+
+        private static String percentiles(long[] nanos) {
+            Arrays.sort(nanos);
+            return String.format("p50 %.3f  p90 %.3f  p99 %.3f  max %.3f",
+                    at(nanos, 0.50), at(nanos, 0.90), at(nanos, 0.99), nanos[nanos.length - 1] / 1e6);
+        }
+
+        private static double at(long[] sorted, double p) {
+            return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))] / 1e6;
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package Launcher;
+
+import OrderService.OrderServer;
+import java.util.HashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stand-in for the ISCS and the User and Product services, answering OrderServer's
+ * downstream calls in memory with made-up but well-formed responses, so that the
+ * Order service can be benchmarked on its own.
+ *
+ * <p>It answers {@code GET /user/{id}}, {@code GET /product/{id}} and the
+ * {@code reserve} and {@code reserve batch} commands of {@code POST /product} with the
+ * bodies, ETags and status codes the real services send, including {@code 304} for a
+ * matching {@code If-None-Match}. Anything else is answered {@code 404}. Users and
+ * products {@code 1..n} exist. Everything is set from the {@code Simulator} section of
+ * config.json; all keys are optional:</p>
+ *
+ * <pre>
+ *   "Simulator": {
+ *       "users": 1000, "products": 1000,
+ *       "stock": 1000000,
+ *       "user_latency": "lognormal 1 0.5",
+ *       "product_latency": "exponential 2",
+ *       "error_rate": 0.01, "error_status": 503,
+ *       "drop_rate": 0.001
+ *   }
+ * </pre>
+ *
+ * <p>Latencies are in milliseconds and are one of {@code fixed t} (or just {@code t}),
+ * {@code uniform min max}, {@code exponential mean} or {@code lognormal median sigma}.
+ * A call is held for its sampled latency before it is answered. If that would take it
+ * past its deadline, it waits out the deadline and gets no response, as a real call
+ * would time out. A share {@code error_rate} of calls is answered {@code error_status}
+ * without touching any state, and a share {@code drop_rate} gets no response at all
+ * once its timeout has run out. {@code stock} is the units each product starts with,
+ * or {@code unlimited}. A finite stock is taken from by reservations, which are refused
+ * once it runs out. Unlimited stock is never short and never changes a product's
+ * version, so cached lookups stay valid.</p>
+ */
+public class SimulatedBackends implements OrderServer.Transport {
+
+    static final int DEFAULT_USERS = 1000;
+    static final int DEFAULT_PRODUCTS = 1000;
+    static final long DEFAULT_STOCK = 1_000_000;
+    static final int DEFAULT_ERROR_STATUS = 503;
+
+    private final int users;
+    private final int products;
+    private final boolean unlimited;
+    private final long initialStock;
+    private final AtomicLongArray stock;
+    private final AtomicLongArray versions;
+    private final Latency userLatency;
+    private final Latency productLatency;
+    private final double errorRate;
+    private final int errorStatus;
+    private final double dropRate;
+
+    /**
+     * @param config the {@code Simulator} section of config.json, or null for defaults
+     * @throws IllegalArgumentException if a setting cannot be parsed
+     */
+    public SimulatedBackends(HashMap<String, String> config) {
+        if (config == null) {
+            config = new HashMap<>();
+        }
+        this.users = Integer.parseInt(config.getOrDefault("users", String.valueOf(DEFAULT_USERS)));
+        this.products = Integer.parseInt(config.getOrDefault("products", String.valueOf(DEFAULT_PRODUCTS)));
+        String stockSetting = config.getOrDefault("stock", String.valueOf(DEFAULT_STOCK));
+        this.unlimited = stockSetting.equals("unlimited");
+        this.initialStock = unlimited ? DEFAULT_STOCK : Long.parseLong(stockSetting);
+        this.stock = new AtomicLongArray(products + 1);
+        this.versions = new AtomicLongArray(products + 1);
+        for (int id = 1; id <= products; id++) {
+            stock.set(id, initialStock);
+            versions.set(id, 1);
+        }
+        this.userLatency = Latency.parse(config.getOrDefault("user_latency", "0"));
+        this.productLatency = Latency.parse(config.getOrDefault("product_latency", "0"));
+        this.errorRate = Double.parseDouble(config.getOrDefault("error_rate", "0"));
+        this.errorStatus = Integer.parseInt(config.getOrDefault("error_status", String.valueOf(DEFAULT_ERROR_STATUS)));
+        this.dropRate = Double.parseDouble(config.getOrDefault("drop_rate", "0"));
+    }
+
+    @Override
+    public HashMap<String, String> send(String endpoint, String method, String jsonBody,
+                                        HashMap<String, String> headers) {
+        boolean user = endpoint.startsWith("/user");
+        long timeout = OrderServer.timeoutMillis(headers);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (random.nextDouble() < dropRate) {
+            pause(TimeUnit.MILLISECONDS.toNanos(timeout));
+            return null;
+        }
+        long latency = (user ? userLatency : productLatency).sample(random);
+        if (latency >= TimeUnit.MILLISECONDS.toNanos(timeout)) {
+            pause(TimeUnit.MILLISECONDS.toNanos(timeout));
+            return null;
+        }
+        pause(latency);
+        if (random.nextDouble() < errorRate) {
+            return response(errorStatus, "{}", null);
+        }
+        String ifNoneMatch = headers != null ? headers.get("If-None-Match") : null;
+        if ("GET".equals(method) && user && endpoint.startsWith("/user/")) {
+            return getUser(id(endpoint.substring("/user/".length())), ifNoneMatch);
+        }
+        if ("GET".equals(method) && endpoint.startsWith("/product/")) {
+            return getProduct(id(endpoint.substring("/product/".length())), ifNoneMatch);
+        }
+        if ("POST".equals(method) && endpoint.equals("/product")) {
+            HashMap<String, String> body = jsonBody != null ? OrderServer.stringToMap(jsonBody) : null;
+            if (body != null && "reserve".equals(body.get("command"))) {
+                return reserve(id(body.get("id")), new long[] {quantity(body.get("quantity"))}, false);
+            }
+            if (body != null && "reserve batch".equals(body.get("command"))) {
+                String[] items = body.getOrDefault("quantities", "").trim().split("\\s+");
+                long[] quantities = new long[items.length];
+                for (int i = 0; i < items.length; i++) {
+                    quantities[i] = quantity(items[i]);
+                }
+                return reserve(id(body.get("id")), quantities, true);
+            }
+            return response(400, "{}", null);
+        }
+        return response(404, "{}", null);
+    }
+
+    private HashMap<String, String> getUser(int id, String ifNoneMatch) {
+        if (id < 1 || id > users) {
+            return response(404, "{}", null);
+        }
+        String etag = "\"1\"";
+        if (etag.equals(ifNoneMatch)) {
+            return response(304, "", etag);
+        }
+        return response(200, "{"
+                + "\"id\": " + id + ","
+                + "\"username\": \"user" + id + "\","
+                + "\"email\": \"user" + id + "@example.com\","
+                + "\"password\": \"5E884898DA28047151D0E56F8DC6292773603D0D6AABBDD62A11EF721D1542D8\""
+                + "}", etag);
+    }
+
+    private HashMap<String, String> getProduct(int id, String ifNoneMatch) {
+        if (id < 1 || id > products) {
+            return response(404, "{}", null);
+        }
+        String etag = "\"" + versions.get(id) + "\"";
+        if (etag.equals(ifNoneMatch)) {
+            return response(304, "", etag);
+        }
+        return response(200, productJson(id, stock.get(id)), etag);
+    }
+
+    /**
+     * Take each quantity in order, each whole or not at all, like the Product
+     * service's {@code reserve} and {@code reserve batch} commands.
+     */
+    private HashMap<String, String> reserve(int id, long[] quantities, boolean batch) {
+        if (id < 1 || id > products || quantities == null) {
+            return response(id < 1 || id > products ? 404 : 400, "{}", null);
+        }
+        long[] remaining = new long[quantities.length];
+        long left;
+        if (unlimited) {
+            left = initialStock;
+            for (int i = 0; i < quantities.length; i++) {
+                remaining[i] = left;
+            }
+        } else {
+            long before;
+            do {
+                before = stock.get(id);
+                left = before;
+                for (int i = 0; i < quantities.length; i++) {
+                    if (quantities[i] < 0) {
+                        return response(400, "{}", null);
+                    }
+                    if (left >= quantities[i]) {
+                        left -= quantities[i];
+                        remaining[i] = left;
+                    } else {
+                        remaining[i] = -1;
+                    }
+                }
+            } while (!stock.compareAndSet(id, before, left));
+            if (left != before) {
+                versions.incrementAndGet(id);
+            }
+        }
+        String etag = "\"" + versions.get(id) + "\"";
+        if (!batch) {
+            return remaining[0] < 0
+                    ? response(409, "{}", null)
+                    : response(200, productJson(id, remaining[0]), etag);
+        }
+        StringBuilder results = new StringBuilder();
+        StringBuilder lefts = new StringBuilder();
+        for (int i = 0; i < remaining.length; i++) {
+            if (i > 0) {
+                results.append(' ');
+                lefts.append(' ');
+            }
+            results.append(remaining[i] < 0 ? 409 : 200);
+            lefts.append(remaining[i]);
+        }
+        return response(200, "{"
+                + "\"id\": " + id + ","
+                + "\"results\": \"" + results + "\","
+                + "\"remaining\": \"" + lefts + "\","
+                + "\"quantity\": " + left
+                + "}", etag);
+    }
+
+    private static String productJson(int id, long quantity) {
+        return "{"
+                + "\"id\": " + id + ","
+                + "\"name\": \"product" + id + "\","
+                + "\"description\": \"simulated\","
+                + "\"price\": 9.99,"
+                + "\"quantity\": " + quantity
+                + "}";
+    }
+
+    private static HashMap<String, String> response(int status, String body, String etag) {
+        HashMap<String, String> retVal = new HashMap<>();
+        retVal.put("status", String.valueOf(status));
+        retVal.put("body", body);
+        if (etag != null) {
+            retVal.put("etag", etag);
+        }
+        return retVal;
+    }
+
+    private static int id(String value) {
+        try {
+            return value == null ? -1 : Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long quantity(String value) {
+        try {
+            return value == null ? -1 : Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void pause(long nanos) {
+        long until = System.nanoTime() + nanos;
+        for (long left = nanos; left > 0; left = until - System.nanoTime()) {
+            LockSupport.parkNanos(left);
+        }
+    }
+
+    /** A latency distribution, sampled in nanoseconds. */
+    abstract static class Latency {
+
+        abstract long sample(ThreadLocalRandom random);
+
+        /**
+         * @param spec e.g. {@code "2"}, {@code "fixed 2"}, {@code "uniform 1 5"},
+         *             {@code "exponential 2"} or {@code "lognormal 2 0.5"}, in milliseconds
+         * @return the distribution
+         * @throws IllegalArgumentException if the spec cannot be parsed
+         */
+        static Latency parse(String spec) {
+            String[] parts = spec.trim().split("\\s+");
+            try {
+                switch (parts[0]) {
+                    case "fixed":
+                        return fixed(millis(parts[1]));
+                    case "uniform": {
+                        double min = millis(parts[1]);
+                        double max = millis(parts[2]);
+                        return new Latency() {
+                            @Override
+                            long sample(ThreadLocalRandom random) {
+                                return nanos(min + random.nextDouble() * (max - min));
+                            }
+                        };
+                    }
+                    case "exponential": {
+                        double mean = millis(parts[1]);
+                        return new Latency() {
+                            @Override
+                            long sample(ThreadLocalRandom random) {
+                                return nanos(-mean * Math.log(1 - random.nextDouble()));
+                            }
+                        };
+                    }
+                    case "lognormal": {
+                        double mu = Math.log(millis(parts[1]));
+                        double sigma = Double.parseDouble(parts[2]);
+                        return new Latency() {
+                            @Override
+                            long sample(ThreadLocalRandom random) {
+                                return nanos(Math.exp(mu + sigma * random.nextGaussian()));
+                            }
+                        };
+                    }
+                    default:
+                        return fixed(millis(parts[0]));
+                }
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("bad latency \"" + spec + "\"", e);
+            }
+        }
+
+        private static Latency fixed(double millis) {
+            long nanos = nanos(millis);
+            return new Latency() {
+                @Override
+                long sample(ThreadLocalRandom random) {
+                    return nanos;
+                }
+            };
+        }
+
+        private static double millis(String value) {
+            double millis = Double.parseDouble(value);
+            if (millis < 0) {
+                throw new IllegalArgumentException("negative latency");
+            }
+            return millis;
+        }
+
+        private static long nanos(double millis) {
+            return (long) (millis * 1_000_000);
+        }
+    }
+}
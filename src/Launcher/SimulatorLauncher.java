@@ -0,0 +1,197 @@
+package Launcher;
+
+import OrderService.OrderServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Runs the Order service against {@link SimulatedBackends} instead of the ISCS and the
+ * User and Product services, to measure the order pipeline on its own.
+ *
+ * <p>The Order service binds its usual port, so any load generator can drive it. With
+ * {@code --bench} this launcher drives it too: {@code --clients} threads each place
+ * orders over HTTP back to back, for random users and products of the simulator, for
+ * {@code --warmup} seconds that are not counted and then {@code --bench} seconds that
+ * are. It then prints the throughput, latency percentiles and status counts, and
+ * exits.</p>
+ *
+ * <p>Usage: {@code SimulatorLauncher config.json [--bench seconds] [--clients n] [--warmup seconds]}</p>
+ */
+public class SimulatorLauncher {
+
+    static final int DEFAULT_CLIENTS = 32;
+    static final int DEFAULT_WARMUP_SECONDS = 2;
+
+    /**
+     * Start the Order service on simulated downstream services, and optionally benchmark it.
+     *
+     * @param args args[0] is the path to config.json, optionally followed by
+     *             {@code --bench <seconds>}, {@code --clients <n>} and {@code --warmup <seconds>}
+     * @throws IOException if the config cannot be read or the Order port cannot be bound
+     * @throws InterruptedException if interrupted while benchmarking
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String config = args[0];
+        int benchSeconds = 0;
+        int clients = DEFAULT_CLIENTS;
+        int warmupSeconds = DEFAULT_WARMUP_SECONDS;
+        for (int i = 1; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--bench" -> benchSeconds = Integer.parseInt(args[i + 1]);
+                case "--clients" -> clients = Integer.parseInt(args[i + 1]);
+                case "--warmup" -> warmupSeconds = Integer.parseInt(args[i + 1]);
+                default -> throw new IllegalArgumentException("unknown option " + args[i]);
+            }
+        }
+
+        HashMap<String, HashMap<String, String>> configMap = OrderServer.parseConfig(Files.readString(Path.of(config)));
+        HashMap<String, String> settings = configMap.get("Simulator");
+        SimulatedBackends backends = new SimulatedBackends(settings);
+        OrderServer.init(config);
+        OrderServer.useTransport(backends);
+        OrderServer.start();
+        System.out.println("User and Product services simulated in-process");
+
+        if (benchSeconds > 0) {
+            HashMap<String, String> order = configMap.get("OrderService");
+            URI uri = URI.create("http://" + order.get("ip") + ":" + order.get("port") + "/order");
+            HashMap<String, String> sizes = settings != null ? settings : new HashMap<>();
+            bench(uri, Integer.parseInt(sizes.getOrDefault("users", String.valueOf(SimulatedBackends.DEFAULT_USERS))),
+                    Integer.parseInt(sizes.getOrDefault("products", String.valueOf(SimulatedBackends.DEFAULT_PRODUCTS))),
+                    clients, warmupSeconds, benchSeconds);
+            System.exit(0);
+        }
+    }
+
+    /** Place orders from {@code clients} threads and report what was measured. */
+    static void bench(URI uri, int users, int products, int clients, int warmupSeconds, int benchSeconds)
+            throws IOException, InterruptedException {
+        // one kept-alive connection per client, instead of the default pool of 5
+        System.setProperty("http.maxConnections", String.valueOf(clients));
+        long start = System.nanoTime();
+        long measureFrom = start + warmupSeconds * 1_000_000_000L;
+        long measureTo = measureFrom + benchSeconds * 1_000_000_000L;
+
+        Client[] workers = new Client[clients];
+        Thread[] threads = new Thread[clients];
+        for (int i = 0; i < clients; i++) {
+            workers[i] = new Client(uri.toURL(), users, products, measureFrom, measureTo);
+            threads[i] = new Thread(workers[i], "bench-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        int total = 0;
+        TreeMap<Integer, Integer> statuses = new TreeMap<>();
+        for (Client worker : workers) {
+            total += worker.count;
+            worker.statuses.forEach((status, n) -> statuses.merge(status, n, Integer::sum));
+        }
+        long[] latencies = new long[total];
+        int n = 0;
+        for (Client worker : workers) {
+            System.arraycopy(worker.latencies, 0, latencies, n, worker.count);
+            n += worker.count;
+        }
+        Arrays.sort(latencies);
+
+        System.out.printf("%d orders in %d s from %d clients: %.0f orders/s%n",
+                total, benchSeconds, clients, total / (double) benchSeconds);
+        if (total > 0) {
+            System.out.printf("latency ms: p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  max %.3f%n",
+                    percentile(latencies, 0.50), percentile(latencies, 0.90), percentile(latencies, 0.99),
+                    percentile(latencies, 0.999), latencies[total - 1] / 1e6);
+        }
+        System.out.println("status: " + statuses);
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))] / 1e6;
+    }
+
+    /** One closed-loop client: sends an order as soon as the previous one is answered. */
+    static class Client implements Runnable {
+        private final URL url;
+        private final int users;
+        private final int products;
+        private final long measureFrom;
+        private final long measureTo;
+        final TreeMap<Integer, Integer> statuses = new TreeMap<>();
+        long[] latencies = new long[1024];
+        int count;
+
+        Client(URL url, int users, int products, long measureFrom, long measureTo) {
+            this.url = url;
+            this.users = users;
+            this.products = products;
+            this.measureFrom = measureFrom;
+            this.measureTo = measureTo;
+        }
+
+        @Override
+        public void run() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            while (true) {
+                String body = "{\"command\":\"place order\","
+                        + "\"user_id\":" + (1 + random.nextInt(users)) + ","
+                        + "\"product_id\":" + (1 + random.nextInt(products)) + ","
+                        + "\"quantity\":1}";
+                long sent = System.nanoTime();
+                if (sent >= measureTo) {
+                    return;
+                }
+                int status = send(body.getBytes(StandardCharsets.UTF_8));
+                long done = System.nanoTime();
+                if (sent >= measureFrom && done <= measureTo) {
+                    if (count == latencies.length) {
+                        latencies = Arrays.copyOf(latencies, count * 2);
+                    }
+                    latencies[count++] = done - sent;
+                    statuses.merge(status, 1, Integer::sum);
+                }
+            }
+        }
+
+        /**
+         * POST one order. HttpURLConnection keeps the connection alive between calls and
+         * sends the request in a single write; java.net.http sends the body separately,
+         * which costs a delayed-ACK round trip per request against a small server.
+         *
+         * @return the status code, or -1 if there was no response
+         */
+        private int send(byte[] body) {
+            try {
+                HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+                connection.setRequestMethod("POST");
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "application/json");
+                try (OutputStream out = connection.getOutputStream()) {
+                    out.write(body);
+                }
+                int status = connection.getResponseCode();
+                InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+                if (in != null) {
+                    try (in) {
+                        in.readAllBytes();
+                    }
+                }
+                return status;
+            } catch (IOException e) {
+                return -1;
+            }
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package OrderService;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads OrderServer's calls over several interchangeable instances of a service,
+ * such as a set of ISCS processes, without a proxy in between.
+ *
+ * <p>Each call goes to the better of two instances picked at random ("power of two
+ * choices"), scored by its recent latency times its calls in flight, so a slow or
+ * busy instance gets less traffic without every caller herding onto the same
+ * fastest one. Latency is a moving average of completed calls.</p>
+ *
+ * <p>An instance that fails {@link #EJECT_AFTER} calls in a row (no response at all;
+ * an HTTP error status is the downstream's answer and counts as success) is ejected
+ * for a backoff that doubles, up to {@link #MAX_BACKOFF_MILLIS}, each time it is
+ * ejected again without a success in between. A health checker also probes every
+ * instance's {@code healthPath} on a timer: a failed probe counts like a failed call,
+ * and a passed probe brings an ejected instance straight back. If every instance is
+ * ejected, calls still go to one of them rather than failing outright. A GET that gets
+ * no response is retried once on another instance while its deadline allows. A call
+ * whose deadline runs out says nothing about the instance and counts for nothing.</p>
+ */
+final class Balancer {
+
+    /** Consecutive failures that eject an instance. */
+    static final int EJECT_AFTER = 2;
+
+    /** First ejection period; doubled on each ejection without a success in between. */
+    static final long MIN_BACKOFF_MILLIS = 1000;
+
+    /** Longest ejection period. */
+    static final long MAX_BACKOFF_MILLIS = 30_000;
+
+    /** Weight of the newest sample in the latency average. */
+    private static final double ALPHA = 0.2;
+
+    /** One instance and what is known about it. */
+    static final class Endpoint {
+        final String ip;
+        final int port;
+        final AtomicInteger outstanding = new AtomicInteger();
+        volatile double latencyNanos;
+        volatile long ejectedUntil;
+        private volatile int failures;
+        private long backoff = MIN_BACKOFF_MILLIS;
+
+        Endpoint(String ip, int port) {
+            this.ip = ip;
+            this.port = port;
+        }
+
+        boolean ejected(long now) {
+            return ejectedUntil > now;
+        }
+
+        /** Score for picking: lower is better. Unmeasured instances score lowest, so they get tried. */
+        double cost() {
+            return (latencyNanos + 1) * (outstanding.get() + 1);
+        }
+
+        synchronized void succeeded() {
+            failures = 0;
+            backoff = MIN_BACKOFF_MILLIS;
+            ejectedUntil = 0;
+        }
+
+        synchronized void failed() {
+            if (++failures >= EJECT_AFTER) {
+                failures = 0;
+                ejectedUntil = System.currentTimeMillis() + backoff;
+                System.out.println("Ejected " + this + " for " + backoff + " ms");
+                backoff = Math.min(MAX_BACKOFF_MILLIS, backoff * 2);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return ip + ":" + port;
+        }
+    }
+
+    private final Endpoint[] endpoints;
+    private final String healthPath;
+    private final HttpClient probeClient = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(1))
+            .build();
+
+    /**
+     * @param addresses instances as {@code ip:port}
+     * @param healthPath path that answers 200 while an instance is healthy
+     */
+    Balancer(String[] addresses, String healthPath) {
+        this.endpoints = new Endpoint[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            int colon = addresses[i].lastIndexOf(':');
+            endpoints[i] = new Endpoint(addresses[i].substring(0, colon),
+                    Integer.parseInt(addresses[i].substring(colon + 1)));
+        }
+        this.healthPath = healthPath;
+    }
+
+    /**
+     * Probe every instance every {@code intervalMillis} on a background thread.
+     *
+     * @param intervalMillis time between rounds of probes
+     */
+    void startHealthChecks(long intervalMillis) {
+        Thread thread = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(intervalMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (Endpoint endpoint : endpoints) {
+                    if (probe(endpoint)) {
+                        endpoint.succeeded();
+                    } else {
+                        endpoint.failed();
+                    }
+                }
+            }
+        }, "health-checks");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private boolean probe(Endpoint endpoint) {
+        try {
+            HttpRequest request = HttpRequest.newBuilder(
+                    URI.create("http://" + endpoint + healthPath))
+                    .timeout(Duration.ofSeconds(1))
+                    .GET()
+                    .build();
+            return probeClient.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() == 200;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Send a request to one of the instances. Arguments and result are as for
+     * {@link OrderServer#sendRequest}.
+     */
+    HashMap<String, String> send(String path, String method, String jsonBody,
+                                 HashMap<String, String> headers) {
+        Endpoint first = pick(null);
+        HashMap<String, String> result = call(first, path, method, jsonBody, headers);
+        if (result == null && "GET".equals(method) && endpoints.length > 1
+                && OrderServer.timeoutMillis(headers) > 0) {
+            result = call(pick(first), path, method, jsonBody, headers);
+        }
+        return result;
+    }
+
+    private HashMap<String, String> call(Endpoint endpoint, String path, String method, String jsonBody,
+                                         HashMap<String, String> headers) {
+        endpoint.outstanding.incrementAndGet();
+        long started = System.nanoTime();
+        HashMap<String, String> result;
+        try {
+            result = OrderServer.httpRequest(endpoint.ip, endpoint.port, path, method, jsonBody, headers);
+        } finally {
+            endpoint.outstanding.decrementAndGet();
+        }
+        if (OrderServer.timeoutMillis(headers) <= 0) {
+            // the caller's deadline ran out, whether or not the instance answered
+        } else if (result == null) {
+            endpoint.failed();
+        } else {
+            double latency = endpoint.latencyNanos;
+            long sample = System.nanoTime() - started;
+            endpoint.latencyNanos = latency == 0 ? sample : latency + ALPHA * (sample - latency);
+            if (endpoint.failures != 0 || endpoint.ejectedUntil != 0) {
+                endpoint.succeeded();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Pick the cheaper of two random instances, preferring ones not ejected.
+     *
+     * @param avoid instance to skip if any other will do, or null
+     */
+    Endpoint pick(Endpoint avoid) {
+        long now = System.currentTimeMillis();
+        ArrayList<Endpoint> candidates = new ArrayList<>(endpoints.length);
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint != avoid && !endpoint.ejected(now)) {
+                candidates.add(endpoint);
+            }
+        }
+        if (candidates.isEmpty()) {
+            for (Endpoint endpoint : endpoints) {
+                if (endpoint != avoid || endpoints.length == 1) {
+                    candidates.add(endpoint);
+                }
+            }
+        }
+        int n = candidates.size();
+        if (n == 1) {
+            return candidates.get(0);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int a = random.nextInt(n);
+        int b = random.nextInt(n - 1);
+        if (b >= a) {
+            b++;
+        }
+        Endpoint x = candidates.get(a);
+        Endpoint y = candidates.get(b);
+        return x.cost() <= y.cost() ? x : y;
+    }
+}
@@ -3,17 +3,31 @@ package OrderService;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
+import Common.AccessLog;
+import Common.Deadline;
+import Common.NioHttpServer;
+import Common.RequestEvent;
+import Common.Router;
+import Common.RpcClient;
+import Common.TrafficCapture;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Duration;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
 
 /**
  * OrderServer is an HTTP-based microservice responsible for managing orders
@@ -22,19 +36,111 @@ import java.util.HashMap;
  * <p>Exposed endpoints include:</p>
  * <ul>
  *   <li>POST /order       - create an order (collection root)</li>
+ *   <li>GET  /order/stats?k=&amp;product_id=&amp;user_id= - sales over the last minute, hour and day</li>
  *   <li>GET  /user/{id}    - proxied lookup of a user</li>
+ *   <li>GET  /user?email=  - proxied lookup of a user by email or username</li>
  *   <li>GET  /product/{id} - proxied lookup of a product</li>
+ *   <li>GET  /product/search?q= - proxied product search</li>
+ *   <li>GET  /product?from=&amp;to= - proxied product range listing</li>
  * </ul>
  */
 public class OrderServer {
     static Integer PORT;
     static String IP;
+    /** This service's section of the config, which also selects the HTTP engine */
+    static HashMap<String, String> CONFIG;
 
     static Integer ISCS_PORT;
     static String ISCS_IP;
     static String PATH;
 
-    static HashMap<String, String> stringToMap(String json){
+    /** Upper bound on {@link #lookupCache} entries; the cache is cleared when it fills up. */
+    static final int LOOKUP_CACHE_SIZE = 10000;
+
+    /**
+     * Last response seen for each user/product lookup URL, as {@code [etag, body]}.
+     * Lookups revalidate with If-None-Match, so an unchanged record costs a bodyless 304.
+     */
+    static ConcurrentHashMap<String, String[]> lookupCache = new ConcurrentHashMap<>();
+
+    /** Concurrent identical user/product lookups share one downstream call (see {@link #sharedGet}). */
+    static final SingleFlight<HashMap<String, String>> lookups = new SingleFlight<>(Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "shared-lookup");
+        thread.setDaemon(true);
+        return thread;
+    }));
+
+    /** Shared by every HTTP call, so calls reuse its pooled keep-alive connections. */
+    private static final HttpClient httpClient = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+
+    /** Default for {@code batch_max}: most reservations sent to the Product service in one call. */
+    static final int DEFAULT_BATCH_MAX = 64;
+
+    /**
+     * Coalesces concurrent orders' stock reservations per product; configured by
+     * {@code batch_window_us} and {@code batch_max} in the OrderService config.
+     */
+    static ReserveBatcher reserveBatcher = new ReserveBatcher(OrderServer::sendReserveBatch, 0, DEFAULT_BATCH_MAX);
+
+    /** Orders and units sold per product and user over sliding windows, for GET /order/stats. */
+    static final SalesStats sales = new SalesStats();
+
+    /** Limits on incoming requests from the {@code RateLimit} config section, or null for none. */
+    static volatile RateLimiter rateLimiter;
+
+    /** Longest wait for any downstream response, whatever the deadline. */
+    static final long TIMEOUT_MILLIS = 10_000;
+
+    /** Default for {@code deadline_ms}: budget of a request whose client states none. */
+    static final long DEFAULT_DEADLINE_MILLIS = 10_000;
+
+    /** Budget of a request whose client sends no {@code X-Deadline-Ms}. */
+    static volatile long deadlineMillis = DEFAULT_DEADLINE_MILLIS;
+
+    /**
+     * Deadline, in epoch milliseconds, of the request the current thread is serving;
+     * passed on with every downstream call it makes (see {@link #sendRequest}).
+     */
+    static final ThreadLocal<Long> deadline = new ThreadLocal<>();
+
+    /** Default for {@code health_interval_ms}: time between health probes of each ISCS instance. */
+    static final long DEFAULT_HEALTH_INTERVAL_MILLIS = 2000;
+
+    /**
+     * Spreads calls over the ISCS instances listed under {@code endpoints} in the
+     * InterServiceCommunication config, or null when there is only the one at
+     * {@link #ISCS_IP}:{@link #ISCS_PORT}.
+     */
+    static volatile Balancer iscs;
+
+    /**
+     * Carries a request to the User or Product service and returns its response in the
+     * shape {@link #sendRequest} documents. Requests use ISCS paths ({@code /user/...},
+     * {@code /product/...}).
+     */
+    public interface Transport {
+        HashMap<String, String> send(String endpoint, String method, String jsonBody,
+                                     HashMap<String, String> headers);
+    }
+
+    /**
+     * When set, every call that would go to the ISCS is handed to this transport instead,
+     * e.g. straight to in-process handlers when all services share one JVM. Null means HTTP.
+     */
+    static volatile Transport transport;
+
+    /**
+     * Route all downstream calls through the given transport instead of HTTP to the ISCS.
+     *
+     * @param local transport to use, or null to go back to HTTP
+     */
+    public static void useTransport(Transport local) {
+        transport = local;
+    }
+
+    public static HashMap<String, String> stringToMap(String json){
 
     /**
      * Parse a flat JSON object string into a map of keys to values.
@@ -45,6 +151,7 @@ public class OrderServer {
      * @return map of keys to values, or null if the input is not a valid flat object
      */
 
+        long started = RequestEvent.start();
         HashMap<String, String> mapOutput = new HashMap<>();
 
         json = json.trim();
@@ -72,6 +179,7 @@ public class OrderServer {
             mapOutput.put(key, value);
         }
 
+        RequestEvent.parse(started);
         return mapOutput;
     }
 
@@ -83,7 +191,7 @@ public class OrderServer {
      * @param configJson configuration JSON string
      * @return map where keys are service names and values are maps of configuration keys
      */
-    static HashMap<String, HashMap<String, String>> parseConfig(String configJson) {
+    public static HashMap<String, HashMap<String, String>> parseConfig(String configJson) {
         HashMap<String, HashMap<String, String>> result = new HashMap<>();
         configJson = configJson.trim();
         if (configJson.startsWith("{") && configJson.endsWith("}")) {
@@ -125,30 +233,127 @@ public class OrderServer {
      * @throws IOException if the config file cannot be read or the server fails to start
      */
     public static void main(String[] args) throws IOException {
+        init(args[0]);
+        start();
+    }
 
+    /**
+     * Read the Order service's own address and the ISCS address from the config file.
+     * If the ISCS section lists several {@code endpoints}, calls are balanced over them.
+     * If the User or Product service has an {@code rpc_port}, calls to it go over the
+     * binary protocol through an {@link RpcTransport}.
+     *
+     * @param configPath path to config.json
+     * @throws IOException if the config file cannot be read
+     */
+    public static void init(String configPath) throws IOException {
         // get port of other servers
-        PATH = args[0];
+        PATH = configPath;
         String jsonConfig = Files.readString(Path.of(PATH));
         HashMap<String, HashMap<String, String>> configMap = parseConfig(jsonConfig);
         PORT = Integer.parseInt(configMap.get("OrderService").get("port"));
         IP = configMap.get("OrderService").get("ip");
+        CONFIG = configMap.get("OrderService");
+        AccessLog.configure(configMap.get("OrderService"));
+        TrafficCapture.configure(configMap.get("OrderService"));
 
         ISCS_PORT = Integer.parseInt(configMap.get("InterServiceCommunication").get("port"));
         ISCS_IP = configMap.get("InterServiceCommunication").get("ip");
 
-        HttpServer server = HttpServer.create(new InetSocketAddress(IP, PORT), 0);
+        // Several ISCS instances: balance over them and health-check them
+        HashMap<String, String> iscsConfig = configMap.get("InterServiceCommunication");
+        String[] endpoints = iscsConfig.getOrDefault("endpoints", "").trim().split("\\s+");
+        if (endpoints.length > 1) {
+            iscs = new Balancer(endpoints, "/health");
+            long interval = Long.parseLong(iscsConfig.getOrDefault("health_interval_ms",
+                    String.valueOf(DEFAULT_HEALTH_INTERVAL_MILLIS)));
+            if (interval > 0) {
+                iscs.startHealthChecks(interval);
+            }
+        } else {
+            iscs = null;
+        }
+
+        HashMap<String, String> limits = configMap.get("RateLimit");
+        rateLimiter = limits != null ? new RateLimiter(limits) : null;
+
+        HashMap<String, String> orderConfig = configMap.get("OrderService");
+        deadlineMillis = Long.parseLong(orderConfig.getOrDefault("deadline_ms",
+                String.valueOf(DEFAULT_DEADLINE_MILLIS)));
+        reserveBatcher = new ReserveBatcher(OrderServer::sendReserveBatch,
+                Long.parseLong(orderConfig.getOrDefault("batch_window_us", "0")),
+                Integer.parseInt(orderConfig.getOrDefault("batch_max", String.valueOf(DEFAULT_BATCH_MAX))));
+
+        // Services that advertise an rpc_port are reached over the binary protocol instead
+        RpcClient userRpc = rpcClient(configMap.get("UserService"));
+        RpcClient productRpc = rpcClient(configMap.get("ProductService"));
+        if (userRpc != null || productRpc != null) {
+            useTransport(new RpcTransport(userRpc, productRpc));
+        }
+    }
+
+    private static RpcClient rpcClient(HashMap<String, String> service) {
+        if (service == null || service.get("rpc_port") == null) {
+            return null;
+        }
+        return new RpcClient(service.get("ip"), Integer.parseInt(service.get("rpc_port")), 10_000);
+    }
 
-        server.createContext("/order", new OrderHandler());
+    /**
+     * Bind the configured port and start serving /order, /user and /product.
+     *
+     * @return the running server
+     * @throws IOException if the server fails to start
+     */
+    public static HttpServer start() throws IOException {
+        HttpServer server = NioHttpServer.create(new InetSocketAddress(IP, PORT), CONFIG);
+
+        server.createContext("/order", withDeadline(new OrderHandler()))
+                .getFilters().addAll(List.of(AccessLog.filter("order"), RequestEvent.filter("order"), TrafficCapture.filter("order")));
 
-        server.createContext("/user", new UserHandler());
+        server.createContext("/user", withDeadline(new UserHandler()))
+                .getFilters().addAll(List.of(AccessLog.filter("order"), RequestEvent.filter("order"), TrafficCapture.filter("order")));
 
-        server.createContext("/product", new ProductHandler());
+        server.createContext("/product", withDeadline(new ProductHandler()))
+                .getFilters().addAll(List.of(AccessLog.filter("order"), RequestEvent.filter("order"), TrafficCapture.filter("order")));
 
-        server.setExecutor(null);
+        // Orders run concurrently; their downstream calls share pooled HTTP connections,
+        // or multiplexed ones over RPC
+        server.setExecutor(Executors.newCachedThreadPool());
         server.start();
         System.out.println("Server started on port " + PORT);
+        return server;
+    }
+    /**
+     * Wrap a handler so that it runs with the request's {@link Deadline}: the client's
+     * {@code X-Deadline-Ms}, or {@code deadline_ms} from the config. A request whose
+     * deadline has already passed is answered 504 unhandled.
+     *
+     * @param handler handler to wrap
+     * @return the wrapped handler
+     */
+    static HttpHandler withDeadline(HttpHandler handler) {
+        return exchange -> {
+            long at = Deadline.of(exchange.getRequestHeaders(), deadlineMillis);
+            if (Deadline.passed(at)) {
+                Deadline.reject(exchange);
+                return;
+            }
+            deadline.set(at);
+            try {
+                handler.handle(exchange);
+            } finally {
+                deadline.remove();
+            }
+        };
+    }
 
+    /** @return the deadline of the request the current thread is serving, or 0 for none */
+    static long currentDeadline() {
+        Long at = deadline.get();
+        return at != null ? at : 0;
     }
+
     /**
      * HTTP handler for /order requests. Validates path shape and processes orders.
      */
@@ -157,99 +362,182 @@ public class OrderServer {
      * calls to User and Product services via the ISCS.
      */
     static class OrderHandler implements HttpHandler {
+
+        /** POST /order and GET /order/stats; other paths are answered 400 and other methods 405. */
+        private static final Router routes = new Router(OrderHandler::unmatched)
+                .post("/order", OrderHandler::placeOrder)
+                .get("/order/stats", OrderHandler::stats);
+
         @Override
         public void handle(HttpExchange exchange) throws IOException {
-            String path = exchange.getRequestURI().getPath();
-            String[] tokenized_path = path.split("/");
-
-            // POST must target collection root: /order
-            if ("POST".equals(exchange.getRequestMethod())) {
-                if (tokenized_path.length != 2) {
-                    sendJsonwithCode(exchange, "{\"status\": \"Invalid Request\"}", 400);
-                    return;
-                }
-                String body = new String(
-                        exchange.getRequestBody().readAllBytes(),
-                        StandardCharsets.UTF_8
-                );
-
-                HashMap<String, String> bodyMap = stringToMap(body);
-                if (bodyMap == null) {
-                    sendJsonwithCode(exchange, "{\"status\": \"Invalid Request\"}", 400);
-                    exchange.close();
-                    return;
-                }
+            routes.handle(exchange);
+        }
 
-                int code = orderValidation(bodyMap);
-                if (code == 400) {
-                    sendJsonwithCode(exchange, "{\"status\": \"Invalid Request\"}", 400);
-                    exchange.close();
-                    return;
-                }
-                String updateJson = "{" +
-                        "\"id\":" + bodyMap.get("user_id")
-                        + "}";
+        private static void unmatched(HttpExchange exchange) throws IOException {
+            int code = "POST".equals(exchange.getRequestMethod()) ? 400 : 405;
+            sendJsonwithCode(exchange, "{\"status\": \"Invalid Request\"}", code);
+        }
 
-                String url = "/user/" + bodyMap.get("user_id");
+        /**
+         * Place an order: check the user, then reserve the stock.
+         *
+         * @param exchange the client request
+         * @throws IOException on write errors
+         */
+        static void placeOrder(HttpExchange exchange) throws IOException {
+            String body = new String(
+                    exchange.getRequestBody().readAllBytes(),
+                    StandardCharsets.UTF_8
+            );
+
+            HashMap<String, String> bodyMap = stringToMap(body);
+            if (!admit(exchange, RateLimiter.ORDER, bodyMap != null ? bodyMap.get("user_id") : null)) {
+                return;
+            }
+            if (bodyMap == null) {
+                sendJsonwithCode(exchange, "{\"status\": \"Invalid Request\"}", 400);
+                exchange.close();
+                return;
+            }
 
-                // do the get calls to check users
-                HashMap<String, String> userRequest = sendRequest(ISCS_IP, ISCS_PORT, url,"GET" ,updateJson);
+            int code = orderValidation(bodyMap);
+            if (code == 400) {
+                sendJsonwithCode(exchange, "{\"status\": \"Invalid Request\"}", 400);
+                exchange.close();
+                return;
+            }
+            RequestEvent.user(Integer.parseInt(bodyMap.get("user_id")));
+            RequestEvent.product(Integer.parseInt(bodyMap.get("product_id")));
+            String updateJson = "{" +
+                    "\"id\":" + bodyMap.get("user_id")
+                    + "}";
+
+            String url = "/user/" + bodyMap.get("user_id");
+
+            // do the get calls to check users
+            HashMap<String, String> userRequest = sharedGet(url, updateJson);
+            if (userRequest != null && userRequest.get("status").equals("504")) {
+                Deadline.reject(exchange);
+                return;
+            }
+            if (userRequest == null || !userRequest.get("status").equals("200")) {
+                sendJsonwithCode(exchange, "{\"status\": \"Invalid Request\"}", 404);
+                return;
+            }
 
-                updateJson = "{" +
-                        "\"id\":" + bodyMap.get("product_id")
+            // The Product service checks and takes the stock in one step, so concurrent
+            // orders can never oversell and no read-modify-write round trip is needed.
+            // Orders for the same product in flight together share one downstream call.
+            long started = RequestEvent.startDownstream();
+            ReserveBatcher.Result result = reserveBatcher.reserve(bodyMap.get("product_id"),
+                    Integer.parseInt(bodyMap.get("quantity")), currentDeadline());
+            RequestEvent.downstream(started);
+            code = result.code;
+
+            if (code == 200) {
+                sales.record(Integer.parseInt(bodyMap.get("product_id")), Integer.parseInt(bodyMap.get("user_id")),
+                        Integer.parseInt(bodyMap.get("quantity")));
+                String updateJson1 = "{"
+                        + "\"command\":\"update\","
+                        + "\"id\":\"" + bodyMap.get("product_id") + "\","
+                        + "\"quantity\":\"" + result.remaining + "\", "
+                        + "\"status\":\"success\""
                         + "}";
+                sendJsonwithCode(exchange, updateJson1 , 200);
+                return;
+            }
+            if (code == 409) {
+                sendJsonwithCode(exchange, "{\"status\": \"Exceeded quantity limit\"}", 400);
+                return;
+            }
+            if (code == 504) {
+                Deadline.reject(exchange);
+                return;
+            }
 
-                url = "/product/" + bodyMap.get("product_id");
-
-                HashMap<String, String> productRequest = sendRequest(ISCS_IP, ISCS_PORT, url,"GET" ,updateJson);
-                HashMap<String, String> productBody = stringToMap(productRequest.get("body"));
+            // handle the server stuff make sure to throw erors if id doesn't exist (404)
+            sendJsonwithCode(exchange, "{\"status\": \"Invalid Request\"}", code);
+        }
 
-                // check if valid user and product
-                if (!userRequest.get("status").equals("200") || !productRequest.get("status").equals("200")) {
-                    sendJsonwithCode(exchange, "{\"status\": \"Invalid Request\"}", 404);
-                    return;
+        /**
+         * GET /order/stats: order and unit totals of each window with its top {@code k}
+         * products and users by units, or, given {@code product_id} or {@code user_id},
+         * that one's orders and units in each window. Per-id figures are estimates that
+         * may run slightly high, never low (see {@link SalesStats}).
+         *
+         * @param exchange the client request
+         * @throws IOException on write errors
+         */
+        static void stats(HttpExchange exchange) throws IOException {
+            int k = SalesStats.DEFAULT_TOP;
+            Integer productId = null;
+            Integer userId = null;
+            String query = exchange.getRequestURI().getRawQuery();
+            try {
+                for (String pair : query != null ? query.split("&") : new String[0]) {
+                    int eq = pair.indexOf('=');
+                    String key = eq < 0 ? pair : pair.substring(0, eq);
+                    String value = eq < 0 ? "" : pair.substring(eq + 1);
+                    switch (key) {
+                        case "k" -> k = Integer.parseInt(value);
+                        case "product_id" -> productId = Integer.parseInt(value);
+                        case "user_id" -> userId = Integer.parseInt(value);
+                        default -> { }
+                    }
                 }
+            } catch (NumberFormatException e) {
+                sendJsonwithCode(exchange, "{\"status\": \"Invalid Request\"}", 400);
+                return;
+            }
+            if (k < 1 || k > SalesStats.MAX_TOP) {
+                sendJsonwithCode(exchange, "{\"status\": \"Invalid Request\"}", 400);
+                return;
+            }
 
-                // validate quantity
-                int requestedQuantity = Integer.parseInt(bodyMap.get("quantity"));
-                int currentQuantity = Integer.parseInt(productBody.get("quantity"));
-                if (currentQuantity < requestedQuantity) {
-                    sendJsonwithCode(exchange, "{\"status\": \"Exceeded quantity limit\"}", 400);
-                    return;
+            StringBuilder json = new StringBuilder("{");
+            if (productId != null) {
+                json.append("\"product_id\": ").append(productId).append(", ");
+            }
+            if (userId != null) {
+                json.append("\"user_id\": ").append(userId).append(", ");
+            }
+            json.append("\"windows\": {");
+            for (int w = 0; w < SalesStats.WINDOWS.length; w++) {
+                if (w > 0) {
+                    json.append(", ");
                 }
-
-                // update the quantity
-                productBody.put("quantity", String.valueOf(currentQuantity - requestedQuantity));
-                productBody.put("command", "update");
-
-                updateJson = "{"
-                        + "\"command\":\"update\","
-                        + "\"id\":\"" + productBody.get("id") + "\","
-                        + "\"quantity\":\"" + (currentQuantity - requestedQuantity) + "\""
-                        + "}";
-
-                HashMap<String, String> result = sendRequest(ISCS_IP, ISCS_PORT, "/product","POST", updateJson);
-                code = Integer.parseInt(result.get("status"));
-
-
-
-                if (code == 200){
-                    String updateJson1 = "{"
-                            + "\"command\":\"update\","
-                            + "\"id\":\"" + productBody.get("id") + "\","
-                            + "\"quantity\":\"" + (currentQuantity - requestedQuantity) + "\", "
-                            + "\"status\":\"success\""
-                            + "}";
-                    sendJsonwithCode(exchange, updateJson1 , 200);
+                json.append('"').append(SalesStats.WINDOWS[w]).append("\": {");
+                if (productId != null || userId != null) {
+                    String sep = "";
+                    if (productId != null) {
+                        long[] p = sales.product(w, productId);
+                        json.append("\"product\": {\"orders\": ").append(p[0]).append(", \"units\": ").append(p[1]).append('}');
+                        sep = ", ";
+                    }
+                    if (userId != null) {
+                        long[] u = sales.user(w, userId);
+                        json.append(sep).append("\"user\": {\"orders\": ").append(u[0]).append(", \"units\": ").append(u[1]).append('}');
+                    }
+                } else {
+                    long[] totals = sales.totals(w);
+                    json.append("\"orders\": ").append(totals[0]).append(", \"units\": ").append(totals[1]);
+                    appendTop(json, "top_products", sales.topProducts(w, k));
+                    appendTop(json, "top_users", sales.topUsers(w, k));
                 }
+                json.append('}');
+            }
+            json.append("}, \"dropped\": ").append(sales.dropped()).append('}');
+            sendJson(exchange, json.toString());
+        }
 
-                // handle the server stuff make sure to throw erors if id doesn't exist (404)
-                sendJsonwithCode(exchange, "{\"status\": \"Invalid Request\"}", code);
-            } else {
-                sendJsonwithCode(exchange, "{\"status\": \"Invalid Request\"}", 405);
-                exchange.sendResponseHeaders(405, 0);
-                exchange.close();
+        private static void appendTop(StringBuilder json, String name, List<long[]> top) {
+            json.append(", \"").append(name).append("\": [");
+            for (int i = 0; i < top.size(); i++) {
+                long[] entry = top.get(i);
+                json.append(i > 0 ? ", " : "").append("{\"id\": ").append(entry[0])
+                        .append(", \"orders\": ").append(entry[1]).append(", \"units\": ").append(entry[2]).append('}');
             }
+            json.append(']');
         }
 
         /**
@@ -291,52 +579,56 @@ public class OrderServer {
      * This handler verifies path shape and forwards requests to ISCS.
      */
     static class UserHandler implements HttpHandler {
-        @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            String path = exchange.getRequestURI().getPath();
-            String[] tokenized_path = path.split("/");
 
-            if ("POST".equals(exchange.getRequestMethod())) {
+        /** Routes under /user; anything else is answered 400. */
+        private static final Router routes = new Router(exchange -> sendJsonwithCode(exchange, "{}", 400))
+                .get("/user", UserHandler::lookup)
+                .get("/user/{id}", UserHandler::get)
                 // POST must target collection root: /user
-                if (tokenized_path.length != 2) {
-                    sendJsonwithCode(exchange, "{}", 400);
-                    return;
-                }
-                String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
-                HashMap<String, String> bodyMap = stringToMap(body);
-                if (bodyMap == null) {
-                    sendJsonwithCode(exchange, "{}", 400);
-                }
-                int code = UserValidation(bodyMap, body, exchange);
-                if (code != 200) {
-                    sendJsonwithCode(exchange, "{}", code);
-                    return;
-                }
+                .post("/user", UserHandler::post);
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!admit(exchange, RateLimiter.USER, null)) {
+                return;
             }
-            else if ("GET".equals(exchange.getRequestMethod())) {
-                // GET must be /user/{id} exactly
-                if (tokenized_path.length != 3) {
-                    sendJsonwithCode(exchange, "{}", 400);
-                    return;
-                }
+            routes.handle(exchange);
+        }
 
-                int userID;
-                try {
-                    userID = Integer.parseInt(tokenized_path[2]);
-                } catch (NumberFormatException e) {
-                    sendJsonwithCode(exchange, "{}", 400);
-                    return;
-                }
-                String body = new String(
-                        exchange.getRequestBody().readAllBytes(),
-                        StandardCharsets.UTF_8
-                );
-                HashMap<String, String> result = sendRequest(ISCS_IP, ISCS_PORT, "/user/" + userID,"GET" ,body);
-                int code = Integer.parseInt(result.get("status"));
-                sendJson(exchange, result.get("body"), code);
+        /** GET /user?email=... and /user?username=... are forwarded as-is. */
+        static void lookup(HttpExchange exchange) throws IOException {
+            String query = exchange.getRequestURI().getRawQuery();
+            if (query == null) {
+                sendJsonwithCode(exchange, "{}", 400);
                 return;
             }
+            HashMap<String, String> result = sendRequest(ISCS_IP, ISCS_PORT, "/user?" + query, "GET", null);
+            int code = Integer.parseInt(result.get("status"));
+            sendJson(exchange, result.get("body"), code);
+        }
 
+        /** GET /user/{id}, shared with identical lookups in flight. */
+        static void get(HttpExchange exchange, int userID) throws IOException {
+            String body = new String(
+                    exchange.getRequestBody().readAllBytes(),
+                    StandardCharsets.UTF_8
+            );
+            RequestEvent.user(userID);
+            relayLookup(exchange, sharedGet("/user/" + userID, body));
+        }
+
+        /** POST /user: a user command, checked and forwarded. */
+        static void post(HttpExchange exchange) throws IOException {
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            HashMap<String, String> bodyMap = stringToMap(body);
+            if (bodyMap == null) {
+                sendJsonwithCode(exchange, "{}", 400);
+                return;
+            }
+            int code = UserValidation(bodyMap, body, exchange);
+            if (code != 200) {
+                sendJsonwithCode(exchange, "{}", code);
+            }
         }
         /**
          * Validate a user management payload (create/update/delete) used when proxying
@@ -395,10 +687,10 @@ public class OrderServer {
             }
         }
         static int handler(String body, HttpExchange exchange) throws IOException {
-            HashMap<String, String> result = sendRequest(ISCS_IP, ISCS_PORT, "/user","POST", body);
-            int code = Integer.parseInt(result.get("status"));
-            sendJsonwithCode(exchange, result.get("body"), code);
-            return code;
+            HashMap<String, String> result = sendRequest(ISCS_IP, ISCS_PORT, "/user","POST", body,
+                    conditionalHeaders(exchange));
+            relay(exchange, result);
+            return Integer.parseInt(result.get("status"));
         }
     }
 
@@ -406,53 +698,55 @@ public class OrderServer {
      * Proxy handler used by OrderServer to forward and validate /product requests.
      */
     static class ProductHandler implements HttpHandler {
-        @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            String path = exchange.getRequestURI().getPath();
-            String[] tokenized_path = path.split("/");
 
-            if ("POST".equals(exchange.getRequestMethod())) {
+        /** Routes under /product; anything else is answered 400. */
+        private static final Router routes = new Router(exchange -> sendJsonwithCode(exchange, "{}", 400))
+                // GET /product?from=&to=... lists a range and is forwarded with its query string
+                .get("/product", exchange -> forward(exchange, "/product"))
+                // GET /product/search?q=... is forwarded with its query string
+                .get("/product/search", exchange -> forward(exchange, "/product/search"))
+                .get("/product/{id}", ProductHandler::get)
                 // POST must target collection root: /product
-                if (tokenized_path.length != 2) {
-                    sendJsonwithCode(exchange, "{}", 400);
-                    return;
-                }
-                String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
-                HashMap<String, String> bodyMap = stringToMap(body);
-                if (bodyMap == null) {
-                    sendJsonwithCode(exchange, "{}", 400);
-                    return;
-                }
-                int code = ProdValidation(bodyMap, body, exchange);
-                if (code != 200) {
-                    sendJsonwithCode(exchange, "{}", code);
-                    return;
-                }
-            }
-            else if ("GET".equals(exchange.getRequestMethod())) {
-                // GET must be /product/{id} exactly
-                if (tokenized_path.length != 3) {
-                    sendJsonwithCode(exchange, "{}", 400);
-                    return;
-                }
+                .post("/product", ProductHandler::post);
 
-                int prodID;
-                try {
-                    prodID = Integer.parseInt(tokenized_path[2]);
-                } catch (NumberFormatException e) {
-                    sendJsonwithCode(exchange, "{}", 400);
-                    return;
-                }
-                String body = new String(
-                        exchange.getRequestBody().readAllBytes(),
-                        StandardCharsets.UTF_8
-                );
-                HashMap<String, String> result = sendRequest(ISCS_IP, ISCS_PORT, "/product/" + prodID,"GET" ,body);
-                int code = Integer.parseInt(result.get("status"));
-                sendJson(exchange, result.get("body"), code);
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!admit(exchange, RateLimiter.PRODUCT, null)) {
                 return;
             }
+            routes.handle(exchange);
+        }
+
+        private static void forward(HttpExchange exchange, String path) throws IOException {
+            String query = exchange.getRequestURI().getRawQuery();
+            HashMap<String, String> result = sendRequest(ISCS_IP, ISCS_PORT,
+                    path + (query != null ? "?" + query : ""), "GET", null);
+            int code = Integer.parseInt(result.get("status"));
+            sendJson(exchange, result.get("body"), code);
+        }
 
+        /** GET /product/{id}, shared with identical lookups in flight. */
+        static void get(HttpExchange exchange, int prodID) throws IOException {
+            String body = new String(
+                    exchange.getRequestBody().readAllBytes(),
+                    StandardCharsets.UTF_8
+            );
+            RequestEvent.product(prodID);
+            relayLookup(exchange, sharedGet("/product/" + prodID, body));
+        }
+
+        /** POST /product: a product command, checked and forwarded. */
+        static void post(HttpExchange exchange) throws IOException {
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            HashMap<String, String> bodyMap = stringToMap(body);
+            if (bodyMap == null) {
+                sendJsonwithCode(exchange, "{}", 400);
+                return;
+            }
+            int code = ProdValidation(bodyMap, body, exchange);
+            if (code != 200) {
+                sendJsonwithCode(exchange, "{}", code);
+            }
         }
         /**
          * Validate a product command payload when proxying through the Order service.
@@ -472,6 +766,15 @@ public class OrderServer {
             String quantityStr = bodyMap.get("quantity");
             String productNameStr = bodyMap.get("name");
 
+            // confirm and release name a stock hold rather than a product
+            if ("confirm".equals(command) || "release".equals(command)) {
+                try {
+                    Long.parseLong(bodyMap.get("hold"));
+                } catch (NumberFormatException e) {
+                    return 400;
+                }
+                return handler(body, exchange);
+            }
             if (idString == null) {
                 return 400;
             }
@@ -511,17 +814,55 @@ public class OrderServer {
                 case "update":
                     return handler(body, exchange);
 
+                case "hold":
+                    if (quantityStr == null) {
+                        return 400;
+                    }
+                    return handler(body, exchange);
+
                 default:
                     return 400;
             }
         }
         static int handler(String body, HttpExchange exchange) throws IOException {
-            HashMap<String, String> result = sendRequest(ISCS_IP, ISCS_PORT, "/product","POST", body);
-            int code = Integer.parseInt(result.get("status"));
-            sendJsonwithCode(exchange, result.get("body"), code);
-            return code;
+            HashMap<String, String> result = sendRequest(ISCS_IP, ISCS_PORT, "/product","POST", body,
+                    conditionalHeaders(exchange));
+            relay(exchange, result);
+            return Integer.parseInt(result.get("status"));
+        }
+    }
+    /**
+     * Apply {@link #rateLimiter} to a request, answering 429 with a {@code Retry-After}
+     * if it is over a limit.
+     *
+     * @param exchange the request
+     * @param route {@link RateLimiter#ORDER}, {@link RateLimiter#USER} or {@link RateLimiter#PRODUCT}
+     * @param userId the ordering user's id as sent, or null
+     * @return true if the request may proceed; otherwise the 429 has been sent
+     * @throws IOException on write errors
+     */
+    static boolean admit(HttpExchange exchange, int route, String userId) throws IOException {
+        RateLimiter limiter = rateLimiter;
+        if (limiter == null) {
+            return true;
+        }
+        long user = -1;
+        if (userId != null) {
+            try {
+                user = Integer.parseInt(userId.trim());
+            } catch (NumberFormatException e) {
+                // no valid user: limited by address and route only
+            }
+        }
+        long wait = limiter.admit(route, exchange.getRemoteAddress().getAddress().hashCode(), user);
+        if (wait == 0) {
+            return true;
         }
+        exchange.getResponseHeaders().set("Retry-After", String.valueOf((wait + 999_999_999L) / 1_000_000_000L));
+        sendJsonwithCode(exchange, "{\"status\": \"Too Many Requests\"}", 429);
+        return false;
     }
+
     /**
      * Send a JSON response with HTTP 200 and Content-Type application/json.
      *
@@ -530,11 +871,13 @@ public class OrderServer {
      * @throws IOException on write errors
      */
     private static void sendJson(HttpExchange exchange, String json) throws IOException {
+        long started = RequestEvent.start();
         byte[] data = json.getBytes(StandardCharsets.UTF_8);
         exchange.getResponseHeaders().set("Content-Type", "application/json");
         exchange.sendResponseHeaders(200, data.length);
         exchange.getResponseBody().write(data);
         exchange.close();
+        RequestEvent.respond(started);
     }
     /**
      * Send a JSON response with a specific HTTP status code.
@@ -545,11 +888,13 @@ public class OrderServer {
      * @throws IOException on write errors
      */
     private static void sendJson(HttpExchange exchange, String json, int status) throws IOException {
+        long started = RequestEvent.start();
         byte[] data = json.getBytes(StandardCharsets.UTF_8);
         exchange.getResponseHeaders().set("Content-Type", "application/json");
         exchange.sendResponseHeaders(status, data.length);
         exchange.getResponseBody().write(data);
         exchange.close();
+        RequestEvent.respond(started);
     }
 
     /**
@@ -561,16 +906,229 @@ public class OrderServer {
      * @throws IOException on write errors
      */
     private static void sendJsonwithCode(HttpExchange exchange, String json, int code) throws IOException {
+        long started = RequestEvent.start();
         byte[] data = json.getBytes(StandardCharsets.UTF_8);
         exchange.getResponseHeaders().set("Content-Type", "application/json");
         exchange.sendResponseHeaders(code, data.length);
         exchange.getResponseBody().write(data);
         exchange.close();
+        RequestEvent.respond(started);
     }
 
 
+    /**
+     * Copy the client's If-None-Match and If-Match headers so they can be forwarded.
+     *
+     * @param exchange incoming request
+     * @return headers to pass to {@link #sendRequest}
+     */
+    static HashMap<String, String> conditionalHeaders(HttpExchange exchange) {
+        HashMap<String, String> headers = new HashMap<>();
+        for (String name : new String[] {"If-None-Match", "If-Match"}) {
+            String value = exchange.getRequestHeaders().getFirst(name);
+            if (value != null) {
+                headers.put(name, value);
+            }
+        }
+        return headers;
+    }
+
+    /**
+     * Send a downstream response back to the client, keeping its status and ETag.
+     * A 304 is relayed without a body.
+     *
+     * @param exchange the HttpExchange to write to
+     * @param result map returned by {@link #sendRequest}
+     * @throws IOException on write errors
+     */
+    static void relay(HttpExchange exchange, HashMap<String, String> result) throws IOException {
+        int code = Integer.parseInt(result.get("status"));
+        if (result.get("etag") != null) {
+            exchange.getResponseHeaders().set("ETag", result.get("etag"));
+        }
+        if (code == 304) {
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+        sendJson(exchange, result.get("body"), code);
+    }
+
+    /**
+     * Send one batch of stock reservations for a product; the {@link ReserveBatcher.Sender}
+     * behind {@link #reserveBatcher}. A single reservation goes as a plain
+     * {@code reserve} command, several as one {@code reserve batch}.
+     *
+     * @param productId product id
+     * @param quantities units per reservation
+     * @param deadline deadline for the call in epoch milliseconds, or 0 for none
+     * @return per reservation, 200 and the stock left after it, or the refusal status
+     */
+    static ReserveBatcher.Result[] sendReserveBatch(String productId, int[] quantities, long deadline) {
+        ReserveBatcher.Result[] results = new ReserveBatcher.Result[quantities.length];
+        String json;
+        if (quantities.length == 1) {
+            json = "{"
+                    + "\"command\":\"reserve\","
+                    + "\"id\":\"" + productId + "\","
+                    + "\"quantity\":\"" + quantities[0] + "\""
+                    + "}";
+        } else {
+            StringBuilder list = new StringBuilder();
+            for (int quantity : quantities) {
+                if (list.length() > 0) {
+                    list.append(' ');
+                }
+                list.append(quantity);
+            }
+            json = "{"
+                    + "\"command\":\"reserve batch\","
+                    + "\"id\":\"" + productId + "\","
+                    + "\"quantities\":\"" + list + "\""
+                    + "}";
+        }
+        HashMap<String, String> headers = new HashMap<>();
+        if (deadline != 0) {
+            headers.put(Deadline.HEADER, String.valueOf(deadline));
+        }
+        HashMap<String, String> response = sendRequest(ISCS_IP, ISCS_PORT, "/product", "POST", json, headers);
+        int code = response == null ? 500 : Integer.parseInt(response.get("status"));
+        HashMap<String, String> body = code == 200 ? stringToMap(response.get("body")) : null;
+        if (body == null) {
+            Arrays.fill(results, new ReserveBatcher.Result(code == 200 ? 500 : code, -1));
+            return results;
+        }
+        if (quantities.length == 1) {
+            results[0] = new ReserveBatcher.Result(200, Long.parseLong(body.get("quantity")));
+            return results;
+        }
+        String[] remaining = body.get("remaining").trim().split(" ");
+        for (int i = 0; i < results.length && i < remaining.length; i++) {
+            long left = Long.parseLong(remaining[i]);
+            results[i] = left < 0 ? new ReserveBatcher.Result(409, -1) : new ReserveBatcher.Result(200, left);
+        }
+        return results;
+    }
+
+    /**
+     * {@link #conditionalGet} shared with any identical lookup already in flight, so a
+     * burst of requests for one user or product costs a single downstream call. The
+     * request body is part of the key, since the ISCS checks it against the path.
+     * The shared call runs without any caller's deadline, bounded only by
+     * {@link #TIMEOUT_MILLIS}, and each caller stops waiting at its own deadline.
+     *
+     * @param url lookup path such as {@code /product/7}
+     * @param jsonBody request body forwarded with the GET, or null
+     * @return the shared response map, which must not be modified, a 504 map if the
+     *         caller's deadline passes first, or null on error
+     */
+    static HashMap<String, String> sharedGet(String url, String jsonBody) {
+        String key = jsonBody == null || jsonBody.isEmpty() ? url : url + "\n" + jsonBody;
+        long started = RequestEvent.startDownstream();
+        try {
+            return lookups.run(key, () -> conditionalGet(url, jsonBody), currentDeadline());
+        } catch (TimeoutException e) {
+            return deadlineExceeded();
+        } finally {
+            RequestEvent.downstream(started);
+        }
+    }
+
+    /**
+     * Answer a proxied GET from a {@link #sharedGet} result. The shared call is made
+     * without the client's conditional headers, so its {@code If-None-Match} is
+     * checked here against the result's ETag.
+     *
+     * @param exchange the client request
+     * @param result shared response map, or null on error
+     * @throws IOException on write errors
+     */
+    static void relayLookup(HttpExchange exchange, HashMap<String, String> result) throws IOException {
+        if (result == null) {
+            sendJsonwithCode(exchange, "{}", 500);
+            return;
+        }
+        String etag = result.get("etag");
+        if ("200".equals(result.get("status"))
+                && etagMatches(exchange.getRequestHeaders().getFirst("If-None-Match"), etag)) {
+            exchange.getResponseHeaders().set("ETag", etag);
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+        relay(exchange, result);
+    }
+
+    /**
+     * Weak comparison of an {@code If-None-Match} header against an ETag.
+     *
+     * @param header header value: {@code *} or a comma-separated list of tags, or null
+     * @param etag current ETag, or null
+     * @return true if the header names the ETag
+     */
+    static boolean etagMatches(String header, String etag) {
+        if (header == null || etag == null) {
+            return false;
+        }
+        for (String tag : header.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*")) {
+                return true;
+            }
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * GET a user or product through the ISCS, revalidating any cached copy.
+     * <p>If {@link #lookupCache} holds a response for the URL its ETag is sent as
+     * If-None-Match; a 304 is then answered from the cache as a 200. The returned map
+     * has the same keys as {@link #sendRequest}.</p>
+     *
+     * @param url lookup path such as {@code /product/7}
+     * @param jsonBody request body forwarded with the GET
+     * @return map with keys "status", "body" and "etag" (if any), or null on error
+     */
+    static HashMap<String, String> conditionalGet(String url, String jsonBody) {
+        String[] cached = lookupCache.get(url);
+        HashMap<String, String> headers = new HashMap<>();
+        if (cached != null) {
+            headers.put("If-None-Match", cached[0]);
+        }
+        HashMap<String, String> result = sendRequest(ISCS_IP, ISCS_PORT, url, "GET", jsonBody, headers);
+        if (result == null) {
+            return null;
+        }
+        if ("304".equals(result.get("status")) && cached != null) {
+            result.put("status", "200");
+            result.put("etag", cached[0]);
+            result.put("body", cached[1]);
+        } else if ("200".equals(result.get("status")) && result.get("etag") != null) {
+            if (lookupCache.size() >= LOOKUP_CACHE_SIZE) {
+                lookupCache.clear();
+            }
+            lookupCache.put(url, new String[] {result.get("etag"), result.get("body")});
+        } else {
+            lookupCache.remove(url);
+        }
+        return result;
+    }
+
     public static HashMap<String, String> sendRequest(String ip, int port, String endpoint,
                                                       String method, String jsonBody)
+    {
+        return sendRequest(ip, port, endpoint, method, jsonBody, null);
+    }
+
+    public static HashMap<String, String> sendRequest(String ip, int port, String endpoint,
+                                                      String method, String jsonBody,
+                                                      HashMap<String, String> headers)
     {
     /**
      * Send an HTTP request to another service and return the response as a map.
@@ -582,19 +1140,91 @@ public class OrderServer {
      * @param endpoint request path on target (must begin with '/')
      * @param method HTTP method to use (e.g., "GET", "POST")
      * @param jsonBody optional request body (may be null or empty)
-     * @return map with keys "status" and "body", or null on error
+     * @param headers extra request headers (may be null)
+     * @return map with keys "status", "body" and, if the response had one, "etag";
+     *         or null on error
+     */
+        // pass the current request's deadline on, unless the caller set one, and
+        // do not start a call nobody will wait for
+        long at = currentDeadline();
+        if (at != 0 && (headers == null || !headers.containsKey(Deadline.HEADER))) {
+            headers = headers == null ? new HashMap<>() : new HashMap<>(headers);
+            headers.put(Deadline.HEADER, String.valueOf(at));
+        }
+        if (timeoutMillis(headers) <= 0) {
+            return deadlineExceeded();
+        }
+        long started = RequestEvent.startDownstream();
+        HashMap<String, String> result;
+        if (port == ISCS_PORT && ip.equals(ISCS_IP)) {
+            Transport local = transport;
+            result = local != null
+                    ? local.send(endpoint, method, jsonBody, headers)
+                    : iscsRequest(endpoint, method, jsonBody, headers);
+        } else {
+            result = httpRequest(ip, port, endpoint, method, jsonBody, headers);
+        }
+        RequestEvent.downstream(started);
+        // no response because the deadline ran out
+        if (result == null && timeoutMillis(headers) <= 0) {
+            return deadlineExceeded();
+        }
+        return result;
+    }
+
+    private static HashMap<String, String> deadlineExceeded() {
+        HashMap<String, String> retVal = new HashMap<>();
+        retVal.put("status", "504");
+        retVal.put("body", "{\"status\": \"Deadline Exceeded\"}");
+        return retVal;
+    }
+
+    /**
+     * @param headers request headers, possibly carrying a {@link Deadline#HEADER}
+     * @return how long to wait for the response: the time left before the deadline,
+     *         at most {@link #TIMEOUT_MILLIS}
      */
+    public static long timeoutMillis(HashMap<String, String> headers) {
+        String at = headers != null ? headers.get(Deadline.HEADER) : null;
+        if (at == null) {
+            return TIMEOUT_MILLIS;
+        }
+        return Math.min(TIMEOUT_MILLIS, Long.parseLong(at) - System.currentTimeMillis());
+    }
+
+    /**
+     * Send a request over HTTP to the ISCS, or to one of the ISCS instances when there
+     * are several. Arguments and result are as for {@link #sendRequest}.
+     */
+    static HashMap<String, String> iscsRequest(String endpoint, String method, String jsonBody,
+                                               HashMap<String, String> headers) {
+        Balancer balancer = iscs;
+        if (balancer != null) {
+            return balancer.send(endpoint, method, jsonBody, headers);
+        }
+        return httpRequest(ISCS_IP, ISCS_PORT, endpoint, method, jsonBody, headers);
+    }
+
+    /**
+     * Send a request over HTTP, whatever {@link #transport} is installed. Arguments and
+     * result are as for {@link #sendRequest}.
+     */
+    static HashMap<String, String> httpRequest(String ip, int port, String endpoint,
+                                               String method, String jsonBody,
+                                               HashMap<String, String> headers) {
+        long wait = timeoutMillis(headers);
         try {
             String urlStr = "http://" + ip + ":" + port + endpoint;
 
-            HttpClient client = HttpClient.newBuilder()
-                    .connectTimeout(Duration.ofSeconds(10))
-                    .build();
-
             HttpRequest.Builder requestBuilder = HttpRequest.newBuilder()
                     .uri(URI.create(urlStr))
-                    .timeout(Duration.ofSeconds(10))
+                    .timeout(Duration.ofMillis(Math.max(1, wait)))
                     .header("Content-Type", "application/json");
+            if (headers != null) {
+                for (Map.Entry<String, String> header : headers.entrySet()) {
+                    requestBuilder.header(header.getKey(), header.getValue());
+                }
+            }
 
             if (jsonBody != null && !jsonBody.isEmpty()) {
                 requestBuilder.method(method, HttpRequest.BodyPublishers.ofString(jsonBody));
@@ -604,7 +1234,7 @@ public class OrderServer {
 
             HttpRequest request = requestBuilder.build();
 
-            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
 
             int status = response.statusCode();
             String body = response.body();
@@ -612,10 +1242,17 @@ public class OrderServer {
             HashMap<String, String> retVal = new HashMap<String, String>();
             retVal.put("body", body);
             retVal.put("status", "" + status);
+            response.headers().firstValue("ETag").ifPresent(etag -> retVal.put("etag", etag));
             return retVal;
 
+        } catch (HttpTimeoutException e) {
+            // cut short by the caller's deadline: not the downstream's failure
+            if (wait < TIMEOUT_MILLIS) {
+                return deadlineExceeded();
+            }
+            return null;
         } catch (Exception e) {
-            e.printStackTrace();
+            AccessLog.error("order", e);
             return null;
         }
     }
@@ -0,0 +1,194 @@
+package OrderService;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free rate limiting for OrderServer's routes, per client IP, per user and per
+ * route overall.
+ *
+ * <p>Each bucket is a single {@code AtomicLong} holding its theoretical arrival time
+ * (the generic cell rate algorithm, equivalent to a token bucket): admitting a request
+ * advances it by one emission interval with a compare-and-set, and a request that
+ * would push it more than a burst ahead of the clock is refused. No timer refills
+ * anything, and a refusal is a few reads and no write.</p>
+ *
+ * <p>Per-IP and per-user buckets live in a fixed-size open-addressed table, probed
+ * over {@link #PROBES} slots from the key's hash. A bucket whose arrival time has
+ * passed is full, which is exactly the state of a bucket that does not exist, so idle
+ * buckets are reclaimed in place by the next key that needs a slot and the table
+ * never needs sweeping. If every probed slot is busy, the bucket closest to full is
+ * taken over, so memory stays bounded under any number of keys.</p>
+ *
+ * <p>Configured by the {@code RateLimit} section of config.json: {@code ip_rate},
+ * {@code user_rate} and {@code route_rate} in requests per second, each with an
+ * optional {@code *_burst} (default: one second's worth), and {@code table_size}.
+ * A dimension without a rate is not limited.</p>
+ */
+final class RateLimiter {
+
+    /** Routes, each limited separately. */
+    static final int ORDER = 0;
+    static final int USER = 1;
+    static final int PRODUCT = 2;
+    private static final int ROUTES = 3;
+
+    /** Slots examined per lookup. */
+    static final int PROBES = 8;
+
+    /** Default number of per-IP and per-user buckets. */
+    static final int DEFAULT_TABLE_SIZE = 1 << 16;
+
+    private static final long SECOND = 1_000_000_000L;
+    private static final long IP_KEY = 0;
+    private static final long USER_KEY = 1;
+
+    private static final class Bucket {
+        final long key;
+        final AtomicLong tat;
+
+        Bucket(long key, long tat) {
+            this.key = key;
+            this.tat = new AtomicLong(tat);
+        }
+    }
+
+    /** One configured limit: emission interval and burst allowance in nanoseconds; interval 0 for none. */
+    private static final class Limit {
+        final long interval;
+        final long capacity;
+
+        Limit(HashMap<String, String> config, String name) {
+            String rate = config.get(name + "_rate");
+            if (rate == null) {
+                interval = 0;
+                capacity = 0;
+                return;
+            }
+            double perSecond = Double.parseDouble(rate);
+            interval = Math.max(1, (long) (SECOND / perSecond));
+            String burst = config.get(name + "_burst");
+            capacity = interval * Math.max(1, burst != null ? Long.parseLong(burst) : (long) Math.ceil(perSecond));
+        }
+    }
+
+    private final Limit ip;
+    private final Limit user;
+    private final Limit route;
+    private final AtomicLong[] routeTat = new AtomicLong[ROUTES];
+    private final AtomicReferenceArray<Bucket> table;
+    private final int mask;
+
+    /**
+     * @param config the {@code RateLimit} section of config.json
+     */
+    RateLimiter(HashMap<String, String> config) {
+        ip = new Limit(config, "ip");
+        user = new Limit(config, "user");
+        route = new Limit(config, "route");
+        for (int i = 0; i < ROUTES; i++) {
+            routeTat[i] = new AtomicLong(Long.MIN_VALUE);
+        }
+        int size = Integer.parseInt(config.getOrDefault("table_size", String.valueOf(DEFAULT_TABLE_SIZE)));
+        size = Integer.highestOneBit(Math.max(PROBES, size - 1)) << 1;
+        table = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+
+    /**
+     * Admit or refuse one request. Buckets are checked from the narrowest (client)
+     * to the widest (route), so a refused client does not use up the route's budget.
+     *
+     * @param routeId {@link #ORDER}, {@link #USER} or {@link #PRODUCT}
+     * @param client hash of the client's address
+     * @param userId user id, or -1 when the request names none
+     * @return 0 if admitted, else the nanoseconds until a retry could be
+     */
+    long admit(int routeId, int client, long userId) {
+        long now = System.nanoTime();
+        long wait;
+        if (ip.interval != 0) {
+            wait = take(bucket(key(routeId, IP_KEY, client), now), now, ip);
+            if (wait != 0) {
+                return wait;
+            }
+        }
+        if (user.interval != 0 && userId >= 0) {
+            wait = take(bucket(key(routeId, USER_KEY, userId), now), now, user);
+            if (wait != 0) {
+                return wait;
+            }
+        }
+        if (route.interval != 0) {
+            return take(routeTat[routeId], now, route);
+        }
+        return 0;
+    }
+
+    /** Advance a bucket by one interval if that stays within its burst. */
+    private static long take(AtomicLong tat, long now, Limit limit) {
+        if (tat == null) {
+            return 0; // lost a race for a table slot: let this one through
+        }
+        while (true) {
+            long current = tat.get();
+            long next = Math.max(current, now) + limit.interval;
+            long over = next - now - limit.capacity;
+            if (over > 0) {
+                return over;
+            }
+            if (tat.compareAndSet(current, next)) {
+                return 0;
+            }
+        }
+    }
+
+    /** Find or claim the bucket for a key. */
+    private AtomicLong bucket(long key, long now) {
+        int start = (int) mix(key) & mask;
+        for (int p = 0; p < PROBES; p++) {
+            Bucket b = table.get((start + p) & mask);
+            if (b != null && b.key == key) {
+                return b.tat;
+            }
+        }
+        int victim = -1;
+        long victimTat = Long.MAX_VALUE;
+        for (int p = 0; p < PROBES; p++) {
+            int i = (start + p) & mask;
+            Bucket b = table.get(i);
+            long tat = b == null ? Long.MIN_VALUE : b.tat.get();
+            if (tat <= now) {
+                // empty or idle: a full bucket is the same as no bucket
+                Bucket fresh = new Bucket(key, now);
+                if (table.compareAndSet(i, b, fresh)) {
+                    return fresh.tat;
+                }
+            } else if (tat < victimTat) {
+                victim = i;
+                victimTat = tat;
+            }
+        }
+        if (victim < 0) {
+            return null;
+        }
+        Bucket b = table.get(victim);
+        Bucket fresh = new Bucket(key, now);
+        return b != null && table.compareAndSet(victim, b, fresh) ? fresh.tat : null;
+    }
+
+    private static long key(int routeId, long kind, long value) {
+        return ((long) routeId << 34) | (kind << 32) | (value & 0xFFFFFFFFL);
+    }
+
+    /** 64-bit finalizer from MurmurHash3. */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
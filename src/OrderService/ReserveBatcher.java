@@ -0,0 +1,194 @@
+package OrderService;
+
+import Common.AccessLog;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces concurrent stock reservations for the same product into one downstream
+ * {@code reserve batch} call.
+ *
+ * <p>Each product has a lane. An order arriving at an idle lane becomes its leader
+ * and sends at once, so a lone order waits for nothing. Orders that arrive while a
+ * call is in flight queue behind it; when the call returns, the first of them leads
+ * the next call, carrying everything that queued up in the meantime (at most
+ * {@code maxBatch}). Under load, batches therefore grow to match the downstream
+ * round trip by themselves. With a {@code window}, a leader also waits up to that
+ * long for its batch to fill before sending.</p>
+ *
+ * <p>The Product service applies a batch in order and accepts or refuses each
+ * reservation on its own, so every order gets the answer it would have had alone.
+ * Reservations whose deadline passes while they queue are answered 504 and left out
+ * of the batch, which is sent with the latest deadline among the rest. Lanes are kept
+ * per product id for the life of the server.</p>
+ */
+class ReserveBatcher {
+
+    /** Sends one batch of reservations for a product. */
+    interface Sender {
+        /**
+         * @param productId product id as given in the order
+         * @param quantities units per reservation, in arrival order
+         * @param deadline latest deadline among the reservations, in epoch
+         *        milliseconds, or 0 if any of them has none
+         * @return one result per reservation, in the same order
+         */
+        Result[] send(String productId, int[] quantities, long deadline);
+    }
+
+    /** Outcome of one reservation: its status and, if accepted, the stock left after it. */
+    static final class Result {
+        final int code;
+        final long remaining;
+
+        Result(int code, long remaining) {
+            this.code = code;
+            this.remaining = remaining;
+        }
+    }
+
+    private static final class Pending {
+        final int quantity;
+        final long deadline;
+        Result result;
+        boolean lead;
+
+        Pending(int quantity, long deadline) {
+            this.quantity = quantity;
+            this.deadline = deadline;
+        }
+    }
+
+    private static final class Lane {
+        final ArrayList<Pending> queue = new ArrayList<>();
+        boolean busy;
+    }
+
+    private final Sender sender;
+    private final long windowNanos;
+    private final int maxBatch;
+    private final ConcurrentHashMap<String, Lane> lanes = new ConcurrentHashMap<>();
+
+    /**
+     * @param sender makes the downstream call
+     * @param windowMicros longest time a leader waits for its batch to fill; 0 to send at once
+     * @param maxBatch most reservations per call; 1 turns batching off
+     */
+    ReserveBatcher(Sender sender, long windowMicros, int maxBatch) {
+        this.sender = sender;
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        this.maxBatch = Math.max(1, maxBatch);
+    }
+
+    /**
+     * Reserve stock, waiting for the batch the reservation travels in.
+     *
+     * @param productId product id
+     * @param quantity units to take
+     * @param deadline epoch millisecond after which the result is not wanted, or 0 for none
+     * @return the reservation's result
+     */
+    Result reserve(String productId, int quantity, long deadline) {
+        Lane lane = lanes.computeIfAbsent(productId, id -> new Lane());
+        Pending mine = new Pending(quantity, deadline);
+        // waits are not abandoned on interrupt: a queued reservation may be handed the
+        // lead at any moment, and dropping it would stall the lane
+        boolean interrupted = false;
+        synchronized (lane) {
+            lane.queue.add(mine);
+            if (!lane.busy) {
+                lane.busy = true;
+                mine.lead = true;
+            } else if (lane.queue.size() >= maxBatch) {
+                lane.notifyAll(); // a leader waiting out its window can go now
+            }
+            while (!mine.lead && mine.result == null) {
+                try {
+                    lane.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (mine.result == null) {
+            interrupted |= lead(productId, lane);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return mine.result;
+    }
+
+    /**
+     * Send the batch at the head of the lane, which starts with the caller's reservation.
+     *
+     * @return true if the caller was interrupted while waiting out the window
+     */
+    private boolean lead(String productId, Lane lane) {
+        ArrayList<Pending> batch;
+        boolean interrupted = false;
+        synchronized (lane) {
+            long deadline = System.nanoTime() + windowNanos;
+            long left;
+            while (lane.queue.size() < maxBatch && (left = deadline - System.nanoTime()) > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(lane, left);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    break;
+                }
+            }
+            int n = Math.min(maxBatch, lane.queue.size());
+            batch = new ArrayList<>(lane.queue.subList(0, n));
+            lane.queue.subList(0, n).clear();
+        }
+
+        // nobody is waiting for a reservation past its deadline: leave it out
+        ArrayList<Pending> live = new ArrayList<>(batch.size());
+        ArrayList<Pending> expired = new ArrayList<>();
+        long latest = 0;
+        boolean unbounded = false;
+        long now = System.currentTimeMillis();
+        for (Pending pending : batch) {
+            if (pending.deadline == 0) {
+                unbounded = true;
+            } else if (pending.deadline <= now) {
+                expired.add(pending);
+                continue;
+            }
+            live.add(pending);
+            latest = Math.max(latest, pending.deadline);
+        }
+
+        Result[] results = null;
+        if (!live.isEmpty()) {
+            int[] quantities = new int[live.size()];
+            for (int i = 0; i < quantities.length; i++) {
+                quantities[i] = live.get(i).quantity;
+            }
+            try {
+                results = sender.send(productId, quantities, unbounded ? 0 : latest);
+            } catch (RuntimeException e) {
+                AccessLog.error("order", e);
+            }
+        }
+
+        synchronized (lane) {
+            for (int i = 0; i < live.size(); i++) {
+                live.get(i).result = results != null && i < results.length && results[i] != null
+                        ? results[i] : new Result(500, -1);
+            }
+            for (Pending pending : expired) {
+                pending.result = new Result(504, -1);
+            }
+            if (lane.queue.isEmpty()) {
+                lane.busy = false;
+            } else {
+                lane.queue.get(0).lead = true;
+            }
+            lane.notifyAll();
+        }
+        return interrupted;
+    }
+}
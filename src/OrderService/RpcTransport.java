@@ -0,0 +1,268 @@
+package OrderService;
+
+import Common.AccessLog;
+import Common.Rpc;
+import Common.RpcClient;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+/**
+ * Carries OrderServer's calls to the User and Product services over the binary
+ * protocol in {@link Rpc} instead of JSON over HTTP through the ISCS.
+ *
+ * <p>The hot calls are translated to binary frames: user and product lookups, user and
+ * product {@code update} commands and the product {@code reserve} and
+ * {@code reserve batch} commands. Their
+ * results are rendered back into the same JSON, status codes and ETags the services
+ * send over HTTP, so OrderServer's handlers cannot tell the difference. Everything
+ * else (create, delete, search, listings, exports) and any call to a service without
+ * an RPC client still goes over HTTP through the ISCS.</p>
+ */
+class RpcTransport implements OrderServer.Transport {
+
+    private final RpcClient users;
+    private final RpcClient products;
+
+    /**
+     * @param users client for the User service, or null to keep it on HTTP
+     * @param products client for the Product service, or null to keep it on HTTP
+     */
+    RpcTransport(RpcClient users, RpcClient products) {
+        this.users = users;
+        this.products = products;
+    }
+
+    @Override
+    public HashMap<String, String> send(String endpoint, String method, String jsonBody,
+                                        HashMap<String, String> headers) {
+        try {
+            HashMap<String, String> result = null;
+            if ("GET".equals(method)) {
+                if (users != null && endpoint.startsWith("/user/")) {
+                    result = get(users, Rpc.USER_GET, endpoint.substring(6), headers, false);
+                } else if (products != null && endpoint.startsWith("/product/")) {
+                    result = get(products, Rpc.PRODUCT_GET, endpoint.substring(9), headers, true);
+                }
+            } else if ("POST".equals(method) && jsonBody != null) {
+                if (users != null && endpoint.equals("/user")) {
+                    result = userCommand(OrderServer.stringToMap(jsonBody), headers);
+                } else if (products != null && endpoint.equals("/product")) {
+                    result = productCommand(OrderServer.stringToMap(jsonBody), headers);
+                }
+            }
+            if (result != null) {
+                return result;
+            }
+        } catch (SocketTimeoutException e) {
+            // the caller's deadline or the client's timeout: reported by the caller
+            return null;
+        } catch (IOException e) {
+            AccessLog.error("order", e);
+            return null;
+        }
+        return OrderServer.iscsRequest(endpoint, method, jsonBody, headers);
+    }
+
+    /** GET /user/{id} or /product/{id}; null if the request does not fit the binary layout. */
+    private HashMap<String, String> get(RpcClient client, byte op, String idText,
+                                        HashMap<String, String> headers, boolean product) throws IOException {
+        Integer id = parseInt(idText);
+        Long known = version(headers, "If-None-Match");
+        if (id == null || known == null) {
+            return null;
+        }
+        RpcClient.Response response = client.call(op, out -> out.putInt(id).putLong(known), OrderServer.timeoutMillis(headers));
+        return render(response, id, product, known);
+    }
+
+    /** A user {@code update} command; null for any other command. */
+    private HashMap<String, String> userCommand(HashMap<String, String> body,
+                                                HashMap<String, String> headers) throws IOException {
+        if (body == null || !"update".equals(body.get("command"))) {
+            return null;
+        }
+        Integer id = parseInt(body.get("id"));
+        Long ifMatch = version(headers, "If-Match");
+        if (id == null || ifMatch == null) {
+            return null;
+        }
+        RpcClient.Response response = users.call(Rpc.USER_UPDATE, out -> {
+            out.putInt(id).putLong(ifMatch);
+            Rpc.putString(out, body.get("username"));
+            Rpc.putString(out, body.get("email"));
+            Rpc.putString(out, body.get("password"));
+        }, OrderServer.timeoutMillis(headers));
+        return render(response, id, false, 0);
+    }
+
+    /** A product {@code update}, {@code reserve} or {@code reserve batch} command; null for any other command. */
+    private HashMap<String, String> productCommand(HashMap<String, String> body,
+                                                   HashMap<String, String> headers) throws IOException {
+        if (body == null) {
+            return null;
+        }
+        Integer id = parseInt(body.get("id"));
+        if (id == null) {
+            return null;
+        }
+        RpcClient.Response response;
+        if ("reserve".equals(body.get("command"))) {
+            Integer quantity = parseInt(body.get("quantity"));
+            if (quantity == null) {
+                return null;
+            }
+            response = products.call(Rpc.PRODUCT_RESERVE, out -> out.putInt(id).putInt(quantity), OrderServer.timeoutMillis(headers));
+        } else if ("reserve batch".equals(body.get("command"))) {
+            String list = body.get("quantities");
+            if (list == null) {
+                return null;
+            }
+            String[] items = list.trim().split("\\s+");
+            int[] quantities = new int[items.length];
+            for (int i = 0; i < items.length; i++) {
+                Integer quantity = parseInt(items[i]);
+                if (quantity == null) {
+                    return null;
+                }
+                quantities[i] = quantity;
+            }
+            response = products.call(Rpc.PRODUCT_RESERVE_BATCH, out -> {
+                out.putInt(id).putInt(quantities.length);
+                for (int quantity : quantities) {
+                    out.putInt(quantity);
+                }
+            }, OrderServer.timeoutMillis(headers));
+            return renderBatch(response, id);
+        } else if ("update".equals(body.get("command"))) {
+            Long ifMatch = version(headers, "If-Match");
+            Integer quantity = body.get("quantity") == null ? Integer.valueOf(-1) : parseInt(body.get("quantity"));
+            // leave anything the layout cannot carry to the service's own 400 over HTTP
+            if (ifMatch == null || quantity == null || quantity < 0) {
+                return null;
+            }
+            response = products.call(Rpc.PRODUCT_UPDATE, out -> {
+                out.putInt(id).putLong(ifMatch);
+                Rpc.putString(out, body.get("name"));
+                Rpc.putString(out, body.get("price"));
+                out.putInt(quantity);
+                Rpc.putString(out, body.get("description"));
+            }, OrderServer.timeoutMillis(headers));
+        } else {
+            return null;
+        }
+        return render(response, id, true, 0);
+    }
+
+    /**
+     * Turn a binary response into the map {@link OrderServer#sendRequest} returns, with
+     * the JSON body the service would have sent.
+     */
+    private static HashMap<String, String> render(RpcClient.Response response, int id, boolean product, long known) {
+        HashMap<String, String> retVal = new HashMap<>();
+        retVal.put("status", "" + response.status);
+        if (response.status == 304) {
+            retVal.put("body", "");
+            retVal.put("etag", "\"" + known + "\"");
+            return retVal;
+        }
+        if (response.status != 200) {
+            retVal.put("body", response.status == 504 ? "{\"status\": \"Deadline Exceeded\"}" : "{}");
+            return retVal;
+        }
+        ByteBuffer in = response.payload;
+        long version = in.getLong();
+        if (version != 0) {
+            retVal.put("etag", "\"" + version + "\"");
+        }
+        if (product) {
+            String name = Rpc.getString(in);
+            String price = Rpc.getString(in);
+            int quantity = in.getInt();
+            String description = Rpc.getString(in);
+            retVal.put("body", "{"
+                    + "\"id\": " + id + ","
+                    + "\"name\": \"" + name + "\","
+                    + "\"description\": \"" + description + "\","
+                    + "\"price\": " + price + ","
+                    + "\"quantity\": " + quantity
+                    + "}");
+        } else {
+            String username = Rpc.getString(in);
+            String email = Rpc.getString(in);
+            String password = Rpc.getString(in);
+            retVal.put("body", "{"
+                    + "\"id\": " + id + ","
+                    + "\"username\": \"" + username + "\","
+                    + "\"email\": \"" + email + "\","
+                    + "\"password\": \"" + password + "\""
+                    + "}");
+        }
+        return retVal;
+    }
+
+    /** Render a {@code reserve batch} response as the JSON the Product service sends over HTTP. */
+    private static HashMap<String, String> renderBatch(RpcClient.Response response, int id) {
+        HashMap<String, String> retVal = new HashMap<>();
+        retVal.put("status", "" + response.status);
+        if (response.status != 200) {
+            retVal.put("body", response.status == 504 ? "{\"status\": \"Deadline Exceeded\"}" : "{}");
+            return retVal;
+        }
+        ByteBuffer in = response.payload;
+        retVal.put("etag", "\"" + in.getLong() + "\"");
+        int quantity = in.getInt();
+        int count = in.getInt();
+        StringBuilder results = new StringBuilder();
+        StringBuilder remaining = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                results.append(' ');
+                remaining.append(' ');
+            }
+            int after = in.getInt();
+            results.append(after < 0 ? 409 : 200);
+            remaining.append(after);
+        }
+        retVal.put("body", "{"
+                + "\"id\": " + id + ","
+                + "\"results\": \"" + results + "\","
+                + "\"remaining\": \"" + remaining + "\","
+                + "\"quantity\": " + quantity
+                + "}");
+        return retVal;
+    }
+
+    /**
+     * The version named by a conditional header: 0 if the header is absent, null if it
+     * is not a single strong or weak tag of a version (such as {@code *} or a list).
+     */
+    private static Long version(HashMap<String, String> headers, String name) {
+        String tag = headers == null ? null : headers.get(name);
+        if (tag == null) {
+            return 0L;
+        }
+        tag = tag.trim();
+        if (tag.startsWith("W/")) {
+            tag = tag.substring(2);
+        }
+        if (tag.length() < 3 || tag.charAt(0) != '"' || tag.charAt(tag.length() - 1) != '"') {
+            return null;
+        }
+        try {
+            long version = Long.parseLong(tag.substring(1, tag.length() - 1));
+            return version > 0 ? version : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static Integer parseInt(String text) {
+        try {
+            return text == null ? null : Integer.valueOf(text.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,368 @@
+package OrderService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sliding-window sales analytics for {@code GET /order/stats}: orders and units per
+ * product and per user over the last minute, hour and day, and the top products and
+ * users of each window.
+ *
+ * <p>Placing an order only claims a slot in a fixed ring with one compare-and-set and
+ * stores the time, ids and quantity, as {@code AccessLog} does for requests. A single
+ * aggregator thread drains the ring into the structures below; if it falls a ring
+ * behind, orders are dropped from the statistics and counted.</p>
+ *
+ * <p>Each window is a ring of time buckets, e.g. twelve five-second buckets for the
+ * minute, and a bucket is cleared when the window slides onto it again, so a window
+ * covers its length to within one bucket. Every bucket holds the exact order and unit
+ * totals and a Count-Min sketch of orders and units per product and per user, so a
+ * window's count for one id is the smallest, over the sketch rows, of that row's sum
+ * over the live buckets. It can overcount by colliding ids, by at most about
+ * {@code e / WIDTH} of the window's total with high probability, and never
+ * undercounts.</p>
+ *
+ * <p>Heavy-hitter candidates come from weighted Space-Saving summaries of units, two
+ * per window alternating every window length. Anything selling more than
+ * {@code 1 / CANDIDATES} of the units in the current or the previous window length is
+ * kept, so the union of the two holds every heavy hitter of the sliding window. The
+ * candidates are then ranked by their sketch estimates.</p>
+ *
+ * <p>All memory is allocated up front, about 3 MB, whatever the number of products
+ * and users. Readers do not lock; they may see the aggregator part-way through a
+ * batch, which only moves estimates by that batch.</p>
+ */
+final class SalesStats {
+
+    /** Orders the ring holds; a power of two. */
+    static final int CAPACITY = 1 << 14;
+
+    /** Sketch rows, and columns per row; a power of two. */
+    static final int DEPTH = 4;
+    static final int WIDTH = 512;
+
+    /** Space-Saving counters per summary. */
+    static final int CANDIDATES = 64;
+
+    /** Default and largest number of top products and users reported. */
+    static final int DEFAULT_TOP = 10;
+    static final int MAX_TOP = CANDIDATES;
+
+    /** Window names, bucket lengths and bucket counts. */
+    static final String[] WINDOWS = {"1m", "1h", "1d"};
+    private static final long[] BUCKET_MILLIS = {5_000, 5 * 60_000, 60 * 60_000};
+    private static final int[] BUCKETS = {12, 12, 24};
+
+    private static final int MASK = CAPACITY - 1;
+    private static final long IDLE_NANOS = 1_000_000;
+    private static final int[] SEEDS = {0x9E3779B1, 0x85EBCA77, 0xC2B2AE3D, 0x27D4EB2F};
+
+    // Slot i: times[i], ids[i] = product << 32 | user, quantities[i]
+    private final long[] times = new long[CAPACITY];
+    private final long[] ids = new long[CAPACITY];
+    private final int[] quantities = new int[CAPACITY];
+    private final AtomicLongArray sequence = new AtomicLongArray(CAPACITY);
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private long head;
+
+    /** Per window and bucket: the bucket's epoch (time / bucket length) and its order and unit totals. */
+    private final long[][] epochs = new long[WINDOWS.length][];
+    private final long[][] totals = new long[WINDOWS.length][];
+    private final Dimension products = new Dimension();
+    private final Dimension users = new Dimension();
+
+    /** Bumped after each drained batch; read first by readers, so they see the batch. */
+    private volatile long applied;
+
+    SalesStats() {
+        for (int i = 0; i < CAPACITY; i++) {
+            sequence.set(i, i);
+        }
+        for (int w = 0; w < WINDOWS.length; w++) {
+            epochs[w] = new long[BUCKETS[w]];
+            Arrays.fill(epochs[w], -1);
+            totals[w] = new long[BUCKETS[w] * 2];
+        }
+        Thread aggregator = new Thread(this::drainForever, "sales-stats");
+        aggregator.setDaemon(true);
+        aggregator.start();
+    }
+
+    /**
+     * Count a placed order. Never blocks or allocates.
+     *
+     * @param product product id
+     * @param user user id
+     * @param quantity units ordered
+     */
+    void record(int product, int user, int quantity) {
+        long pos;
+        while (true) {
+            pos = tail.get();
+            long seq = sequence.get((int) pos & MASK);
+            if (seq == pos) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+            } else if (seq < pos) {
+                dropped.incrementAndGet();
+                return;
+            }
+        }
+        int slot = (int) pos & MASK;
+        times[slot] = System.currentTimeMillis();
+        ids[slot] = (long) product << 32 | (user & 0xFFFFFFFFL);
+        quantities[slot] = quantity;
+        sequence.set(slot, pos + 1);
+    }
+
+    /** @return orders left out because the ring was full */
+    long dropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @param window index into {@link #WINDOWS}
+     * @return orders and units placed in the window
+     */
+    long[] totals(int window) {
+        long[] sum = new long[2];
+        for (int b : live(window, System.currentTimeMillis())) {
+            sum[0] += totals[window][b * 2];
+            sum[1] += totals[window][b * 2 + 1];
+        }
+        return sum;
+    }
+
+    /**
+     * @param window index into {@link #WINDOWS}
+     * @param product product id
+     * @return estimated orders and units of the product in the window
+     */
+    long[] product(int window, int product) {
+        return products.estimate(window, live(window, System.currentTimeMillis()), product);
+    }
+
+    /**
+     * @param window index into {@link #WINDOWS}
+     * @param user user id
+     * @return estimated orders and units of the user in the window
+     */
+    long[] user(int window, int user) {
+        return users.estimate(window, live(window, System.currentTimeMillis()), user);
+    }
+
+    /**
+     * @param window index into {@link #WINDOWS}
+     * @param k how many
+     * @return up to {@code k} products with the most units in the window, each as
+     *         {@code {id, orders, units}}, most first
+     */
+    ArrayList<long[]> topProducts(int window, int k) {
+        long now = System.currentTimeMillis();
+        return products.top(window, k, now, live(window, now));
+    }
+
+    /** As {@link #topProducts}, for users. */
+    ArrayList<long[]> topUsers(int window, int k) {
+        long now = System.currentTimeMillis();
+        return users.top(window, k, now, live(window, now));
+    }
+
+    /** @return the buckets of the window that lie within it at {@code now} */
+    private int[] live(int window, long now) {
+        if (applied < 0) { // the volatile read makes the aggregator's batches visible
+            return new int[0];
+        }
+        long current = now / BUCKET_MILLIS[window];
+        int[] live = new int[BUCKETS[window]];
+        int n = 0;
+        for (int b = 0; b < BUCKETS[window]; b++) {
+            long epoch = epochs[window][b];
+            if (epoch > current - BUCKETS[window] && epoch <= current) {
+                live[n++] = b;
+            }
+        }
+        return Arrays.copyOf(live, n);
+    }
+
+    // Aggregator side: only the aggregator thread runs the code below.
+
+    private void drainForever() {
+        while (true) {
+            int n = 0;
+            for (; n < CAPACITY; n++) {
+                int slot = (int) head & MASK;
+                if (sequence.get(slot) != head + 1) {
+                    break;
+                }
+                add(times[slot], (int) (ids[slot] >> 32), (int) ids[slot], quantities[slot]);
+                sequence.set(slot, head + CAPACITY);
+                head++;
+            }
+            if (n > 0) {
+                applied++;
+            } else {
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+    }
+
+    private void add(long time, int product, int user, int quantity) {
+        for (int w = 0; w < WINDOWS.length; w++) {
+            long epoch = time / BUCKET_MILLIS[w];
+            int b = (int) (epoch % BUCKETS[w]);
+            if (epochs[w][b] != epoch) {
+                if (epochs[w][b] > epoch) {
+                    continue; // older than the window has slid past, after a clock step back
+                }
+                epochs[w][b] = epoch;
+                totals[w][b * 2] = 0;
+                totals[w][b * 2 + 1] = 0;
+                products.clear(w, b);
+                users.clear(w, b);
+            }
+            totals[w][b * 2]++;
+            totals[w][b * 2 + 1] += quantity;
+            products.add(w, b, product, quantity);
+            users.add(w, b, user, quantity);
+
+            long period = time / (BUCKET_MILLIS[w] * BUCKETS[w]);
+            products.offer(w, period, product, quantity);
+            users.offer(w, period, user, quantity);
+        }
+    }
+
+    private static int column(int row, int key) {
+        int h = (key + 1) * SEEDS[row];
+        h ^= h >>> 16;
+        h *= 0x7FEB352D;
+        h ^= h >>> 15;
+        return row * WIDTH + (h & (WIDTH - 1));
+    }
+
+    /** Sketches and candidate summaries of one kind of id: products or users. */
+    private static final class Dimension {
+        /** Per window and bucket: orders then units, {@code DEPTH * WIDTH} counters each. */
+        final long[][][] sketches = new long[WINDOWS.length][][];
+        /** Per window: the summaries of the even and odd window lengths. */
+        final SpaceSaving[][] summaries = new SpaceSaving[WINDOWS.length][2];
+
+        Dimension() {
+            for (int w = 0; w < WINDOWS.length; w++) {
+                sketches[w] = new long[BUCKETS[w]][2 * DEPTH * WIDTH];
+                summaries[w][0] = new SpaceSaving();
+                summaries[w][1] = new SpaceSaving();
+            }
+        }
+
+        void clear(int w, int b) {
+            Arrays.fill(sketches[w][b], 0);
+        }
+
+        void add(int w, int b, int key, int quantity) {
+            long[] sketch = sketches[w][b];
+            for (int row = 0; row < DEPTH; row++) {
+                int c = column(row, key);
+                sketch[c]++;
+                sketch[DEPTH * WIDTH + c] += quantity;
+            }
+        }
+
+        void offer(int w, long period, int key, int quantity) {
+            SpaceSaving summary = summaries[w][(int) (period & 1)];
+            if (summary.period != period) {
+                summary.reset(period);
+            }
+            summary.offer(key, quantity);
+        }
+
+        long[] estimate(int w, int[] live, int key) {
+            long orders = Long.MAX_VALUE;
+            long units = Long.MAX_VALUE;
+            for (int row = 0; row < DEPTH; row++) {
+                int c = column(row, key);
+                long o = 0;
+                long u = 0;
+                for (int b : live) {
+                    o += sketches[w][b][c];
+                    u += sketches[w][b][DEPTH * WIDTH + c];
+                }
+                orders = Math.min(orders, o);
+                units = Math.min(units, u);
+            }
+            return new long[] {orders, units};
+        }
+
+        ArrayList<long[]> top(int w, int k, long now, int[] live) {
+            long period = now / (BUCKET_MILLIS[w] * BUCKETS[w]);
+            int[] candidates = new int[CANDIDATES * 2];
+            int n = 0;
+            for (SpaceSaving summary : summaries[w]) {
+                if (summary.period == period || summary.period == period - 1) {
+                    n = summary.keys(candidates, n);
+                }
+            }
+            Arrays.sort(candidates, 0, n);
+            ArrayList<long[]> ranked = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                if (i > 0 && candidates[i] == candidates[i - 1]) {
+                    continue;
+                }
+                long[] estimate = estimate(w, live, candidates[i]);
+                if (estimate[0] > 0) {
+                    ranked.add(new long[] {candidates[i], estimate[0], estimate[1]});
+                }
+            }
+            ranked.sort((a, b) -> a[2] != b[2] ? Long.compare(b[2], a[2]) : Long.compare(b[1], a[1]));
+            return new ArrayList<>(ranked.subList(0, Math.min(k, ranked.size())));
+        }
+    }
+
+    /** Weighted Space-Saving over one window length: the ids with the most units, approximately. */
+    private static final class SpaceSaving {
+        final int[] keys = new int[CANDIDATES];
+        final long[] counts = new long[CANDIDATES];
+        int size;
+        volatile long period = -1;
+
+        void reset(long period) {
+            size = 0;
+            this.period = period;
+        }
+
+        void offer(int key, long weight) {
+            int min = 0;
+            for (int i = 0; i < size; i++) {
+                if (keys[i] == key) {
+                    counts[i] += weight;
+                    return;
+                }
+                if (counts[i] < counts[min]) {
+                    min = i;
+                }
+            }
+            if (size < CANDIDATES) {
+                keys[size] = key;
+                counts[size++] = weight;
+                return;
+            }
+            // the new id takes over the smallest counter, inheriting its count as error
+            keys[min] = key;
+            counts[min] += weight;
+        }
+
+        /** Append the ids held to {@code out} from {@code n}; returns the new length. */
+        int keys(int[] out, int n) {
+            int held = Math.min(size, CANDIDATES);
+            for (int i = 0; i < held; i++) {
+                out[n++] = keys[i];
+            }
+            return n;
+        }
+    }
+}
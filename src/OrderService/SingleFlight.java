@@ -0,0 +1,74 @@
+package OrderService;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * Lets concurrent callers asking for the same key share one call.
+ *
+ * <p>The first caller for a key starts the call on the executor; callers arriving
+ * while it is in flight join it and get the same result (or exception). Nothing is
+ * kept once the call completes, so a caller arriving afterwards starts a fresh one and
+ * never receives a result older than the call that was in flight when it asked.
+ * Results are shared, so callers must not modify them.</p>
+ *
+ * <p>Since the call runs on its own thread, no caller's thread state, such as its
+ * deadline, carries into it, and every caller, the first included, waits only as long
+ * as it has: one giving up leaves the call running for the others.</p>
+ *
+ * @param <V> result type
+ */
+final class SingleFlight<V> {
+
+    private final ConcurrentHashMap<String, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final Executor executor;
+
+    /** @param executor runs the shared calls */
+    SingleFlight(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Run {@code call} for {@code key}, or join the run already in flight, and wait
+     * for its result.
+     *
+     * @param key identifies the call; equal keys must mean interchangeable results
+     * @param call produces the result
+     * @param deadlineMillis when to stop waiting, in epoch milliseconds; 0 for no limit
+     * @return the shared result
+     * @throws TimeoutException if the deadline passes first
+     */
+    V run(String key, Supplier<V> call, long deadlineMillis) throws TimeoutException {
+        CompletableFuture<V> mine = new CompletableFuture<>();
+        CompletableFuture<V> running = inFlight.putIfAbsent(key, mine);
+        if (running == null) {
+            running = mine;
+            executor.execute(() -> {
+                try {
+                    mine.complete(call.get());
+                } catch (Throwable e) {
+                    mine.completeExceptionally(e);
+                } finally {
+                    inFlight.remove(key, mine);
+                }
+            });
+        }
+        try {
+            if (deadlineMillis == 0) {
+                return running.join();
+            }
+            return running.get(deadlineMillis - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        } catch (CompletionException | ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new CompletionException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package ProductService;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Stock of one hot product, split into per-core sub-counters so that concurrent
+ * reservations do not contend on a single value.
+ *
+ * <p>Each thread has a home cell, chosen from its id, and a reservation is one
+ * compare-and-set on that cell. Cells are spaced a cache line apart. When the home
+ * cell cannot cover a reservation, the taker locks the counter, gathers every cell,
+ * takes what it needs if the total allows and spreads the rest evenly again, so a dry
+ * cell borrows from its siblings and the cells stay balanced. Cells never go below
+ * zero and units are only moved between cells under the lock, so the counter can
+ * never oversell and {@link #total()}, which also takes the lock, is exact.</p>
+ *
+ * <p>A counter is retired with {@link #close()}, which returns the final stock; any
+ * reservation that reaches the lock afterwards gets {@link #CLOSED} and must go
+ * through the product record instead.</p>
+ */
+final class HotStock {
+
+    /** {@link #take} result when the units were taken. */
+    static final int TAKEN = 0;
+
+    /** {@link #take} result when the stock cannot cover the request. */
+    static final int SHORT = 1;
+
+    /** {@link #take} result when the counter has been closed. */
+    static final int CLOSED = 2;
+
+    /** Longs between cells: 128 bytes, so no two cells share a cache line or prefetch pair. */
+    private static final int STRIDE = 16;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+    private boolean closed;
+
+    /**
+     * @param stock initial stock, spread across the cells
+     */
+    HotStock(long stock) {
+        int size = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1;
+        this.cells = new AtomicLongArray(size * STRIDE);
+        this.mask = size - 1;
+        spread(stock);
+    }
+
+    /**
+     * Take {@code quantity} units.
+     *
+     * @param quantity units to take, at least 0
+     * @return {@link #TAKEN}, {@link #SHORT} if the stock is too low, or
+     *         {@link #CLOSED} if the counter was closed
+     */
+    int take(long quantity) {
+        int home = (int) (Thread.currentThread().getId() & mask) * STRIDE;
+        long value = cells.get(home);
+        while (value >= quantity) {
+            if (cells.compareAndSet(home, value, value - quantity)) {
+                return TAKEN;
+            }
+            value = cells.get(home);
+        }
+        return borrow(quantity);
+    }
+
+    private synchronized int borrow(long quantity) {
+        if (closed) {
+            return CLOSED;
+        }
+        long total = drain();
+        if (total < quantity) {
+            spread(total);
+            return SHORT;
+        }
+        spread(total - quantity);
+        return TAKEN;
+    }
+
+    /**
+     * @return the stock, read without the lock: never negative, but units a
+     *         concurrent borrower is moving between cells may be missed
+     */
+    long estimate() {
+        long total = 0;
+        for (int i = 0; i <= mask; i++) {
+            total += cells.get(i * STRIDE);
+        }
+        return total;
+    }
+
+    /** @return the exact stock */
+    synchronized long total() {
+        return estimate();
+    }
+
+    /**
+     * Replace the stock, e.g. on restock.
+     *
+     * @param stock new stock
+     */
+    synchronized void set(long stock) {
+        drain();
+        spread(stock);
+    }
+
+    /**
+     * Add units back, e.g. from a released hold.
+     *
+     * @param quantity units to add
+     * @return true, or false if the counter was closed and the units must go to the record
+     */
+    synchronized boolean give(long quantity) {
+        if (closed) {
+            return false;
+        }
+        spread(quantity);
+        return true;
+    }
+
+    /**
+     * Retire the counter.
+     *
+     * @return the final stock
+     */
+    synchronized long close() {
+        closed = true;
+        return drain();
+    }
+
+    /** Empty every cell; caller holds the lock. Concurrent takers only ever lower a cell. */
+    private long drain() {
+        long total = 0;
+        for (int i = 0; i <= mask; i++) {
+            total += cells.getAndSet(i * STRIDE, 0);
+        }
+        return total;
+    }
+
+    /** Add {@code stock} evenly across the cells; caller holds the lock or owns the counter. */
+    private void spread(long stock) {
+        int size = mask + 1;
+        for (int i = 0; i < size; i++) {
+            cells.addAndGet(i * STRIDE, stock / size + (i < stock % size ? 1 : 0));
+        }
+    }
+}
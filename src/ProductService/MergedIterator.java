@@ -0,0 +1,54 @@
+package ProductService;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Merge of several ascending iterators into one ascending iteration, keyed on each
+ * source's current head. Equal elements from different sources are all returned.
+ *
+ * @param <T> element type
+ */
+final class MergedIterator<T extends Comparable<? super T>> implements Iterator<T> {
+
+    private final PriorityQueue<Source<T>> heads = new PriorityQueue<>();
+
+    /** Add a source; a null or exhausted one is ignored. */
+    void add(Iterator<T> source) {
+        if (source != null && source.hasNext()) {
+            heads.add(new Source<>(source.next(), source));
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !heads.isEmpty();
+    }
+
+    @Override
+    public T next() {
+        Source<T> source = heads.poll();
+        if (source == null) {
+            throw new NoSuchElementException();
+        }
+        add(source.rest);
+        return source.head;
+    }
+
+    /** One ordered source and its current head. */
+    private static final class Source<T extends Comparable<? super T>> implements Comparable<Source<T>> {
+        final T head;
+        final Iterator<T> rest;
+
+        Source(T head, Iterator<T> rest) {
+            this.head = head;
+            this.rest = rest;
+        }
+
+        @Override
+        public int compareTo(Source<T> other) {
+            return head.compareTo(other.head);
+        }
+    }
+}
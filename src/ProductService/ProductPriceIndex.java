@@ -0,0 +1,149 @@
+package ProductService;
+
+import java.util.Collections;
+import java.util.NavigableSet;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Ordered index of products by price, for price-range scans.
+ *
+ * <p>Entries are {@code (price in cents, id)} pairs kept in a concurrent skip list,
+ * so a price range is a live view of the set: scans walk it without copying and
+ * without blocking writers. Ties on price are broken by id, which makes every entry
+ * unique and gives scans a stable position to resume from.</p>
+ *
+ * <p>The index may be split into stripes by id, product {@code id} going to stripe
+ * {@code floorMod(id, stripes)}, and a scan then merges the stripes in entry order.
+ * Writers of one stripe are expected to be serialized by the caller; different
+ * stripes may be written concurrently.</p>
+ */
+class ProductPriceIndex {
+
+    private final ConcurrentSkipListSet<Entry>[] stripes;
+
+    /** An index of one stripe. */
+    ProductPriceIndex() {
+        this(1);
+    }
+
+    /** @param stripes number of stripes, at least 1 */
+    @SuppressWarnings("unchecked")
+    ProductPriceIndex(int stripes) {
+        this.stripes = (ConcurrentSkipListSet<Entry>[]) new ConcurrentSkipListSet<?>[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new ConcurrentSkipListSet<>();
+        }
+    }
+
+    /**
+     * Index a product at the given price.
+     *
+     * @param id product id
+     * @param price price as stored in the product record
+     */
+    void add(int id, String price) {
+        stripes[Math.floorMod(id, stripes.length)].add(new Entry(toCents(price), id));
+    }
+
+    /**
+     * Remove a product previously indexed at the given price.
+     *
+     * @param id product id
+     * @param price price it was indexed under
+     */
+    void remove(int id, String price) {
+        stripes[Math.floorMod(id, stripes.length)].remove(new Entry(toCents(price), id));
+    }
+
+    /**
+     * The entries with {@code minCents <= price <= maxCents}, starting strictly after
+     * {@code cursor} when one is given, read lazily from live views of the stripes.
+     * They are none if the range is empty, that is if {@code minCents > maxCents} or
+     * the cursor is at or past {@code maxCents}.
+     *
+     * @param minCents lowest price in cents, inclusive
+     * @param maxCents highest price in cents, inclusive
+     * @param cursor entry to resume after, or null to start at {@code minCents}
+     * @return matching entries in order
+     */
+    Stream<Entry> range(long minCents, long maxCents, Entry cursor) {
+        if (stripes.length == 1) {
+            return range(stripes[0], minCents, maxCents, cursor).stream();
+        }
+        MergedIterator<Entry> merged = new MergedIterator<>();
+        for (ConcurrentSkipListSet<Entry> entries : stripes) {
+            merged.add(range(entries, minCents, maxCents, cursor).iterator());
+        }
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(merged, Spliterator.ORDERED), false);
+    }
+
+    private static NavigableSet<Entry> range(ConcurrentSkipListSet<Entry> entries, long minCents, long maxCents, Entry cursor) {
+        Entry from = new Entry(minCents, Integer.MIN_VALUE);
+        Entry to = new Entry(maxCents, Integer.MAX_VALUE);
+        if (cursor != null && cursor.compareTo(from) >= 0) {
+            return cursor.compareTo(to) < 0 ? entries.subSet(cursor, false, to, true) : Collections.emptyNavigableSet();
+        }
+        return minCents <= maxCents ? entries.subSet(from, true, to, true) : Collections.emptyNavigableSet();
+    }
+
+    /**
+     * Convert a stored price string to whole cents.
+     *
+     * @param price decimal price string
+     * @return price in cents, rounded to the nearest cent
+     */
+    static long toCents(String price) {
+        return Math.round(Double.parseDouble(price) * 100);
+    }
+
+    /** One {@code (cents, id)} position in the index. */
+    static final class Entry implements Comparable<Entry> {
+        final long cents;
+        final int id;
+
+        Entry(long cents, int id) {
+            this.cents = cents;
+            this.id = id;
+        }
+
+        /**
+         * Parse a cursor produced by {@link #toString()}.
+         *
+         * @param cursor cursor text in the form {@code cents_id}
+         * @return the entry
+         * @throws NumberFormatException if the cursor is malformed
+         */
+        static Entry parse(String cursor) {
+            int sep = cursor.indexOf('_');
+            if (sep < 0) {
+                throw new NumberFormatException("bad cursor: " + cursor);
+            }
+            return new Entry(Long.parseLong(cursor.substring(0, sep)), Integer.parseInt(cursor.substring(sep + 1)));
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            int c = Long.compare(cents, other.cents);
+            return c != 0 ? c : Integer.compare(id, other.id);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Entry && compareTo((Entry) o) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(cents) * 31 + id;
+        }
+
+        @Override
+        public String toString() {
+            return cents + "_" + id;
+        }
+    }
+}
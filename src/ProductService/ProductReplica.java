@@ -0,0 +1,196 @@
+package ProductService;
+
+import Common.SeedLoader;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.stream.Stream;
+
+/**
+ * Keeps this ProductServer a read-only follower of a primary ProductServer.
+ *
+ * <p>On start, and whenever it loses its place (an overrun, a gap, or a restarted
+ * primary), the follower loads a snapshot from the primary's
+ * {@code GET /product/export}, whose {@code X-Change-Head} header says which change
+ * the snapshot is at least as new as. It then follows {@code GET /product/changes}
+ * from that sequence number, applying every event in
+ * order. Events carry the full record, so re-applying one is harmless, and an update
+ * older than the stored version is skipped, so the replica never goes backwards while
+ * it catches up past the snapshot.</p>
+ *
+ * <p>The follower tracks the primary time up to which it is known to be complete: the
+ * publication time of the last event applied, or of the last heartbeat received while
+ * fully caught up. {@link #lagMillis()} is the age of that time. The primary and
+ * follower clocks are assumed to agree, as they do for processes on one machine.</p>
+ */
+class ProductReplica implements Runnable {
+
+    /** Heartbeat interval requested from the primary while idle; the lag floor when no writes arrive. */
+    static final long HEARTBEAT_MILLIS = 250;
+
+    /** Pause before reconnecting after the primary becomes unreachable. */
+    static final long RETRY_MILLIS = 1000;
+
+    private final String primary;
+    private final HttpClient client = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+
+    /** Next sequence number to apply from the primary; 0 when a new snapshot is needed. */
+    private long next;
+
+    /** {@code X-Change-Epoch} of the primary's log the snapshot came from. */
+    private String epoch;
+
+    /** Primary time up to which this replica is complete; 0 until it first catches up. */
+    private volatile long freshAsOf;
+
+    /**
+     * @param primary primary's HTTP address as {@code ip:port}
+     */
+    ProductReplica(String primary) {
+        this.primary = primary;
+    }
+
+    /** Start replicating on a background thread. */
+    void start() {
+        Thread thread = new Thread(this, "replica-" + primary);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return how far, in milliseconds, this replica may be behind the primary, or
+     *         {@link Long#MAX_VALUE} while it has never caught up since its last snapshot
+     */
+    long lagMillis() {
+        long fresh = freshAsOf;
+        return fresh == 0 ? Long.MAX_VALUE : Math.max(0, System.currentTimeMillis() - fresh);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                if (next == 0) {
+                    snapshot();
+                }
+                follow();
+            } catch (IOException e) {
+                System.out.println("Replication from " + primary + " interrupted: " + e);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /** Replace the whole store with the primary's current export. */
+    private void snapshot() throws IOException, InterruptedException {
+        freshAsOf = 0;
+        long started = System.nanoTime();
+        HttpResponse<Stream<String>> response = client.send(get("/product/export"), HttpResponse.BodyHandlers.ofLines());
+        if (response.statusCode() != 200) {
+            throw new IOException("export returned " + response.statusCode());
+        }
+        long head = Long.parseLong(response.headers().firstValue("X-Change-Head")
+                .orElseThrow(() -> new IOException("export carries no X-Change-Head")));
+        String exportEpoch = response.headers().firstValue("X-Change-Epoch").orElse(null);
+
+        HashMap<Integer, ArrayList<String>> snapshot = new HashMap<>();
+        try (Stream<String> lines = response.body()) {
+            lines.forEach(line -> {
+                HashMap<String, String> fields = SeedLoader.parseObject(line);
+                if (fields != null && fields.get("id") != null) {
+                    snapshot.put(Integer.parseInt(fields.get("id")), record(fields));
+                }
+            });
+        }
+        ProductServer.replaceAll(snapshot);
+        next = head;
+        epoch = exportEpoch;
+        System.out.println("Loaded " + snapshot.size() + " products from " + primary + " at change " + head
+                + " in " + (System.nanoTime() - started) / 1_000_000 + " ms");
+    }
+
+    /** Apply the primary's change stream until it ends or this replica loses its place. */
+    private void follow() throws IOException, InterruptedException {
+        HttpResponse<InputStream> response = client.send(
+                get("/product/changes?from=" + next + "&heartbeat_ms=" + HEARTBEAT_MILLIS),
+                HttpResponse.BodyHandlers.ofInputStream());
+        // 410: the primary no longer has our position; 400 or a new epoch: it restarted
+        String streamEpoch = response.headers().firstValue("X-Change-Epoch").orElse(null);
+        if (response.statusCode() == 410 || response.statusCode() == 400
+                || (epoch != null && !epoch.equals(streamEpoch))) {
+            response.body().close();
+            next = 0;
+            return;
+        }
+        if (response.statusCode() != 200) {
+            response.body().close();
+            throw new IOException("change stream returned " + response.statusCode());
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(response.body(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                HashMap<String, String> event = SeedLoader.parseObject(line);
+                if (event == null || event.get("op") == null || event.get("seq") == null) {
+                    throw new IOException("bad change event: " + line);
+                }
+                String op = event.get("op");
+                long seq = Long.parseLong(event.get("seq"));
+                switch (op) {
+                    case "heartbeat":
+                        if (seq == next) {
+                            freshAsOf = Long.parseLong(event.get("ts"));
+                        }
+                        break;
+
+                    case "overrun":
+                        next = 0;
+                        return;
+
+                    default:
+                        if (seq != next) {
+                            // a gap means events were lost: start over from a snapshot
+                            next = 0;
+                            return;
+                        }
+                        int id = Integer.parseInt(event.get("id"));
+                        ProductServer.applyReplicated(op, id, "delete".equals(op) ? null : record(event));
+                        next = seq + 1;
+                        freshAsOf = Long.parseLong(event.get("ts"));
+                }
+            }
+        }
+        throw new IOException("change stream closed");
+    }
+
+    private HttpRequest get(String path) {
+        return HttpRequest.newBuilder(URI.create("http://" + primary + path)).GET().build();
+    }
+
+    /** Build a stored record from an export line or change event. */
+    private static ArrayList<String> record(HashMap<String, String> fields) {
+        ArrayList<String> values = new ArrayList<>();
+        values.add(fields.get("name"));
+        values.add(fields.get("price"));
+        values.add(fields.get("quantity"));
+        values.add(fields.get("description"));
+        values.add(fields.get("version"));
+        return values;
+    }
+}
@@ -0,0 +1,243 @@
+package ProductService;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory search index over product names and descriptions.
+ *
+ * <p>Three structures are maintained incrementally as products are created, updated
+ * and deleted:</p>
+ * <ul>
+ *   <li>a sorted map from lower-cased product name to the ids carrying that name,
+ *       so a name prefix is a single range of the map;</li>
+ *   <li>a map from every lower-cased name prefix of up to {@link #SHORT_PREFIX}
+ *       characters to the ids whose name starts with it, since such a prefix can be
+ *       shared by a large part of all names;</li>
+ *   <li>an inverted index from each lower-cased word of the name and description
+ *       to the ids containing it.</li>
+ * </ul>
+ *
+ * <p>Every posting list is an id-ordered set, so results come back in ascending id
+ * order and a page can resume from the last id returned without re-reading earlier
+ * matches. Each word's posting list keeps its size alongside, since counting a
+ * skip-list set walks it. All structures are concurrent: searches never block
+ * writers.</p>
+ *
+ * <p>The index may be split into stripes by id, product {@code id} going to stripe
+ * {@code floorMod(id, stripes)}, each with structures of its own; a search merges the
+ * stripes' ids. Writers of one stripe are expected to be serialized by the caller,
+ * while different stripes may be written concurrently, e.g. each by the store shard
+ * owning the same ids.</p>
+ */
+class ProductSearchIndex {
+
+    /** Longest name prefix with a posting list of its own. */
+    static final int SHORT_PREFIX = 3;
+
+    private final Stripe[] stripes;
+
+    /** An index of one stripe. */
+    ProductSearchIndex() {
+        this(1);
+    }
+
+    /** @param stripes number of stripes, at least 1 */
+    ProductSearchIndex(int stripes) {
+        this.stripes = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Index a product.
+     *
+     * @param id product id
+     * @param name product name
+     * @param description product description
+     */
+    void add(int id, String name, String description) {
+        Stripe stripe = stripes[Math.floorMod(id, stripes.length)];
+        String key = name.toLowerCase();
+        stripe.names.computeIfAbsent(key, k -> new ConcurrentSkipListSet<>()).add(id);
+        for (int n = 1; n <= Math.min(SHORT_PREFIX, key.length()); n++) {
+            stripe.prefixes.computeIfAbsent(key.substring(0, n), k -> new ConcurrentSkipListSet<>()).add(id);
+        }
+        for (String token : tokenize(name + " " + description)) {
+            Posting posting = stripe.tokens.computeIfAbsent(token, k -> new Posting());
+            if (posting.ids.add(id)) {
+                posting.size.increment();
+            }
+        }
+    }
+
+    /**
+     * Remove a product previously indexed with the same name and description.
+     *
+     * @param id product id
+     * @param name product name it was indexed under
+     * @param description product description it was indexed under
+     */
+    void remove(int id, String name, String description) {
+        Stripe stripe = stripes[Math.floorMod(id, stripes.length)];
+        String key = name.toLowerCase();
+        removeFrom(stripe.names, key, id);
+        for (int n = 1; n <= Math.min(SHORT_PREFIX, key.length()); n++) {
+            removeFrom(stripe.prefixes, key.substring(0, n), id);
+        }
+        for (String token : tokenize(name + " " + description)) {
+            stripe.tokens.computeIfPresent(token, (k, posting) -> {
+                if (posting.ids.remove(id)) {
+                    posting.size.decrement();
+                }
+                return posting.ids.isEmpty() ? null : posting;
+            });
+        }
+    }
+
+    /**
+     * Find products whose name starts with the query, or whose name and description
+     * together contain every word of the query.
+     *
+     * @param query search text
+     * @param cursor exclusive lower bound on returned ids, or null to start from the beginning
+     * @param limit maximum number of ids to return
+     * @return up to {@code limit} matching ids in ascending order
+     */
+    ArrayList<Integer> search(String query, Integer cursor, int limit) {
+        ArrayList<Integer> out = new ArrayList<>();
+        String prefix = query.trim().toLowerCase();
+        if (prefix.isEmpty() || limit <= 0) {
+            return out;
+        }
+
+        MergedIterator<Integer> merged = new MergedIterator<>();
+        ArrayList<String> words = tokenize(prefix);
+        for (Stripe stripe : stripes) {
+            merged.add(byPrefix(stripe, prefix, cursor, limit));
+            merged.add(allTokens(stripe, words, cursor));
+        }
+
+        Integer last = null;
+        while (merged.hasNext() && out.size() < limit) {
+            Integer id = merged.next();
+            if (!id.equals(last)) {
+                out.add(id);
+                last = id;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * The ids after the cursor, in ascending order, of the products of a stripe whose
+     * name starts with the prefix: at least the first {@code limit} of them, if there
+     * are that many.
+     *
+     * <p>A prefix of up to {@link #SHORT_PREFIX} characters has its own posting list,
+     * which is read lazily from the cursor: a page costs {@code O(log n + limit)}
+     * however many names match. A longer prefix walks the names under it instead,
+     * {@code O(m log n)} for {@code m} distinct matching names, holding only
+     * {@code limit} ids at a time and reading a name's ids only while they beat the
+     * largest held.</p>
+     */
+    private static Iterator<Integer> byPrefix(Stripe stripe, String prefix, Integer cursor, int limit) {
+        if (prefix.length() <= SHORT_PREFIX) {
+            ConcurrentSkipListSet<Integer> ids = stripe.prefixes.get(prefix);
+            return ids == null ? null : after(ids, cursor).iterator();
+        }
+        TreeSet<Integer> first = new TreeSet<>();
+        for (ConcurrentSkipListSet<Integer> ids : stripe.names.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values()) {
+            Integer id = cursor == null ? ids.ceiling(Integer.MIN_VALUE) : ids.higher(cursor);
+            while (id != null && (first.size() < limit || id < first.last())) {
+                first.add(id);
+                if (first.size() > limit) {
+                    first.pollLast();
+                }
+                id = ids.higher(id);
+            }
+        }
+        return first.iterator();
+    }
+
+    /**
+     * Iterate the ids of a stripe that appear under every one of the given words,
+     * intersecting from the shortest posting list.
+     */
+    private static Iterator<Integer> allTokens(Stripe stripe, ArrayList<String> words, Integer cursor) {
+        if (words.isEmpty()) {
+            return null;
+        }
+        ArrayList<Posting> lists = new ArrayList<>();
+        for (String word : words) {
+            Posting posting = stripe.tokens.get(word);
+            if (posting == null) {
+                return null;
+            }
+            lists.add(posting);
+        }
+        lists.sort((a, b) -> Long.compare(a.size.sum(), b.size.sum()));
+        ConcurrentSkipListSet<Integer> smallest = lists.remove(0).ids;
+        return after(smallest, cursor).stream()
+                .filter(id -> {
+                    for (Posting other : lists) {
+                        if (!other.ids.contains(id)) return false;
+                    }
+                    return true;
+                })
+                .iterator();
+    }
+
+    private static NavigableSet<Integer> after(ConcurrentSkipListSet<Integer> ids, Integer cursor) {
+        return cursor == null ? ids : ids.tailSet(cursor, false);
+    }
+
+    private static <K> void removeFrom(Map<K, ConcurrentSkipListSet<Integer>> index, K key, int id) {
+        index.computeIfPresent(key, (k, ids) -> {
+            ids.remove(id);
+            return ids.isEmpty() ? null : ids;
+        });
+    }
+
+    /**
+     * Split text into lower-cased alphanumeric words.
+     *
+     * @param text input text
+     * @return distinct words in order of first appearance
+     */
+    static ArrayList<String> tokenize(String text) {
+        ArrayList<String> words = new ArrayList<>();
+        for (String word : text.toLowerCase().split("[^\\p{Alnum}]+")) {
+            if (!word.isEmpty() && !words.contains(word)) {
+                words.add(word);
+            }
+        }
+        return words;
+    }
+
+    /** The structures of one stripe. */
+    private static final class Stripe {
+        /** Lower-cased full product name to the ids with that name. */
+        final ConcurrentSkipListMap<String, ConcurrentSkipListSet<Integer>> names = new ConcurrentSkipListMap<>();
+
+        /** Lower-cased name prefix of up to {@link #SHORT_PREFIX} characters to the ids whose name starts with it. */
+        final ConcurrentHashMap<String, ConcurrentSkipListSet<Integer>> prefixes = new ConcurrentHashMap<>();
+
+        /** Lower-cased word to the ids whose name or description contains it. */
+        final ConcurrentHashMap<String, Posting> tokens = new ConcurrentHashMap<>();
+    }
+
+    /** A word's ids, with their count. */
+    private static final class Posting {
+        final ConcurrentSkipListSet<Integer> ids = new ConcurrentSkipListSet<>();
+        final LongAdder size = new LongAdder();
+    }
+}
@@ -3,32 +3,183 @@ package ProductService;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
+import Common.AccessLog;
+import Common.ChangeLog;
+import Common.ChangeStream;
+import Common.Deadline;
+import Common.ExportFile;
+import Common.NdjsonWriter;
+import Common.NioHttpServer;
+import Common.RequestEvent;
+import Common.Router;
+import Common.Rpc;
+import Common.RpcServer;
+import Common.SeedLoader;
+import Common.StoreEvent;
+import Common.TrafficCapture;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 /**
  * ProductServer is an HTTP microservice that manages products in-memory.
  *
  * <p>Exposed endpoints:</p>
  * <ul>
- *   <li>GET /product/{id} - retrieve product by id</li>
- *   <li>POST /product     - create, update, or delete products using a JSON command payload</li>
+ *   <li>GET /product/{id} - retrieve product by id; honours {@code If-None-Match}</li>
+ *   <li>GET /product?from=&amp;to=&amp;min_price=&amp;max_price=&amp;limit=&amp;cursor= - list products by id or price range</li>
+ *   <li>GET /product?ids=1,2,3 - the products with the given ids</li>
+ *   <li>GET /product/search?q=&amp;limit=&amp;cursor= - search products by name prefix or words</li>
+ *   <li>GET /product/export - stream every product as NDJSON (see {@link ExportFile})</li>
+ *   <li>GET /product/changes?from=&amp;follow= - stream every change from a sequence number (see {@link ChangeStream})</li>
+ *   <li>POST /product     - create, update, delete, reserve, reserve batch, hot or cold products, or hold, confirm or release stock, using a JSON command payload</li>
  * </ul>
  *
- * <p>Products are stored in a {@code HashMap<Integer, ArrayList<String>>} where each list
- * holds {@code [name, price, quantity, description]} as strings.</p>
+ * <p>If the config sets {@code rpc_port}, the same get, update and reserve operations
+ * are also served over the binary protocol in {@link Rpc} on that port.</p>
+ *
+ * <p>Started with {@code --follow ip:port}, the server is instead a read-only follower
+ * of the primary at that address (see {@link ProductReplica}): it answers GETs from a
+ * replicated copy of the store with an {@code X-Replica-Lag-Ms} header, refuses POSTs
+ * with 405, answers 503 while it is more than {@code max_staleness_ms} behind, and
+ * opens no RPC listener.</p>
+ *
+ * <p>Products are stored in a {@code ConcurrentSkipListMap<Integer, ArrayList<String>>}
+ * ordered by id, where each list holds {@code [name, price, quantity, description, version]}
+ * as strings. Records are replaced on update rather than modified in place.</p>
+ *
+ * <p>A product marked {@code hot} keeps its stock in a {@link HotStock} of per-core
+ * counters instead of its record, so flash-sale reservations on it scale with cores
+ * rather than queueing on {@link #writeLock}. Single-product reads report the exact
+ * counter total, and since that changes without a new version they carry no ETag and
+ * are never answered 304; the record, and so exports and the change stream, catch up
+ * every {@link #HOT_FLUSH_MILLIS}. {@code cold} folds the stock back into the
+ * record.</p>
+ *
+ * <p>A {@code hold} takes stock like a reservation but only for a time: {@code confirm}
+ * keeps the units as sold, while {@code release}, or the hold running out, returns them
+ * to the product. Holds expire off a {@link TimingWheel} (see {@link StockHolds}), and
+ * GET /product/{id} reports the units held beside the stock still available.</p>
+ *
+ * <p>With {@code store_shards} set in the config, the store is split into that many
+ * {@link ProductShards}, each written only by its own thread, so writes to products in
+ * different shards never contend on a lock: the search and price indexes are striped
+ * the same way, each stripe written by its shard's owner. RPC writes are handed to the
+ * owner and answered from it, never waited on by the RPC selector. A follower does not
+ * shard.</p>
+ *
+ * <p>Every write stamps the record with a new value from {@link #versionClock}. The
+ * version is returned as the {@code ETag}, so GETs carrying a matching
+ * {@code If-None-Match} get a bodyless 304, and updates carrying {@code If-Match}
+ * only apply if the record has not changed since it was read.</p>
  */
 public class ProductServer {
     static Integer PORT;
     static String IP;
     static String PATH;
 
-    static HashMap<Integer, ArrayList<String> > products = new HashMap<>();
+    /** Port of the binary RPC listener ({@code rpc_port} in the config), or null for none. */
+    static Integer RPC_PORT;
+
+    /** This service's section of the config, which also selects the HTTP engine. */
+    static HashMap<String, String> CONFIG;
+
+    static ConcurrentSkipListMap<Integer, ArrayList<String> > products = new ConcurrentSkipListMap<>();
+
+    /** Name-prefix and word index over {@link #products}, kept in step by the POST handlers. */
+    static ProductSearchIndex searchIndex = new ProductSearchIndex();
+
+    /** Price-ordered index over {@link #products}, kept in step by the POST handlers. */
+    static ProductPriceIndex priceIndex = new ProductPriceIndex();
+
+    /** Default and maximum page size for GET /product/search. */
+    static final int DEFAULT_PAGE_SIZE = 20;
+    static final int MAX_PAGE_SIZE = 100;
+
+    /** Maximum page size for GET /product range listings, which are streamed. */
+    static final int MAX_LIST_SIZE = 1000;
+
+    /**
+     * Guards every mutation of {@link #products} and its indexes, unless the store is
+     * sharded (see {@link #asWriter}). Reads do not lock; stored records are replaced,
+     * never modified in place.
+     */
+    static final Object writeLock = new Object();
+
+    /** Directory export files are written to; {@code export_dir} in the config, else the temp dir. */
+    static Path EXPORT_DIR;
+
+    /** Source of record versions. Global, so a re-created id never reuses an old ETag. */
+    static final AtomicLong versionClock = new AtomicLong();
+
+    /** Position of the version in a product record. */
+    static final int VERSION = 4;
+
+    /** Number of recent changes kept for GET /product/changes subscribers. */
+    static final int CHANGE_LOG_SIZE = 1 << 16;
+
+    /**
+     * Every create, update, reserve and delete, published by the product's writer (see
+     * {@link #asWriter}) so sequence order is commit order, across the whole store, or
+     * per product when it is sharded. Seeded products are not published.
+     */
+    static final ChangeLog<ArrayList<String>> changes = new ChangeLog<>(CHANGE_LOG_SIZE);
+
+    /** Most reservations one {@code reserve batch} command may carry. */
+    static final int MAX_RESERVE_BATCH = 1024;
+
+    /** Stock counters of products in hot mode, by id; their record quantity may lag. */
+    static final ConcurrentHashMap<Integer, HotStock> hotStock = new ConcurrentHashMap<>();
+
+    /** Interval at which hot stock totals are written back to their records. */
+    static final long HOT_FLUSH_MILLIS = 1000;
+
+    /** Writes hot stock back to records; started by the first {@code hot} command. */
+    static ScheduledExecutorService hotFlusher;
+
+    /** Replication from the primary when this server is a follower, else null. */
+    static ProductReplica replica;
+
+    /** Lag beyond which a follower answers 503; {@code max_staleness_ms} in the config. */
+    static long MAX_STALENESS_MS = 5000;
+
+    /** Single-writer shards of the store when {@code store_shards} is set, else null. */
+    static ProductShards shards;
+
+    /** Resolution of hold expiry. */
+    static final long HOLD_TICK_MILLIS = 100;
+
+    /** Default for {@code hold_ttl_ms}: how long a hold lasts if its command names no {@code ttl_ms}. */
+    static final long DEFAULT_HOLD_TTL_MILLIS = 10 * 60_000;
+
+    /** Lifetime of a hold whose command names no {@code ttl_ms}. */
+    static long holdTtlMillis = DEFAULT_HOLD_TTL_MILLIS;
+
+    /** Outstanding stock holds; an expired hold's units go back to its product. */
+    static final StockHolds holds = new StockHolds(HOLD_TICK_MILLIS,
+            hold -> ProductHandler.restock(hold.product, hold.quantity));
 
     /**
      * Parse a flat JSON object string into a map of key->value strings.
@@ -40,6 +191,7 @@ public class ProductServer {
      */
     static HashMap<String, String> stringToMap(String json) {
 
+        long started = RequestEvent.start();
         HashMap<String, String> mapOutput = new HashMap<>();
 
         json = json.trim();
@@ -67,6 +219,7 @@ public class ProductServer {
             mapOutput.put(key, value);
         }
 
+        RequestEvent.parse(started);
         return mapOutput;
     }
 
@@ -119,135 +272,339 @@ public class ProductServer {
     /**
      * Main entrypoint for the ProductServer. Reads configuration and starts the HTTP server.
      *
-     * @param args command line arguments; args[0] must be the path to the config JSON
+     * @param args command line arguments; args[0] must be the path to the config JSON,
+     *             then optionally a CSV or NDJSON seed file loaded before binding,
+     *             {@code --port N} to listen on another port than the config's, and
+     *             {@code --follow ip:port} to run as a read-only follower of that primary
      * @throws IOException when configuration file cannot be read or server fails to start
      */
     public static void main(String[] args) throws IOException {
-        PATH = args[0];
-        String jsonConfig = Files.readString(Path.of(PATH));
-        HashMap<String, HashMap<String, String>> configMap = parseConfig(jsonConfig);
-        PORT = Integer.parseInt(configMap.get("ProductService").get("port"));
-        IP = configMap.get("ProductService").get("ip");
+        String seedFile = null;
+        Integer port = null;
+        String primary = null;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--port") && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--follow") && i + 1 < args.length) {
+                primary = args[++i];
+            } else {
+                seedFile = args[i];
+            }
+        }
+        init(args[0], seedFile);
+        if (port != null) {
+            PORT = port;
+        }
+        if (primary != null) {
+            if (shards != null) {
+                // a follower's store is written only by replication, which swaps it whole
+                shards.stop();
+                shards = null;
+            }
+            replica = new ProductReplica(primary);
+            replica.start();
+        }
 
-        HttpServer server = HttpServer.create(new InetSocketAddress(IP, PORT), 0);
-        server.createContext("/product", new ProductServer.ProductHandler());
-        server.setExecutor(null);
+        HttpServer server = NioHttpServer.create(new InetSocketAddress(IP, PORT), CONFIG);
+        server.createContext("/product", handler())
+                .getFilters().addAll(List.of(AccessLog.filter("product"), RequestEvent.filter("product"), TrafficCapture.filter("product")));
+        // Handlers run on a pool so long range scans never hold up concurrent writes
+        server.setExecutor(Executors.newCachedThreadPool());
         server.start();
         System.out.println("Server started on port " + PORT);
 
+        if (RPC_PORT != null && replica == null) {
+            RpcServer.start(IP, RPC_PORT, ProductServer::dispatch, ProductServer::placement);
+            System.out.println("RPC listener started on port " + RPC_PORT);
+        }
     }
 
     /**
-     * HTTP handler for the /product endpoint. Supports GET and POST operations.
+     * Read this service's configuration and load the seed file, if any, without
+     * binding a port. Used by {@link #main} and by launchers that host the service
+     * in-process.
+     *
+     * @param configPath path to config.json
+     * @param seedFile CSV or NDJSON seed file, or null
+     * @throws IOException if the config or seed file cannot be read
      */
-    static class ProductHandler implements HttpHandler {
-        @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            if ("GET".equals(exchange.getRequestMethod())) {
-                String path = exchange.getRequestURI().getPath();
-                String[] tokenized_path = path.split("/");
+    public static void init(String configPath, String seedFile) throws IOException {
+        PATH = configPath;
+        String jsonConfig = Files.readString(Path.of(PATH));
+        HashMap<String, HashMap<String, String>> configMap = parseConfig(jsonConfig);
+        PORT = Integer.parseInt(configMap.get("ProductService").get("port"));
+        IP = configMap.get("ProductService").get("ip");
+        CONFIG = configMap.get("ProductService");
+        AccessLog.configure(configMap.get("ProductService"));
+        TrafficCapture.configure(configMap.get("ProductService"));
+        EXPORT_DIR = Path.of(configMap.get("ProductService").getOrDefault("export_dir", System.getProperty("java.io.tmpdir")));
+        String rpcPort = configMap.get("ProductService").get("rpc_port");
+        RPC_PORT = rpcPort != null ? Integer.parseInt(rpcPort) : null;
+        String staleness = configMap.get("ProductService").get("max_staleness_ms");
+        if (staleness != null) {
+            MAX_STALENESS_MS = Long.parseLong(staleness);
+        }
+        String holdTtl = configMap.get("ProductService").get("hold_ttl_ms");
+        if (holdTtl != null) {
+            holdTtlMillis = Math.min(Long.parseLong(holdTtl), holds.maxTtlMillis());
+        }
 
-                // require exactly one numeric segment after /product
-                if (tokenized_path.length != 3) {
-                    sendJsonwithCode(exchange, path, 400);
-                    return;
-                }
+        String storeShards = configMap.get("ProductService").get("store_shards");
+        int shardCount = storeShards != null ? Integer.parseInt(storeShards) : 0;
+        if (shardCount > 0) {
+            searchIndex = new ProductSearchIndex(shardCount);
+            priceIndex = new ProductPriceIndex(shardCount);
+        }
 
+        if (seedFile != null) {
+            seed(Path.of(seedFile));
+        }
+        if (shardCount > 0) {
+            shards = new ProductShards(shardCount);
+        }
+    }
 
-                String body = new String(
-                        exchange.getRequestBody().readAllBytes(),
-                        StandardCharsets.UTF_8
-                );
+    /**
+     * Requests that arrive after their {@link Deadline} are answered 504 unhandled.
+     *
+     * @return a handler for the /product context, serving the store loaded by {@link #init}
+     */
+    public static HttpHandler handler() {
+        return Deadline.guard(new ProductHandler());
+    }
 
-                if (!body.trim().isEmpty()) {
-                    String trimmed = body.trim();
-                    HashMap<String, String> bodyMap = stringToMap(trimmed);
-                    if (bodyMap != null) {
-                        
-                        String idInBody = bodyMap.get("id");
-                        if (idInBody == null) {
-                            sendJsonwithCode(exchange, "{}", 400);
-                            return;
-                        }
-                        try {
-                            int idBody = Integer.parseInt(idInBody);
-                            int idPath = Integer.parseInt(tokenized_path[2]);
-                            if (idBody != idPath) {
-                                sendJsonwithCode(exchange, "{}", 400);
-                                return;
-                            }
-                        } catch (NumberFormatException e) {
-                            sendJsonwithCode(exchange, "{}", 400);
-                            return;
-                        }
+    /**
+     * Bulk-load products from a seed file before the server starts.
+     * <p>Lines are parsed in parallel by {@link SeedLoader} and checked with the same
+     * rules as a {@code create} command; invalid lines and duplicate ids are skipped.
+     * Accepted chunks are inserted into the store in parallel; the search and price
+     * indexes, whose writers must be serialized, are then filled in one pass.</p>
+     *
+     * @param file CSV (with a header row) or NDJSON file of products
+     * @throws IOException if the file cannot be read
+     */
+    static void seed(Path file) throws IOException {
+        long started = System.nanoTime();
+        SeedLoader.Result<Map.Entry<Integer, ArrayList<String>>> result = SeedLoader.load(file, ProductServer::seedRecord);
 
-                    }
+        AtomicLong duplicates = new AtomicLong();
+        result.chunks.parallelStream().forEach(chunk -> {
+            for (Map.Entry<Integer, ArrayList<String>> entry : chunk) {
+                ArrayList<String> product = entry.getValue();
+                if (products.putIfAbsent(entry.getKey(), product) != null) {
+                    duplicates.incrementAndGet();
                 }
-
-                int prodID;
-                try {
-                    prodID = Integer.parseInt(tokenized_path[2]);
-                } catch (NumberFormatException e) {
-                    sendJsonwithCode(exchange, "{}", 400);
-                    return;
+            }
+        });
+        for (ArrayList<Map.Entry<Integer, ArrayList<String>>> chunk : result.chunks) {
+            for (Map.Entry<Integer, ArrayList<String>> entry : chunk) {
+                ArrayList<String> product = entry.getValue();
+                // only the record that won its id
+                if (products.get(entry.getKey()) == product) {
+                    searchIndex.add(entry.getKey(), product.get(0), product.get(3));
+                    priceIndex.add(entry.getKey(), product.get(1));
                 }
+            }
+        }
+        System.out.println("Seeded " + (result.accepted() - duplicates.get()) + " products from " + file
+                + " (" + (result.rejected + duplicates.get()) + " skipped) in "
+                + (System.nanoTime() - started) / 1_000_000 + " ms");
+    }
 
-                ArrayList<String> product = products.get(prodID);
-                if (product == null) {
-                    sendJsonwithCode(exchange, "{}", 404);
-                    return;
-                }
+    /**
+     * Turn one seed line into a product, applying the {@code create} validation rules.
+     *
+     * @param fields parsed seed line
+     * @return id and record, or null if the line is not a valid product
+     */
+    static Map.Entry<Integer, ArrayList<String>> seedRecord(HashMap<String, String> fields) {
+        if (fields.get("id") == null || fields.get("name") == null || fields.get("price") == null
+                || fields.get("quantity") == null || fields.get("description") == null) {
+            return null;
+        }
+        if (ProductHandler.checkFields(fields) != 200) {
+            return null;
+        }
+        return new AbstractMap.SimpleImmutableEntry<>(Integer.parseInt(fields.get("id")), ProductHandler.newRecord(fields));
+    }
 
-                String json = "{"
-                        + "\"id\": " + prodID + ","
-                        + "\"name\": \"" + product.get(0) + "\","
-                        + "\"description\": \"" + product.get(3) + "\","
-                        + "\"price\": " + product.get(1) + ","
-                        + "\"quantity\": " + product.get(2)
-                        + "}";
+    /**
+     * Replace the whole store, indexes included, with a follower's snapshot of the
+     * primary. The new store is built aside and swapped in under {@link #writeLock}.
+     *
+     * @param snapshot every product of the primary, by id
+     */
+    static void replaceAll(Map<Integer, ArrayList<String>> snapshot) {
+        ConcurrentSkipListMap<Integer, ArrayList<String>> store = new ConcurrentSkipListMap<>(snapshot);
+        ProductSearchIndex search = new ProductSearchIndex();
+        ProductPriceIndex price = new ProductPriceIndex();
+        store.forEach((id, product) -> {
+            search.add(id, product.get(0), product.get(3));
+            price.add(id, product.get(1));
+        });
+        synchronized (writeLock) {
+            products = store;
+            searchIndex = search;
+            priceIndex = price;
+        }
+    }
 
-                sendJson(exchange, json);
+    /**
+     * Apply one change replicated from the primary, keeping the primary's version so
+     * ETags agree across replicas. An update older than the stored record is skipped.
+     * Applied changes are republished to this server's own change log.
+     *
+     * @param op "create", "update" or "delete"
+     * @param id id of the changed product
+     * @param record product after the change, or null for a delete
+     */
+    static void applyReplicated(String op, int id, ArrayList<String> record) {
+        synchronized (writeLock) {
+            ArrayList<String> current = products.get(id);
+            if (record != null && current != null
+                    && Long.parseLong(record.get(VERSION)) <= Long.parseLong(current.get(VERSION))) {
+                return;
+            }
+            if (current != null) {
+                searchIndex.remove(id, current.get(0), current.get(3));
+                priceIndex.remove(id, current.get(1));
+            }
+            if (record == null) {
+                if (current == null) {
+                    return;
+                }
+                products.remove(id);
+            } else {
+                products.put(id, record);
+                searchIndex.add(id, record.get(0), record.get(3));
+                priceIndex.add(id, record.get(1));
             }
+            changes.publish(op, id, record);
+        }
+    }
+
+    /**
+     * HTTP handler for the /product endpoint. Supports GET and POST operations.
+     */
+    static class ProductHandler implements HttpHandler {
 
-            else if ("POST".equals(exchange.getRequestMethod())) {
-                String path = exchange.getRequestURI().getPath();
-                String[] tokenized_path = path.split("/");
+        /** Routes under /product; anything else is answered 400. */
+        private static final Router routes = new Router(exchange -> sendJsonwithCode(exchange, "{}", 400))
+                // GET /product lists a range of the catalog
+                .get("/product", ProductHandler::listHandler)
+                .get("/product/search", ProductHandler::searchHandler)
+                .get("/product/export", ProductHandler::exportHandler)
+                .get("/product/changes", exchange -> ChangeStream.serve(exchange, changes, ProductServer::writeFields))
+                .get("/product/{id}", ProductHandler::getHandler)
                 // POST must target the collection root: /product
+                .post("/product", ProductHandler::postHandler);
 
-                if (tokenized_path.length != 2) {
-                    sendJsonwithCode(exchange, "{}", 400);
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (replica != null) {
+                if (!"GET".equals(exchange.getRequestMethod())) {
+                    sendJsonwithCode(exchange, "{}", 405);
                     return;
                 }
-
-                // Parse the input string
-                String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
-                HashMap<String, String> bodyMap = stringToMap(body);
-                if (bodyMap == null) {
-                    sendJsonwithCode(exchange, "{}", 400);
+                long lag = replica.lagMillis();
+                if (lag != Long.MAX_VALUE) {
+                    exchange.getResponseHeaders().set("X-Replica-Lag-Ms", String.valueOf(lag));
+                }
+                if (lag > MAX_STALENESS_MS) {
+                    sendJsonwithCode(exchange, "{}", 503);
                     return;
                 }
+            }
+            routes.handle(exchange);
+        }
+
+        /**
+         * Serve GET /product/{id}. A body, if any, must name the same id.
+         *
+         * @param exchange HttpExchange used to send the response
+         * @param prodID product id from the path
+         * @throws IOException on write errors
+         */
+        static void getHandler(HttpExchange exchange, int prodID) throws IOException {
+            String body = new String(
+                    exchange.getRequestBody().readAllBytes(),
+                    StandardCharsets.UTF_8
+            );
+
+            if (!body.trim().isEmpty()) {
+                String trimmed = body.trim();
+                HashMap<String, String> bodyMap = stringToMap(trimmed);
+                if (bodyMap != null) {
+
+                    String idInBody = bodyMap.get("id");
+                    if (idInBody == null) {
+                        sendJsonwithCode(exchange, "{}", 400);
+                        return;
+                    }
+                    try {
+                        if (Integer.parseInt(idInBody) != prodID) {
+                            sendJsonwithCode(exchange, "{}", 400);
+                            return;
+                        }
+                    } catch (NumberFormatException e) {
+                        sendJsonwithCode(exchange, "{}", 400);
+                        return;
+                    }
 
-                int code = ProdValidation(bodyMap, exchange);
-                if (code != 200) {
-                    sendJsonwithCode(exchange, "{}", code);
-                    return;
                 }
             }
-            else {
+            RequestEvent.product(prodID);
+
+            ArrayList<String> product = products.get(prodID);
+            if (product == null) {
+                sendJsonwithCode(exchange, "{}", 404);
+                return;
+            }
+            if (hotStock.containsKey(prodID)) {
+                // the live stock has no version of its own for a tag to vouch for
+                sendJson(exchange, productToJson(prodID, withLiveStock(prodID, product), holds.held(prodID)));
+                return;
+            }
+
+            String etag = etag(product);
+            exchange.getResponseHeaders().set("ETag", etag);
+            if (etagMatches(exchange.getRequestHeaders().getFirst("If-None-Match"), etag)) {
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+            sendJson(exchange, productToJson(prodID, product, holds.held(prodID)));
+        }
+
+        /**
+         * Serve POST /product: a product command in the body.
+         *
+         * @param exchange HttpExchange used to send the response
+         * @throws IOException on write errors
+         */
+        static void postHandler(HttpExchange exchange) throws IOException {
+            // Parse the input string
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            HashMap<String, String> bodyMap = stringToMap(body);
+            if (bodyMap == null) {
                 sendJsonwithCode(exchange, "{}", 400);
+                return;
+            }
+
+            int code = ProdValidation(bodyMap, exchange);
+            if (code != 200) {
+                sendJsonwithCode(exchange, "{}", code);
             }
         }
     /**
-     * Validate a product JSON command payload.
+     * Check the id and any product fields present in a payload: the id and quantity
+     * must be integers, the price a non-negative number, the quantity at least 1, and
+     * name and description must not be blank.
      *
      * @param bodyMap parsed flat JSON body
-     * @param exchange HttpExchange (used for handlers to send responses)
-     * @return HTTP status code indicating validation result (200 on success)
-     * @throws IOException on I/O errors
+     * @return 200 if the fields are valid, 400 otherwise
      */
-    static int ProdValidation(HashMap<String, String> bodyMap, HttpExchange exchange) throws IOException {
-
-        String command =  bodyMap.get("command");
+    static int checkFields(HashMap<String, String> bodyMap) {
         String idString = bodyMap.get("id");
         String descriptionString = bodyMap.get("description");
         String priceStr = bodyMap.get("price");
@@ -257,9 +614,8 @@ public class ProductServer {
         if (idString == null) {
             return 400;
         }
-        int id;
         try {
-            id = Integer.parseInt(idString);
+            Integer.parseInt(idString);
             if (priceStr != null) {
                 double v = Double.parseDouble(priceStr);
                 if (v < 0) {
@@ -288,6 +644,47 @@ public class ProductServer {
             return 400;
         }
 
+        return 200;
+    }
+    /**
+     * Validate a product JSON command payload.
+     *
+     * @param bodyMap parsed flat JSON body
+     * @param exchange HttpExchange (used for handlers to send responses)
+     * @return HTTP status code indicating validation result (200 on success)
+     * @throws IOException on I/O errors
+     */
+    static int ProdValidation(HashMap<String, String> bodyMap, HttpExchange exchange) throws IOException {
+
+        String command =  bodyMap.get("command");
+        String idString = bodyMap.get("id");
+        String descriptionString = bodyMap.get("description");
+        String priceStr = bodyMap.get("price");
+        String quantityStr = bodyMap.get("quantity");
+        String productNameStr = bodyMap.get("name");
+
+        // reserve carries a quantity to take, which may be 0, rather than a new stock level
+        if ("reserve".equals(command)) {
+            return reserveHandler(bodyMap, exchange);
+        }
+        if ("reserve batch".equals(command)) {
+            return reserveBatchHandler(bodyMap, exchange);
+        }
+        if ("hold".equals(command)) {
+            return holdHandler(bodyMap, exchange);
+        }
+        // confirm and release name a hold rather than a product
+        if ("confirm".equals(command) || "release".equals(command)) {
+            return endHoldHandler(command, bodyMap, exchange);
+        }
+
+        int fieldCode = checkFields(bodyMap);
+        if (fieldCode != 200) {
+            return fieldCode;
+        }
+        int id = Integer.parseInt(idString);
+        RequestEvent.product(id);
+
         if (command == null) {
             return 400;
         }
@@ -299,15 +696,17 @@ public class ProductServer {
                 if (priceStr == null || quantityStr == null || productNameStr == null || descriptionString == null) {
                     return 400;
                 }
-                createHandler(bodyMap, id, exchange);
-                break;
+                return createHandler(bodyMap, id, exchange);
 
             case "update":
                 if (products.get(id) == null) {
                     return 404;
                 }
-                updateHandler(bodyMap, id, exchange);
-                break;
+                return updateHandler(bodyMap, id, exchange);
+
+            case "hot":
+            case "cold":
+                return hotHandler(command, id, exchange);
 
             case "delete":
                 ArrayList<String> verifyInt = products.get(id);
@@ -325,7 +724,7 @@ public class ProductServer {
 
                 String storedName = verifyInt.get(0);
                 String storedPrice = verifyInt.get(1);
-                String storedQuantity = verifyInt.get(2);
+                String storedQuantity = withLiveStock(id, verifyInt).get(2);
 
                 if (!(name.equals(storedName)
                         && price.equals(storedPrice)
@@ -341,14 +740,12 @@ public class ProductServer {
         return 200;
     }
     /**
-     * Create a new product and send a JSON response with the created product.
+     * Build the stored record for a validated create payload, stamped with a new version.
      *
-     * @param bodyMap parsed request body
-     * @param id product id
-     * @param exchange HttpExchange used to send the response
-     * @throws IOException on write errors
+     * @param bodyMap parsed request body with name, price, quantity and description
+     * @return record {@code [name, price, quantity, description, version]}
      */
-    static void createHandler(HashMap<String, String> bodyMap, int id, HttpExchange exchange) throws IOException {
+    static ArrayList<String> newRecord(HashMap<String, String> bodyMap) {
         ArrayList<String> values = new ArrayList<>();
 
         values.add(bodyMap.get("name"));
@@ -357,16 +754,40 @@ public class ProductServer {
         values.add(formatted);
         values.add(bodyMap.get("quantity"));
         values.add(bodyMap.get("description"));
+        values.add(String.valueOf(versionClock.incrementAndGet()));
+        return values;
+    }
+    /**
+     * Create a new product and send a JSON response with the created product.
+     *
+     * @param bodyMap parsed request body
+     * @param id product id
+     * @param exchange HttpExchange used to send the response
+     * @return HTTP status code (200 on success, 409 if the id is taken)
+     * @throws IOException on write errors
+     */
+    static int createHandler(HashMap<String, String> bodyMap, int id, HttpExchange exchange) throws IOException {
+        ArrayList<String> values = newRecord(bodyMap);
 
-        products.put(id,  values);
-        String payload = "{"
-                + "\"id\": " + id + ","
-                + "\"name\": \"" + bodyMap.get("name") + "\","
-                + "\"description\": \"" + bodyMap.get("description") + "\","
-                + "\"price\": " + formatted + ","
-                + "\"quantity\": " + bodyMap.get("quantity")
-                + "}";
-        sendJsonwithCode(exchange, payload, 200);
+        StoreEvent event = StoreEvent.begin("product", "create", id);
+        boolean created = asWriter(id, () -> {
+            if (stored(id) != null) {
+                return false;
+            }
+            store(id, values);
+            searchIndex.add(id, values.get(0), values.get(3));
+            priceIndex.add(id, values.get(1));
+            changes.publish("create", id, values);
+            return true;
+        });
+        if (!created) {
+            StoreEvent.end(event, 409);
+            return 409;
+        }
+        StoreEvent.end(event, 200);
+        exchange.getResponseHeaders().set("ETag", etag(values));
+        sendJsonwithCode(exchange, productToJson(id, values), 200);
+        return 200;
     }
     /**
      * Update an existing product's fields and return the updated product JSON.
@@ -374,51 +795,997 @@ public class ProductServer {
      * @param bodyMap parsed request body
      * @param id product id
      * @param exchange HttpExchange used to send the response
+     * @return HTTP status code (200 on success, 404 if the product is gone, 412 on an If-Match mismatch)
      * @throws IOException on write errors
      */
-    static void updateHandler(HashMap<String, String> bodyMap, int id, HttpExchange exchange) throws IOException {
-
-        String name = bodyMap.get("name");
-        if (name != null) {
-           products.get(id).set(0, name);
+    static int updateHandler(HashMap<String, String> bodyMap, int id, HttpExchange exchange) throws IOException {
+        Write result = update(bodyMap, id, exchange.getRequestHeaders().getFirst("If-Match"));
+        if (result.code != 200) {
+            return result.code;
         }
+        exchange.getResponseHeaders().set("ETag", etag(result.record));
+        sendJsonwithCode(exchange, productToJson(id, result.record), 200);
+        return 200;
+    }
 
-        String price = bodyMap.get("price");
-        if (price != null) {
-            products.get(id).set(1, price);
-        }
+    /**
+     * Apply an update to the stored product and its indexes. Only fields present in
+     * the body change.
+     *
+     * @param bodyMap validated fields to change
+     * @param id product id
+     * @param ifMatch If-Match value the current ETag must satisfy, or null
+     * @return 200 and the new record, or 404 / 412
+     */
+    static Write update(HashMap<String, String> bodyMap, int id, String ifMatch) {
+        StoreEvent event = StoreEvent.begin("product", "update", id);
+        Write result = applyUpdate(bodyMap, id, ifMatch);
+        StoreEvent.end(event, result.code);
+        return result;
+    }
+
+    /** The work of {@link #update}, as the product's writer. */
+    private static Write applyUpdate(HashMap<String, String> bodyMap, int id, String ifMatch) {
+        return asWriter(id, () -> {
+            ArrayList<String> current = stored(id);
+            if (current == null) {
+                return new Write(404, null);
+            }
+            if (ifMatch != null && !etagMatches(ifMatch, etag(current))) {
+                return new Write(412, null);
+            }
+            ArrayList<String> product = new ArrayList<>(current);
+            product.set(VERSION, String.valueOf(versionClock.incrementAndGet()));
+
+            String name = bodyMap.get("name");
+            if (name != null) {
+                product.set(0, name);
+            }
+
+            String price = bodyMap.get("price");
+            if (price != null) {
+                product.set(1, price);
+            }
+
+            String quantity = bodyMap.get("quantity");
+            HotStock hot = hotStock.get(id);
+            if (quantity != null) {
+                product.set(2, quantity);
+                if (hot != null) {
+                    hot.set(Long.parseLong(quantity));
+                }
+            } else if (hot != null) {
+                product.set(2, String.valueOf(hot.total()));
+            }
+            String description = bodyMap.get("description");
+            if (description != null) {
+                product.set(3, description);
+            }
+
+            store(id, product);
+            if (name != null || description != null) {
+                searchIndex.remove(id, current.get(0), current.get(3));
+                searchIndex.add(id, product.get(0), product.get(3));
+            }
+            if (price != null) {
+                priceIndex.remove(id, current.get(1));
+                priceIndex.add(id, product.get(1));
+            }
+            changes.publish("update", id, product);
+            return new Write(200, product);
+        });
+    }
 
-        String quantity = bodyMap.get("quantity");
-        if (quantity != null) {
-            products.get(id).set(2, quantity);
+    /**
+     * Handle the {@code reserve} command: take {@code quantity} units from stock in
+     * one step, and return the updated product JSON.
+     *
+     * @param bodyMap parsed request body with id and quantity
+     * @param exchange HttpExchange used to send the response
+     * @return HTTP status code (200 on success, 400 on a bad body, 404 if no such
+     *         product, 409 if there is not enough stock)
+     * @throws IOException on write errors
+     */
+    static int reserveHandler(HashMap<String, String> bodyMap, HttpExchange exchange) throws IOException {
+        int id;
+        int quantity;
+        try {
+            id = Integer.parseInt(bodyMap.get("id"));
+            quantity = Integer.parseInt(bodyMap.get("quantity"));
+        } catch (NumberFormatException e) {
+            return 400;
         }
-        String description = bodyMap.get("description");
-        if (description != null) {
-            products.get(id).set(3, description);
+        if (quantity < 0) {
+            return 400;
+        }
+        Write result = reserve(id, quantity);
+        if (result.code != 200) {
+            return result.code;
         }
-        ArrayList<String> product = products.get(id);
-        String payload = "{"
-                    + "\"id\": " + id + ","
-                    + "\"name\": \"" + product.get(0) + "\","
-                    + "\"description\": \"" + product.get(3) + "\","
-                    + "\"price\": " + product.get(1) + ","
-                    + "\"quantity\": " + product.get(2)
-                    + "}";
-        sendJsonwithCode(exchange, payload, 200);
+        exchange.getResponseHeaders().set("ETag", etag(result.record));
+        sendJsonwithCode(exchange, productToJson(id, result.record), 200);
+        return 200;
+    }
 
+    /**
+     * Decrement a product's stock if enough is left. The check and the decrement
+     * happen as the product's writer (see {@link #asWriter}), or atomically in the
+     * product's {@link HotStock} if it is hot, so concurrent reservations can never
+     * oversell.
+     *
+     * @param id product id
+     * @param quantity units to take, at least 0
+     * @return 200 and the new record, 404 if no such product, or 409 if stock is short.
+     *         For a hot product the record is unchanged apart from an estimate of the
+     *         remaining stock, and no change is published until the next flush.
+     */
+    static Write reserve(int id, int quantity) {
+        long[] remaining = new long[1];
+        Write result = reserveBatch(id, new int[] {quantity}, remaining);
+        if (result.code == 200 && remaining[0] < 0) {
+            return new Write(409, null);
+        }
+        return result;
     }
-        /**
-         * Delete a product by id and send an empty JSON response with status 200.
-         *
-         * @param bodyMap parsed request body
-         * @param id product id
-         * @param exchange HttpExchange used to send the response
-         * @throws IOException on write errors
-         */
-        static void deleteHandler(HashMap<String, String> bodyMap, int id, HttpExchange exchange) throws IOException {
-            products.remove(id);
-            sendJsonwithCode(exchange, "{}", 200);
+
+    /**
+     * Apply several reservations of one product in order, each taken whole or refused
+     * on its own. On the record path the whole batch costs one turn as the product's
+     * writer, one new version and one change event.
+     *
+     * @param id product id
+     * @param quantities units to take per reservation, each at least 0
+     * @param remaining filled with the stock left after each reservation, or -1 for
+     *                  one refused for lack of stock
+     * @return 200 and the record after the batch (see {@link #reserve} for hot
+     *         products), or 404 if no such product
+     */
+    static Write reserveBatch(int id, int[] quantities, long[] remaining) {
+        StoreEvent event = StoreEvent.begin("product", "reserve", id);
+        Write result = applyReserveBatch(id, quantities, remaining);
+        StoreEvent.end(event, result.code);
+        return result;
+    }
+
+    /** The work of {@link #reserveBatch}. */
+    private static Write applyReserveBatch(int id, int[] quantities, long[] remaining) {
+        int next = 0;
+        while (true) {
+            HotStock hot = hotStock.get(id);
+            if (hot != null) {
+                ArrayList<String> current = products.get(id);
+                for (; next < quantities.length; next++) {
+                    int taken = hot.take(quantities[next]);
+                    if (taken == HotStock.CLOSED) {
+                        break; // closed by a concurrent cold or delete: finish on the record
+                    }
+                    remaining[next] = taken == HotStock.TAKEN ? hot.estimate() : -1;
+                }
+                if (next == quantities.length && current != null) {
+                    ArrayList<String> product = new ArrayList<>(current);
+                    product.set(2, String.valueOf(hot.estimate()));
+                    return new Write(200, product);
+                }
+            }
+            int from = next;
+            Write result = asWriter(id, () -> reserveOnRecord(id, quantities, from, remaining));
+            if (result != null) {
+                return result;
+            }
+            // turned hot while we waited to write
+        }
+    }
+
+    /**
+     * Apply {@code quantities[from..]} to the product's record, as its writer.
+     *
+     * @return as for {@link #reserveBatch}, or null if the product is now hot
+     */
+    private static Write reserveOnRecord(int id, int[] quantities, int from, long[] remaining) {
+        if (hotStock.containsKey(id)) {
+            return null;
+        }
+        ArrayList<String> current = stored(id);
+        if (current == null) {
+            return new Write(404, null);
+        }
+        long before = Long.parseLong(current.get(2));
+        long stock = before;
+        for (int i = from; i < quantities.length; i++) {
+            if (stock >= quantities[i]) {
+                stock -= quantities[i];
+                remaining[i] = stock;
+            } else {
+                remaining[i] = -1;
+            }
+        }
+        if (stock == before) {
+            return new Write(200, current);
+        }
+        return new Write(200, storeStock(id, current, stock));
+    }
+
+    /**
+     * Handle the {@code reserve batch} command, which carries the quantities of several
+     * orders for one product as a space-separated list, e.g.
+     * {@code {"command":"reserve batch","id":5,"quantities":"2 1 3"}}. The answer lists
+     * each reservation's status and the stock left after it in the same order:
+     * {@code {"id": 5, "results": "200 409 200", "remaining": "8 -1 5", "quantity": 5}}.
+     *
+     * @param bodyMap parsed request body with id and quantities
+     * @param exchange HttpExchange used to send the response
+     * @return HTTP status code (200 on success, 400 on a bad body, 404 if no such product)
+     * @throws IOException on write errors
+     */
+    static int reserveBatchHandler(HashMap<String, String> bodyMap, HttpExchange exchange) throws IOException {
+        int id;
+        int[] quantities;
+        try {
+            id = Integer.parseInt(bodyMap.get("id"));
+            String[] items = bodyMap.get("quantities").trim().split("\\s+");
+            if (items.length > MAX_RESERVE_BATCH) {
+                return 400;
+            }
+            quantities = new int[items.length];
+            for (int i = 0; i < items.length; i++) {
+                quantities[i] = Integer.parseInt(items[i]);
+                if (quantities[i] < 0) {
+                    return 400;
+                }
+            }
+        } catch (NumberFormatException | NullPointerException e) {
+            return 400;
+        }
+        long[] remaining = new long[quantities.length];
+        Write result = reserveBatch(id, quantities, remaining);
+        if (result.code != 200) {
+            return result.code;
+        }
+        StringBuilder results = new StringBuilder();
+        StringBuilder left = new StringBuilder();
+        for (int i = 0; i < remaining.length; i++) {
+            if (i > 0) {
+                results.append(' ');
+                left.append(' ');
+            }
+            results.append(remaining[i] < 0 ? 409 : 200);
+            left.append(remaining[i]);
+        }
+        exchange.getResponseHeaders().set("ETag", etag(result.record));
+        sendJsonwithCode(exchange, "{"
+                + "\"id\": " + id + ","
+                + "\"results\": \"" + results + "\","
+                + "\"remaining\": \"" + left + "\","
+                + "\"quantity\": " + result.record.get(2)
+                + "}", 200);
+        return 200;
+    }
+
+    /**
+     * Handle the {@code hold} command: take {@code quantity} units from stock as a
+     * {@code reserve} does, for {@code ttl_ms} milliseconds (default
+     * {@code hold_ttl_ms}) unless confirmed, e.g.
+     * {@code {"command":"hold","id":5,"quantity":2,"ttl_ms":60000}}. The answer names
+     * the hold and when it expires:
+     * {@code {"hold": 17, "id": 5, "quantity": 2, "expires_at": 1767225600000, "available": 8}}.
+     *
+     * @param bodyMap parsed request body with id, quantity and optionally ttl_ms
+     * @param exchange HttpExchange used to send the response
+     * @return HTTP status code (200 on success, 400 on a bad body, 404 if no such
+     *         product, 409 if there is not enough stock)
+     * @throws IOException on write errors
+     */
+    static int holdHandler(HashMap<String, String> bodyMap, HttpExchange exchange) throws IOException {
+        int id;
+        int quantity;
+        long ttl;
+        try {
+            id = Integer.parseInt(bodyMap.get("id"));
+            quantity = Integer.parseInt(bodyMap.get("quantity"));
+            ttl = bodyMap.get("ttl_ms") != null ? Long.parseLong(bodyMap.get("ttl_ms")) : holdTtlMillis;
+        } catch (NumberFormatException e) {
+            return 400;
+        }
+        if (quantity < 1 || ttl < 1 || ttl > holds.maxTtlMillis()) {
+            return 400;
+        }
+        RequestEvent.product(id);
+        Write result = reserve(id, quantity);
+        if (result.code != 200) {
+            return result.code;
+        }
+        StockHolds.Hold hold = holds.add(id, quantity, ttl);
+        exchange.getResponseHeaders().set("ETag", etag(result.record));
+        sendJsonwithCode(exchange, "{"
+                + "\"hold\": " + hold.id + ","
+                + "\"id\": " + id + ","
+                + "\"quantity\": " + quantity + ","
+                + "\"expires_at\": " + hold.expiresAt + ","
+                + "\"available\": " + result.record.get(2)
+                + "}", 200);
+        return 200;
+    }
+
+    /**
+     * Handle the {@code confirm} and {@code release} commands, which end a hold, e.g.
+     * {@code {"command":"confirm","hold":17}}. Confirming keeps the held units as sold;
+     * releasing returns them to the product's stock. Either answers with the product.
+     *
+     * @param command "confirm" or "release"
+     * @param bodyMap parsed request body with hold
+     * @param exchange HttpExchange used to send the response
+     * @return HTTP status code (200 on success, 400 on a bad body, 404 if the hold has
+     *         already ended or expired, or its product is gone)
+     * @throws IOException on write errors
+     */
+    static int endHoldHandler(String command, HashMap<String, String> bodyMap, HttpExchange exchange) throws IOException {
+        long holdId;
+        try {
+            holdId = Long.parseLong(bodyMap.get("hold"));
+        } catch (NumberFormatException e) {
+            return 400;
+        }
+        StockHolds.Hold hold = holds.remove(holdId);
+        if (hold == null) {
+            return 404;
+        }
+        RequestEvent.product(hold.product);
+        Write result;
+        if ("release".equals(command)) {
+            result = restock(hold.product, hold.quantity);
+        } else {
+            // the stock is unchanged, but the held units in GET /product/{id} are not:
+            // a new version keeps its ETag honest
+            ArrayList<String> product = asWriter(hold.product, () -> {
+                ArrayList<String> current = stored(hold.product);
+                return current != null ? storeStock(hold.product, current, Long.parseLong(current.get(2))) : null;
+            });
+            result = product != null ? new Write(200, withLiveStock(hold.product, product)) : new Write(404, null);
+        }
+        if (result.code != 200) {
+            return result.code;
+        }
+        exchange.getResponseHeaders().set("ETag", etag(result.record));
+        sendJsonwithCode(exchange, productToJson(hold.product, result.record, holds.held(hold.product)), 200);
+        return 200;
+    }
+
+    /**
+     * Return units to a product's stock, e.g. from a released or expired hold: to its
+     * {@link HotStock} if it is hot, else to its record as its writer.
+     *
+     * @param id product id
+     * @param quantity units to return
+     * @return 200 and the product with its current stock, or 404 if no such product
+     */
+    static Write restock(int id, int quantity) {
+        while (true) {
+            HotStock hot = hotStock.get(id);
+            if (hot != null && hot.give(quantity)) {
+                ArrayList<String> current = products.get(id);
+                return current != null ? new Write(200, withLiveStock(id, current)) : new Write(404, null);
+            }
+            Write result = asWriter(id, () -> {
+                if (hotStock.containsKey(id)) {
+                    return null;
+                }
+                ArrayList<String> current = stored(id);
+                if (current == null) {
+                    return new Write(404, null);
+                }
+                return new Write(200, storeStock(id, current, Long.parseLong(current.get(2)) + quantity));
+            });
+            if (result != null) {
+                return result;
+            }
+            // turned hot while we waited to write
+        }
+    }
+
+    /**
+     * Serve the {@code hot} and {@code cold} commands, which move a product's stock
+     * into a {@link HotStock} and back. Both are idempotent.
+     *
+     * @param command "hot" or "cold"
+     * @param id product id
+     * @param exchange HttpExchange used to send the response
+     * @return 200 after sending the product, or 404 if no such product
+     * @throws IOException on write errors
+     */
+    static int hotHandler(String command, int id, HttpExchange exchange) throws IOException {
+        ArrayList<String> product = asWriter(id, () -> {
+            ArrayList<String> current = stored(id);
+            if (current == null) {
+                return null;
+            }
+            if ("hot".equals(command)) {
+                if (!hotStock.containsKey(id)) {
+                    hotStock.put(id, new HotStock(Long.parseLong(current.get(2))));
+                    startHotFlusher();
+                }
+            } else {
+                HotStock hot = hotStock.remove(id);
+                if (hot != null) {
+                    current = storeStock(id, current, hot.close());
+                }
+            }
+            return current;
+        });
+        if (product == null) {
+            return 404;
+        }
+        exchange.getResponseHeaders().set("ETag", etag(product));
+        sendJsonwithCode(exchange, productToJson(id, withLiveStock(id, product)), 200);
+        return 200;
+    }
+
+    /** Start the thread that writes hot stock back to records, once. */
+    private static void startHotFlusher() {
+        synchronized (writeLock) {
+            if (hotFlusher == null) {
+                hotFlusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread thread = new Thread(r, "hot-stock-flush");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                hotFlusher.scheduleWithFixedDelay(ProductHandler::flushHotStock,
+                        HOT_FLUSH_MILLIS, HOT_FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /** Write every hot product's current total back to its record if it has changed. */
+    static void flushHotStock() {
+        for (Map.Entry<Integer, HotStock> entry : hotStock.entrySet()) {
+            int id = entry.getKey();
+            long total = entry.getValue().total();
+            asWriter(id, () -> {
+                ArrayList<String> product = stored(id);
+                if (product != null && hotStock.get(id) == entry.getValue()
+                        && Long.parseLong(product.get(2)) != total) {
+                    storeStock(id, product, total);
+                }
+                return null;
+            });
+        }
+    }
+
+    /** Store and publish a new version of a product with the given stock; caller is its writer. */
+    private static ArrayList<String> storeStock(int id, ArrayList<String> current, long stock) {
+        ArrayList<String> product = new ArrayList<>(current);
+        product.set(2, String.valueOf(stock));
+        product.set(VERSION, String.valueOf(versionClock.incrementAndGet()));
+        store(id, product);
+        changes.publish("update", id, product);
+        return product;
+    }
+
+    /**
+     * @param id product id
+     * @param product stored record
+     * @return the record, or for a hot product a copy carrying its exact current stock
+     */
+    static ArrayList<String> withLiveStock(int id, ArrayList<String> product) {
+        HotStock hot = hotStock.get(id);
+        if (hot == null) {
+            return product;
+        }
+        ArrayList<String> live = new ArrayList<>(product);
+        live.set(2, String.valueOf(hot.total()));
+        return live;
+    }
+        /**
+         * Delete a product by id and send an empty JSON response with status 200.
+         *
+         * @param bodyMap parsed request body
+         * @param id product id
+         * @param exchange HttpExchange used to send the response
+         * @throws IOException on write errors
+         */
+        static void deleteHandler(HashMap<String, String> bodyMap, int id, HttpExchange exchange) throws IOException {
+            StoreEvent event = StoreEvent.begin("product", "delete", id);
+            asWriter(id, () -> {
+                HotStock hot = hotStock.remove(id);
+                if (hot != null) {
+                    hot.close();
+                }
+                ArrayList<String> removed = unstore(id);
+                if (removed != null) {
+                    searchIndex.remove(id, removed.get(0), removed.get(3));
+                    priceIndex.remove(id, removed.get(1));
+                    changes.publish("delete", id, null);
+                }
+                return null;
+            });
+            StoreEvent.end(event, 200);
+            sendJsonwithCode(exchange, "{}", 200);
+        }
+
+        /**
+         * Serve GET /product/search?q=&amp;limit=&amp;cursor=.
+         * Results are ordered by id; {@code next_cursor} is the id to pass as
+         * {@code cursor} for the following page, or null when there are no more.
+         *
+         * @param exchange HttpExchange used to send the response
+         * @throws IOException on write errors
+         */
+        static void searchHandler(HttpExchange exchange) throws IOException {
+            HashMap<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            String q = query.get("q");
+            if (q == null || q.trim().isEmpty()) {
+                sendJsonwithCode(exchange, "{}", 400);
+                return;
+            }
+
+            int limit = DEFAULT_PAGE_SIZE;
+            Integer cursor = null;
+            try {
+                if (query.get("limit") != null) {
+                    limit = Integer.parseInt(query.get("limit"));
+                }
+                if (query.get("cursor") != null && !query.get("cursor").isEmpty()) {
+                    cursor = Integer.parseInt(query.get("cursor"));
+                }
+            } catch (NumberFormatException e) {
+                sendJsonwithCode(exchange, "{}", 400);
+                return;
+            }
+            if (limit < 1 || limit > MAX_PAGE_SIZE) {
+                sendJsonwithCode(exchange, "{}", 400);
+                return;
+            }
+
+            // Ask for one extra id to learn whether another page exists
+            ArrayList<Integer> ids = searchIndex.search(q, cursor, limit + 1);
+            StringBuilder json = new StringBuilder("{\"results\": [");
+            int written = 0;
+            Integer lastId = null;
+            for (int i = 0; i < ids.size() && i < limit; i++) {
+                ArrayList<String> product = products.get(ids.get(i));
+                lastId = ids.get(i);
+                if (product == null) {
+                    continue; // deleted after the index was read
+                }
+                if (written++ > 0) {
+                    json.append(", ");
+                }
+                json.append(productToJson(ids.get(i), withLiveStock(ids.get(i), product)));
+            }
+            json.append("], \"next_cursor\": ")
+                    .append(ids.size() > limit ? String.valueOf(lastId) : "null")
+                    .append("}");
+            sendJson(exchange, json.toString());
+        }
+
+        /**
+         * Serve GET /product/export: dump the whole catalog to an NDJSON file in
+         * {@link #EXPORT_DIR} and stream it back. One line per product with its id,
+         * name, description, price, quantity and version.
+         *
+         * @param exchange HttpExchange used to send the response
+         * @throws IOException on file or write errors
+         */
+        static void exportHandler(HttpExchange exchange) throws IOException {
+            // every change before this head is in the dump, so a replica can follow on from it
+            exchange.getResponseHeaders().set("X-Change-Head", String.valueOf(changes.head()));
+            exchange.getResponseHeaders().set("X-Change-Epoch", String.valueOf(changes.epoch()));
+            ExportFile.serve(exchange, EXPORT_DIR, "products", writer -> {
+                try {
+                    products.forEach((id, product) -> {
+                        try {
+                            writer.beginObject().field("id", id);
+                            writeFields(writer, product);
+                            writer.endObject();
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+            });
+        }
+
+        /**
+         * Serve GET /product?ids=1,2,3: the products with the given ids, in the order
+         * asked, as {@code {"results": [...]}}; ids with no product are left out. At
+         * most {@link #MAX_LIST_SIZE} ids. When the store is sharded the lookups are
+         * split by shard and made by every shard at once.
+         *
+         * @param exchange HttpExchange used to send the response
+         * @param list comma-separated product ids
+         * @throws IOException on write errors
+         */
+        static void multiGetHandler(HttpExchange exchange, String list) throws IOException {
+            String[] items = list.split(",");
+            if (items.length > MAX_LIST_SIZE) {
+                sendJsonwithCode(exchange, "{}", 400);
+                return;
+            }
+            int[] ids = new int[items.length];
+            try {
+                for (int i = 0; i < items.length; i++) {
+                    ids[i] = Integer.parseInt(items[i].trim());
+                }
+            } catch (NumberFormatException e) {
+                sendJsonwithCode(exchange, "{}", 400);
+                return;
+            }
+
+            StringBuilder json = new StringBuilder("{\"results\": [");
+            int written = 0;
+            for (int id : ids) {
+                ArrayList<String> product = products.get(id);
+                if (product == null) {
+                    continue;
+                }
+                if (written++ > 0) {
+                    json.append(',');
+                }
+                json.append(productToJson(id, withLiveStock(id, product)));
+            }
+            sendJson(exchange, json.append("]}").toString());
+        }
+
+        /**
+         * Serve GET /product, listing products in id order or, when {@code min_price}
+         * or {@code max_price} is given, in price order.
+         *
+         * <p>Query parameters: {@code from}/{@code to} bound the id range (inclusive),
+         * {@code min_price}/{@code max_price} bound the price range (inclusive),
+         * {@code limit} caps the page size and {@code cursor} resumes after the
+         * {@code next_cursor} of a previous page. Records are streamed straight from
+         * the live ordered index with chunked encoding; nothing is copied and
+         * concurrent writers are never blocked.</p>
+         *
+         * <p>With {@code ids}, the products with those ids are returned instead; see
+         * {@link #multiGetHandler}.</p>
+         *
+         * @param exchange HttpExchange used to send the response
+         * @throws IOException on write errors
+         */
+        static void listHandler(HttpExchange exchange) throws IOException {
+            HashMap<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            if (query.containsKey("ids")) {
+                multiGetHandler(exchange, query.get("ids"));
+                return;
+            }
+            boolean byPrice = query.containsKey("min_price") || query.containsKey("max_price");
+
+            int limit = DEFAULT_PAGE_SIZE;
+            Iterator<Integer> byId = Collections.emptyIterator();
+            Iterator<ProductPriceIndex.Entry> byPriceEntry = Collections.emptyIterator();
+            try {
+                if (query.get("limit") != null) {
+                    limit = Integer.parseInt(query.get("limit"));
+                }
+                int from = query.get("from") != null ? Integer.parseInt(query.get("from")) : Integer.MIN_VALUE;
+                int to = query.get("to") != null ? Integer.parseInt(query.get("to")) : Integer.MAX_VALUE;
+                String cursor = query.get("cursor");
+                if (cursor != null && cursor.isEmpty()) {
+                    cursor = null;
+                }
+
+                if (byPrice) {
+                    long min = query.get("min_price") != null ? ProductPriceIndex.toCents(query.get("min_price")) : 0;
+                    long max = query.get("max_price") != null ? ProductPriceIndex.toCents(query.get("max_price")) : Long.MAX_VALUE;
+                    ProductPriceIndex.Entry after = cursor != null ? ProductPriceIndex.Entry.parse(cursor) : null;
+                    byPriceEntry = priceIndex.range(min, max, after)
+                            .filter(e -> e.id >= from && e.id <= to)
+                            .iterator();
+                } else if (cursor == null || Integer.parseInt(cursor) < from) {
+                    byId = from <= to ? products.subMap(from, true, to, true).keySet().iterator() : byId;
+                } else if (Integer.parseInt(cursor) < to) {
+                    byId = products.subMap(Integer.parseInt(cursor), false, to, true).keySet().iterator();
+                }
+            } catch (NumberFormatException e) {
+                sendJsonwithCode(exchange, "{}", 400);
+                return;
+            }
+            if (limit < 1 || limit > MAX_LIST_SIZE) {
+                sendJsonwithCode(exchange, "{}", 400);
+                return;
+            }
+
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream out = new BufferedOutputStream(exchange.getResponseBody())) {
+                out.write("{\"results\": [".getBytes(StandardCharsets.UTF_8));
+                int written = 0;
+                String position = "null";
+                boolean more = false;
+                while (byId.hasNext() || byPriceEntry.hasNext()) {
+                    int id;
+                    String here;
+                    if (byPrice) {
+                        ProductPriceIndex.Entry entry = byPriceEntry.next();
+                        id = entry.id;
+                        here = "\"" + entry + "\"";
+                    } else {
+                        id = byId.next();
+                        here = String.valueOf(id);
+                    }
+                    ArrayList<String> product = products.get(id);
+                    if (product == null) {
+                        continue; // deleted after the scan passed its index entry
+                    }
+                    if (written == limit) {
+                        more = true;
+                        break;
+                    }
+                    if (written++ > 0) {
+                        out.write(',');
+                    }
+                    out.write(productToJson(id, withLiveStock(id, product)).getBytes(StandardCharsets.UTF_8));
+                    position = here;
+                }
+                out.write(("], \"next_cursor\": " + (more ? position : "null") + "}").getBytes(StandardCharsets.UTF_8));
+            }
+            exchange.close();
+        }
+    }
+    /**
+     * Write a product's fields, after its id, as an export or change-stream record.
+     *
+     * @param writer record being written
+     * @param product stored record
+     * @throws IOException on write errors
+     */
+    static void writeFields(NdjsonWriter writer, ArrayList<String> product) throws IOException {
+        writer.field("name", product.get(0))
+                .field("description", product.get(3))
+                .rawField("price", product.get(1))
+                .rawField("quantity", product.get(2))
+                .rawField("version", product.get(VERSION));
+    }
+
+    /**
+     * Run a write of one product as its writer: under {@link #writeLock}, or, when the
+     * store is sharded, on the thread that owns the product, which takes no lock. The
+     * writer also updates the product's entries in the search and price indexes, whose
+     * stripes match the shards.
+     *
+     * @param id product id
+     * @param write the write, which reads and stores the product with {@link #stored},
+     *              {@link #store} and {@link #unstore}
+     * @param <T> result type
+     * @return the write's result
+     */
+    static <T> T asWriter(int id, Supplier<T> write) {
+        if (shards == null) {
+            synchronized (writeLock) {
+                return write.get();
+            }
+        }
+        return shards.call(id, write);
+    }
+
+    /** @return the product as its writer sees it, which no other thread can change */
+    static ArrayList<String> stored(int id) {
+        return products.get(id);
+    }
+
+    /** Store a new record of a product, as its writer. */
+    static void store(int id, ArrayList<String> product) {
+        products.put(id, product);
+    }
+
+    /** Remove a product, as its writer; returns the removed record, or null. */
+    static ArrayList<String> unstore(int id) {
+        return products.remove(id);
+    }
+
+    /** Outcome of a write: a status code and, on success, the record now stored. */
+    static final class Write {
+        final int code;
+        final ArrayList<String> record;
+
+        Write(int code, ArrayList<String> record) {
+            this.code = code;
+            this.record = record;
+        }
+    }
+
+    /**
+     * Where an RPC request is dispatched: a write to a sharded store on the owner of its
+     * product, which answers it, so the RPC selector never waits on a shard; anything
+     * else on the selector thread.
+     *
+     * @param op operation code
+     * @param in request payload, starting with the product id
+     * @return the owner of the product as an executor, or null
+     */
+    static Executor placement(byte op, ByteBuffer in) {
+        if (shards == null || op == Rpc.PRODUCT_GET || in.remaining() < 4) {
+            return null;
+        }
+        int id = in.getInt(in.position());
+        return write -> shards.execute(id, write);
+    }
+
+    /**
+     * Execute one binary RPC request (layouts in {@link Rpc}) against the store, with
+     * the same validation and locking as the JSON API.
+     *
+     * @param op operation code
+     * @param in request payload
+     * @param out response payload
+     * @return status code
+     */
+    static int dispatch(byte op, ByteBuffer in, ByteBuffer out) {
+        int id = in.getInt();
+        Write result;
+        switch (op) {
+            case Rpc.PRODUCT_GET:
+                long known = in.getLong();
+                ArrayList<String> product = products.get(id);
+                if (product == null) {
+                    return 404;
+                }
+                if (hotStock.containsKey(id)) {
+                    // as over HTTP: live stock, reported without a version
+                    ArrayList<String> live = new ArrayList<>(ProductHandler.withLiveStock(id, product));
+                    live.set(VERSION, "0");
+                    result = new Write(200, live);
+                    break;
+                }
+                if (known != 0 && known == Long.parseLong(product.get(VERSION))) {
+                    return 304;
+                }
+                result = new Write(200, product);
+                break;
+
+            case Rpc.PRODUCT_UPDATE:
+                long ifMatch = in.getLong();
+                HashMap<String, String> bodyMap = new HashMap<>();
+                bodyMap.put("id", String.valueOf(id));
+                String name = Rpc.getString(in);
+                String price = Rpc.getString(in);
+                int quantity = in.getInt();
+                String description = Rpc.getString(in);
+                if (name != null) {
+                    bodyMap.put("name", name);
+                }
+                if (price != null) {
+                    bodyMap.put("price", price);
+                }
+                if (quantity != -1) {
+                    bodyMap.put("quantity", String.valueOf(quantity));
+                }
+                if (description != null) {
+                    bodyMap.put("description", description);
+                }
+                if (ProductHandler.checkFields(bodyMap) != 200) {
+                    return 400;
+                }
+                result = ProductHandler.update(bodyMap, id, ifMatch != 0 ? "\"" + ifMatch + "\"" : null);
+                break;
+
+            case Rpc.PRODUCT_RESERVE:
+                int take = in.getInt();
+                if (take < 0) {
+                    return 400;
+                }
+                result = ProductHandler.reserve(id, take);
+                break;
+
+            case Rpc.PRODUCT_RESERVE_BATCH:
+                int count = in.getInt();
+                if (count < 1 || count > MAX_RESERVE_BATCH) {
+                    return 400;
+                }
+                int[] quantities = new int[count];
+                for (int i = 0; i < count; i++) {
+                    quantities[i] = in.getInt();
+                    if (quantities[i] < 0) {
+                        return 400;
+                    }
+                }
+                long[] remaining = new long[count];
+                result = ProductHandler.reserveBatch(id, quantities, remaining);
+                if (result.code == 200) {
+                    out.putLong(Long.parseLong(result.record.get(VERSION)))
+                            .putInt(Integer.parseInt(result.record.get(2)))
+                            .putInt(count);
+                    for (long left : remaining) {
+                        out.putInt((int) left);
+                    }
+                }
+                return result.code;
+
+            default:
+                return 400;
+        }
+        if (result.code == 200) {
+            ArrayList<String> record = result.record;
+            out.putLong(Long.parseLong(record.get(VERSION)));
+            Rpc.putString(out, record.get(0));
+            Rpc.putString(out, record.get(1));
+            out.putInt(Integer.parseInt(record.get(2)));
+            Rpc.putString(out, record.get(3));
+        }
+        return result.code;
+    }
+
+    /**
+     * Build the JSON representation of a stored product.
+     *
+     * @param id product id
+     * @param product stored record: name, price, quantity, description
+     * @return JSON object string
+     */
+    static String productToJson(int id, ArrayList<String> product) {
+        return "{"
+                + "\"id\": " + id + ","
+                + "\"name\": \"" + product.get(0) + "\","
+                + "\"description\": \"" + product.get(3) + "\","
+                + "\"price\": " + product.get(1) + ","
+                + "\"quantity\": " + product.get(2)
+                + "}";
+    }
+    /**
+     * As {@link #productToJson(int, ArrayList)}, with the units under unexpired holds;
+     * {@code quantity} is then the stock still available.
+     *
+     * @param id product id
+     * @param product stored record
+     * @param held units held
+     * @return JSON object string
+     */
+    static String productToJson(int id, ArrayList<String> product, long held) {
+        String json = productToJson(id, product);
+        return json.substring(0, json.length() - 1) + ",\"held\": " + held + "}";
+    }
+    /**
+     * The entity tag for a stored product: its version, quoted.
+     *
+     * @param product stored record
+     * @return strong ETag value
+     */
+    static String etag(ArrayList<String> product) {
+        return "\"" + product.get(VERSION) + "\"";
+    }
+    /**
+     * Check an {@code If-None-Match} or {@code If-Match} header against an ETag.
+     * The header may list several tags or be {@code *}; weak tags compare by value.
+     *
+     * @param header header value, may be null
+     * @param etag current ETag
+     * @return true if the header names the current ETag
+     */
+    static boolean etagMatches(String header, String etag) {
+        if (header == null) {
+            return false;
+        }
+        for (String tag : header.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    /**
+     * Parse a URL query string such as {@code a=1&b=2} into a map of decoded values.
+     *
+     * @param rawQuery raw query string, may be null
+     * @return map of parameter names to values
+     */
+    static HashMap<String, String> parseQuery(String rawQuery) {
+        HashMap<String, String> params = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return params;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            params.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
         }
+        return params;
     }
     /**
      * Send JSON with HTTP 200 and Content-Type application/json.
@@ -428,11 +1795,13 @@ public class ProductServer {
      * @throws IOException on write errors
      */
     private static void sendJson(HttpExchange exchange, String json) throws IOException {
+        long started = RequestEvent.start();
         byte[] data = json.getBytes(StandardCharsets.UTF_8);
         exchange.getResponseHeaders().set("Content-Type", "application/json");
         exchange.sendResponseHeaders(200, data.length);
         exchange.getResponseBody().write(data);
         exchange.close();
+        RequestEvent.respond(started);
     }
     /**
      * Send JSON with a specific HTTP status code and Content-Type application/json.
@@ -443,10 +1812,12 @@ public class ProductServer {
      * @throws IOException on write errors
      */
     private static void sendJsonwithCode(HttpExchange exchange, String json, int code) throws IOException {
+        long started = RequestEvent.start();
         byte[] data = json.getBytes(StandardCharsets.UTF_8);
         exchange.getResponseHeaders().set("Content-Type", "application/json");
         exchange.sendResponseHeaders(code, data.length);
         exchange.getResponseBody().write(data);
         exchange.close();
+        RequestEvent.respond(started);
     }
 }
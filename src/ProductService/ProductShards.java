@@ -0,0 +1,221 @@
+package ProductService;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * The product store split into shards by id, each owned by one thread that alone
+ * writes the products of its shard.
+ *
+ * <p>Product {@code id} belongs to shard {@code floorMod(id, n)}. The owner runs the
+ * operations handed to it one at a time, so a read-modify-write of a product needs no
+ * lock: the owner is the only thread that can change it. Its products live in the
+ * shared {@link ProductServer#products} map, which the owner writes directly and
+ * every other thread reads without going through a shard, and in the stripe of the
+ * search and price indexes with the same number, which only it writes too.</p>
+ *
+ * <p>Operations reach the owner through a lock-free multi-producer, single-consumer
+ * queue. A caller of {@link #call} then waits for the result, spinning briefly before
+ * it parks; one that must not block, such as the RPC selector, hands the work over
+ * with {@link #execute} and has the operation deliver its own result. An idle owner
+ * parks too and is unparked by the next producer.</p>
+ */
+final class ProductShards {
+
+    /** Polls of an empty queue, or of an unfinished operation, before parking. */
+    private static final int SPINS = 64;
+
+    private final Shard[] shards;
+
+    /**
+     * Start the owners of {@code n} shards.
+     *
+     * @param n number of shards, at least 1
+     */
+    ProductShards(int n) {
+        shards = new Shard[n];
+        for (int i = 0; i < n; i++) {
+            shards[i] = new Shard(i);
+        }
+        for (Shard shard : shards) {
+            shard.start();
+        }
+    }
+
+    /** @return the number of shards */
+    int size() {
+        return shards.length;
+    }
+
+    /**
+     * Run an operation on the thread that owns {@code id} and wait for its result. An
+     * operation already running on that thread, e.g. a nested call, runs directly.
+     *
+     * @param id product id
+     * @param op operation
+     * @param <T> result type
+     * @return the operation's result
+     * @throws RuntimeException whatever the operation threw
+     */
+    <T> T call(int id, Supplier<T> op) {
+        Shard shard = shards[Math.floorMod(id, shards.length)];
+        if (Thread.currentThread() == shard) {
+            return op.get();
+        }
+        Task<T> task = new Task<>(op, Thread.currentThread());
+        shard.submit(task);
+        return task.await();
+    }
+
+    /**
+     * Hand an operation to the thread that owns {@code id} without waiting for it; on
+     * that thread already, it runs directly. Whatever it throws is dropped, so it
+     * should report its own outcome.
+     *
+     * @param id product id
+     * @param op operation
+     */
+    void execute(int id, Runnable op) {
+        Shard shard = shards[Math.floorMod(id, shards.length)];
+        if (Thread.currentThread() == shard) {
+            op.run();
+            return;
+        }
+        shard.submit(new Task<Void>(() -> {
+            op.run();
+            return null;
+        }, null));
+    }
+
+    /** Stop the owners after the operations already queued; nothing may be submitted afterwards. */
+    void stop() {
+        for (Shard shard : shards) {
+            shard.submit(new Task<Void>(() -> {
+                throw new Stop();
+            }, null));
+        }
+    }
+
+    /** Thrown on a shard thread to end it. */
+    private static final class Stop extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Stop() {
+            super(null, null, false, false);
+        }
+    }
+
+    /** One operation, its queue link and its result. */
+    private static final class Task<T> {
+        final Supplier<T> op;
+        final Thread waiter;
+        volatile Task<?> next;
+        T result;
+        Throwable failure;
+        volatile boolean done;
+
+        /** @param waiter thread to unpark once the operation has run, or null */
+        Task(Supplier<T> op, Thread waiter) {
+            this.op = op;
+            this.waiter = waiter;
+        }
+
+        void run() {
+            try {
+                result = op.get();
+            } catch (Stop stop) {
+                throw stop;
+            } catch (Throwable e) {
+                failure = e;
+            } finally {
+                done = true;
+                if (waiter != null) {
+                    LockSupport.unpark(waiter);
+                }
+            }
+        }
+
+        T await() {
+            for (int i = 0; i < SPINS && !done; i++) {
+                Thread.onSpinWait();
+            }
+            while (!done) {
+                LockSupport.park(this);
+            }
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            }
+            if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+            if (failure != null) {
+                throw new IllegalStateException(failure);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * An owner thread and its queue, after Vyukov's intrusive MPSC queue: producers
+     * swap themselves in as the tail and then link the old tail to them; the owner
+     * follows the links from its private head.
+     */
+    private static final class Shard extends Thread {
+        private final AtomicReference<Task<?>> tail;
+        private Task<?> head;
+        private volatile boolean sleeping;
+
+        Shard(int index) {
+            super("product-shard-" + index);
+            setDaemon(true);
+            head = new Task<Void>(null, null);
+            tail = new AtomicReference<>(head);
+        }
+
+        void submit(Task<?> task) {
+            Task<?> previous = tail.getAndSet(task);
+            previous.next = task;
+            if (sleeping) {
+                LockSupport.unpark(this);
+            }
+        }
+
+        /** @return the next task, or null if none is linked in yet */
+        private Task<?> poll() {
+            Task<?> next = head.next;
+            if (next == null) {
+                return null;
+            }
+            head = next;
+            return next;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Task<?> task = poll();
+                    for (int i = 0; task == null && i < SPINS; i++) {
+                        Thread.onSpinWait();
+                        task = poll();
+                    }
+                    if (task == null) {
+                        sleeping = true;
+                        task = poll();
+                        if (task == null) {
+                            LockSupport.park(this);
+                        }
+                        sleeping = false;
+                        if (task == null) {
+                            continue;
+                        }
+                    }
+                    task.run();
+                }
+            } catch (Stop stop) {
+                // asked to stop
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package ProductService;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Outstanding stock holds: units taken from a product's stock for a while, e.g. for
+ * a cart at checkout, that are either confirmed as sold or given back when released
+ * or when they expire.
+ *
+ * <p>Each hold is a {@link TimingWheel} timer, so adding, confirming and releasing a
+ * hold are constant time, and the expiry thread only ever visits holds that are due.
+ * The holds and the wheel are guarded by this object's lock; the units held per
+ * product are kept alongside in a concurrent map so reads do not lock. Expired holds
+ * are handed to the expiry callback after the lock is released.</p>
+ */
+final class StockHolds {
+
+    /** One hold. Its id is what confirm and release name. */
+    static final class Hold extends TimingWheel.Timer {
+        final long id;
+        final int product;
+        final int quantity;
+        final long expiresAt;
+
+        Hold(long id, int product, int quantity, long expiresAt) {
+            this.id = id;
+            this.product = product;
+            this.quantity = quantity;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final long tickMillis;
+    private final Consumer<Hold> expired;
+    private final TimingWheel<Hold> wheel;
+    private final HashMap<Long, Hold> holds = new HashMap<>();
+    private final ConcurrentHashMap<Integer, Long> held = new ConcurrentHashMap<>();
+    private long lastId;
+    private Thread expiry;
+
+    /**
+     * @param tickMillis resolution of expiry
+     * @param expired called, on the expiry thread, with each hold that runs out
+     */
+    StockHolds(long tickMillis, Consumer<Hold> expired) {
+        this.tickMillis = tickMillis;
+        this.expired = expired;
+        this.wheel = new TimingWheel<>(tickMillis, System.currentTimeMillis());
+    }
+
+    /** @return the longest time a hold can last, in milliseconds */
+    long maxTtlMillis() {
+        return wheel.maxDelayMillis();
+    }
+
+    /**
+     * Record a hold whose units have already been taken from the product's stock.
+     *
+     * @param product product id
+     * @param quantity units held
+     * @param ttlMillis how long the hold lasts, at most {@link #maxTtlMillis()}
+     * @return the hold
+     */
+    synchronized Hold add(int product, int quantity, long ttlMillis) {
+        if (expiry == null) {
+            expiry = new Thread(this::expireForever, "stock-hold-expiry");
+            expiry.setDaemon(true);
+            expiry.start();
+        }
+        Hold hold = new Hold(++lastId, product, quantity, System.currentTimeMillis() + ttlMillis);
+        holds.put(hold.id, hold);
+        wheel.schedule(hold, hold.expiresAt);
+        held.merge(product, (long) quantity, Long::sum);
+        return hold;
+    }
+
+    /**
+     * End a hold, to confirm or release it.
+     *
+     * @param id hold id
+     * @return the hold, or null if there is none by that id: never made, already
+     *         ended, or expired
+     */
+    synchronized Hold remove(long id) {
+        Hold hold = holds.remove(id);
+        if (hold != null) {
+            wheel.cancel(hold);
+            unheld(hold);
+        }
+        return hold;
+    }
+
+    /**
+     * @param product product id
+     * @return units of the product under unexpired holds
+     */
+    long held(int product) {
+        return held.getOrDefault(product, 0L);
+    }
+
+    /** @return the number of outstanding holds */
+    synchronized int size() {
+        return holds.size();
+    }
+
+    private void unheld(Hold hold) {
+        held.computeIfPresent(hold.product, (id, units) -> units == hold.quantity ? null : units - hold.quantity);
+    }
+
+    private void expireForever() {
+        while (true) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(tickMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            ArrayList<Hold> due = new ArrayList<>();
+            synchronized (this) {
+                wheel.advance(System.currentTimeMillis(), hold -> {
+                    holds.remove(hold.id);
+                    unheld(hold);
+                    due.add(hold);
+                });
+            }
+            for (Hold hold : due) {
+                try {
+                    expired.accept(hold);
+                } catch (RuntimeException e) {
+                    System.err.println("Failed to return expired hold " + hold.id + ": " + e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package ProductService;
+
+import java.util.function.Consumer;
+
+/**
+ * A hierarchical timing wheel: timers are scheduled and cancelled in constant time,
+ * however many are outstanding, and each costs only its own links.
+ *
+ * <p>Time advances in ticks. The wheel has {@link #LEVELS} levels of {@link #SLOTS}
+ * slots; a slot of level {@code L} spans {@code SLOTS^L} ticks, so the levels together
+ * reach {@code SLOTS^LEVELS} ticks ahead. A timer goes into the lowest level whose span
+ * covers its delay, in the slot its deadline falls in, as a node of that slot's doubly
+ * linked list; cancelling unlinks it. Each time a higher level's slot comes due, its
+ * timers are moved down to the finer level that now covers them, so each timer
+ * cascades at most {@code LEVELS - 1} times before it fires from level 0, on its exact
+ * tick.</p>
+ *
+ * <p>Not thread-safe: the owner serializes all calls.</p>
+ *
+ * @param <T> timer type
+ */
+final class TimingWheel<T extends TimingWheel.Timer> {
+
+    /** Bits of a tick number per level, slots per level and levels. */
+    private static final int BITS = 6;
+    static final int SLOTS = 1 << BITS;
+    static final int LEVELS = 4;
+
+    /** Longest delay, in ticks, that can be scheduled. */
+    static final long SPAN = (1L << (BITS * LEVELS)) - 1;
+
+    private static final int MASK = SLOTS - 1;
+
+    /** A timer's place in the wheel; extended by what is scheduled. */
+    static class Timer {
+        long tick;
+        int slot = -1;
+        Timer prev;
+        Timer next;
+
+        /** @return true while the timer is scheduled */
+        final boolean scheduled() {
+            return slot >= 0;
+        }
+    }
+
+    private final long tickMillis;
+    private final Timer[] heads = new Timer[LEVELS * SLOTS];
+    private long now;
+    private int size;
+
+    /**
+     * @param tickMillis length of a tick
+     * @param startMillis the time of tick 0's end: timers due by then fire on the first advance
+     */
+    TimingWheel(long tickMillis, long startMillis) {
+        this.tickMillis = tickMillis;
+        this.now = startMillis / tickMillis;
+    }
+
+    /** @return the longest delay that can be scheduled, in milliseconds */
+    long maxDelayMillis() {
+        return SPAN * tickMillis;
+    }
+
+    /** @return the number of scheduled timers */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Schedule a timer, rounding its deadline up to a tick; one already past fires on
+     * the next tick, and one beyond {@link #maxDelayMillis()} at the furthest tick.
+     *
+     * @param timer a timer that is not scheduled
+     * @param atMillis when it should fire
+     */
+    void schedule(T timer, long atMillis) {
+        if (timer.scheduled()) {
+            throw new IllegalStateException("timer already scheduled");
+        }
+        long tick = (atMillis + tickMillis - 1) / tickMillis;
+        timer.tick = Math.min(Math.max(tick, now + 1), now + SPAN);
+        place(timer);
+        size++;
+    }
+
+    /**
+     * @param timer a timer of this wheel
+     * @return true if it was scheduled and now is not
+     */
+    boolean cancel(T timer) {
+        if (!timer.scheduled()) {
+            return false;
+        }
+        unlink(timer);
+        size--;
+        return true;
+    }
+
+    /**
+     * Advance to {@code nowMillis}, handing every timer that comes due, in deadline
+     * order, to {@code expired}. Fired timers are no longer scheduled and may be
+     * scheduled again.
+     *
+     * @param nowMillis current time
+     * @param expired receives each fired timer
+     */
+    @SuppressWarnings("unchecked")
+    void advance(long nowMillis, Consumer<? super T> expired) {
+        long target = nowMillis / tickMillis;
+        while (now < target) {
+            now++;
+            for (int level = 1; level < LEVELS && (now & ((1L << (BITS * level)) - 1)) == 0; level++) {
+                Timer timer = detach(level * SLOTS + (int) ((now >>> (BITS * level)) & MASK));
+                while (timer != null) {
+                    Timer next = timer.next;
+                    place(timer);
+                    timer = next;
+                }
+            }
+            Timer timer = detach((int) (now & MASK));
+            while (timer != null) {
+                Timer next = timer.next;
+                timer.prev = null;
+                timer.next = null;
+                size--;
+                expired.accept((T) timer);
+                timer = next;
+            }
+        }
+    }
+
+    /** Link a timer into the slot covering its tick, relative to {@link #now}. */
+    private void place(Timer timer) {
+        long delay = timer.tick - now;
+        int level = 0;
+        while (level < LEVELS - 1 && delay >= 1L << (BITS * (level + 1))) {
+            level++;
+        }
+        int slot = level * SLOTS + (int) ((timer.tick >>> (BITS * level)) & MASK);
+        timer.slot = slot;
+        timer.prev = null;
+        timer.next = heads[slot];
+        if (heads[slot] != null) {
+            heads[slot].prev = timer;
+        }
+        heads[slot] = timer;
+    }
+
+    private void unlink(Timer timer) {
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else {
+            heads[timer.slot] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+        timer.prev = null;
+        timer.next = null;
+        timer.slot = -1;
+    }
+
+    /** Empty a slot; returns its former list, whose timers are marked unscheduled. */
+    private Timer detach(int slot) {
+        Timer first = heads[slot];
+        heads[slot] = null;
+        for (Timer timer = first; timer != null; timer = timer.next) {
+            timer.slot = -1;
+        }
+        return first;
+    }
+}
@@ -3,15 +3,38 @@ package UserService;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
+import Common.AccessLog;
+import Common.ChangeLog;
+import Common.ChangeStream;
+import Common.Deadline;
+import Common.ExportFile;
+import Common.NdjsonWriter;
+import Common.NioHttpServer;
+import Common.RequestEvent;
+import Common.Router;
+import Common.Rpc;
+import Common.RpcServer;
+import Common.SeedLoader;
+import Common.StoreEvent;
+import Common.TrafficCapture;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 /**
  * UserServer is an HTTP-based microservice responsible for user management.
  * <p>Users are stored with the following attributes:</p>
@@ -26,10 +49,21 @@ import java.util.HashMap;
  *
  * <p><b>Supported Methods:</b></p>
  * <ul>
- *   <li>GET /user/{id} - Retrieve user by ID</li>
+ *   <li>GET /user/{id} - Retrieve user by ID; honours If-None-Match</li>
+ *   <li>GET /user?email={email} - Retrieve user by email</li>
+ *   <li>GET /user?username={username} - Retrieve user by username</li>
+ *   <li>GET /user/export - Stream every user as NDJSON (see {@link ExportFile})</li>
+ *   <li>GET /user/changes?from=&amp;follow= - Stream every change from a sequence number (see {@link ChangeStream})</li>
  *   <li>POST /user - Create, update, or delete user based on command field</li>
  * </ul>
  *
+ * <p>Every write stamps the user with a new version, returned as the ETag. A GET whose
+ * If-None-Match names the current ETag gets a 304 with no body, and an update carrying
+ * If-Match is only applied if the user has not changed since (412 otherwise).</p>
+ *
+ * <p>If the config sets {@code rpc_port}, user lookups and updates are also served over
+ * the binary protocol in {@link Rpc} on that port.</p>
+ *
  *
  * @author Arshveer
  * @author Eshaan
@@ -44,12 +78,54 @@ public class UserServer {
     /** Path to the config file */
     static String PATH;
 
+    /** Port of the binary RPC listener ({@code rpc_port} in the config), or null for none */
+    static Integer RPC_PORT;
+
+    /** This service's section of the config, which also selects the HTTP engine */
+    static HashMap<String, String> CONFIG;
+
     /**
      * In-memory storage for users.
      * Key: user ID
-     * Value: username, email, password
+     * Value: username, email, password, version
+     */
+    static ConcurrentHashMap<Integer, ArrayList<String>> users = new ConcurrentHashMap<>();
+
+    /**
+     * Secondary index from username to user ID.
+     * Usernames are unique, so each key maps to exactly one user.
+     */
+    static ConcurrentHashMap<String, Integer> usernameIndex = new ConcurrentHashMap<>();
+
+    /**
+     * Secondary index from email to user ID.
+     * Keys are lower-cased so that uniqueness is checked case-insensitively.
+     */
+    static ConcurrentHashMap<String, Integer> emailIndex = new ConcurrentHashMap<>();
+
+    /**
+     * Guards every mutation of {@link #users} and its secondary indexes, so the
+     * uniqueness check and the insert happen as one atomic step. Reads do not lock.
+     */
+    static final Object writeLock = new Object();
+
+    /** Directory export files are written to: export_dir in the config, else the temp dir */
+    static Path EXPORT_DIR;
+
+    /** Source of record versions. Global, so a re-created ID never reuses an old ETag. */
+    static final AtomicLong versionClock = new AtomicLong();
+
+    /** Position of the version in a user record. */
+    static final int VERSION = 3;
+
+    /** Number of recent changes kept for GET /user/changes subscribers */
+    static final int CHANGE_LOG_SIZE = 1 << 16;
+
+    /**
+     * Every create, update and delete, published under {@link #writeLock} so sequence
+     * order is commit order. Seeded users are not published.
      */
-    static HashMap<Integer, ArrayList<String>> users = new HashMap<>();
+    static final ChangeLog<ArrayList<String>> changes = new ChangeLog<>(CHANGE_LOG_SIZE);
 
     /**
      * Parses a JSON string into a HashMap of key-value pairs.
@@ -60,6 +136,7 @@ public class UserServer {
      */
     static HashMap<String, String> stringToMap(String json) {
 
+        long started = RequestEvent.start();
         HashMap<String, String> mapOutput = new HashMap<>();
 
         json = json.trim();
@@ -87,6 +164,7 @@ public class UserServer {
             mapOutput.put(key, value);
         }
 
+        RequestEvent.parse(started);
         return mapOutput;
     }
 
@@ -145,22 +223,127 @@ public class UserServer {
      * Main entry point for the UserServer microservice.
      * Reads configuration from the provided config file and starts the HTTP server.
      *
-     * @param args Command line arguments. args[0] should be the path to config.json
+     * @param args Command line arguments. args[0] should be the path to config.json;
+     *             args[1] optionally names a CSV or NDJSON seed file loaded before binding
      * @throws IOException If the config file cannot be read or server fails to start
      */
     public static void main(String[] args) throws IOException {
-        PATH = args[0];
+        init(args[0], args.length > 1 ? args[1] : null);
+
+        HttpServer server = NioHttpServer.create(new InetSocketAddress(IP, PORT), CONFIG);
+        server.createContext("/user", handler())
+                .getFilters().addAll(List.of(AccessLog.filter("user"), RequestEvent.filter("user"), TrafficCapture.filter("user")));
+        // Handlers run on a pool so a long export does not hold up other requests
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        System.out.println("Server started on port " + PORT);
+
+        if (RPC_PORT != null) {
+            RpcServer.start(IP, RPC_PORT, UserServer::dispatch);
+            System.out.println("RPC listener started on port " + RPC_PORT);
+        }
+    }
+
+    /**
+     * Read this service's configuration and load the seed file, if any, without
+     * binding a port. Used by {@link #main} and by launchers that host the service
+     * in-process.
+     *
+     * @param configPath path to config.json
+     * @param seedFile CSV or NDJSON seed file, or null
+     * @throws IOException If the config or seed file cannot be read
+     */
+    public static void init(String configPath, String seedFile) throws IOException {
+        PATH = configPath;
         // Get port of other servers
         String jsonConfig = Files.readString(Path.of(PATH));
         HashMap<String, HashMap<String, String>> configMap = parseConfig(jsonConfig);
         PORT = Integer.parseInt(configMap.get("UserService").get("port"));
         IP = configMap.get("UserService").get("ip");
+        CONFIG = configMap.get("UserService");
+        AccessLog.configure(configMap.get("UserService"));
+        TrafficCapture.configure(configMap.get("UserService"));
+        EXPORT_DIR = Path.of(configMap.get("UserService").getOrDefault("export_dir", System.getProperty("java.io.tmpdir")));
+        String rpcPort = configMap.get("UserService").get("rpc_port");
+        RPC_PORT = rpcPort != null ? Integer.parseInt(rpcPort) : null;
+
+        if (seedFile != null) {
+            seed(Path.of(seedFile));
+        }
+    }
 
-        HttpServer server = HttpServer.create(new InetSocketAddress(IP, PORT), 0);
-        server.createContext("/user", new UserServer.UserHandler());
-        server.setExecutor(null);
-        server.start();
-        System.out.println("Server started on port " + PORT);
+    /**
+     * Requests that arrive after their {@link Deadline} are answered 504 unhandled.
+     *
+     * @return a handler for the /user context, serving the store loaded by {@link #init}
+     */
+    public static HttpHandler handler() {
+        return Deadline.guard(new UserHandler());
+    }
+
+    /**
+     * Bulk-loads users from a seed file before the server starts.
+     * <p>Lines are parsed, validated and password-hashed in parallel by {@link SeedLoader},
+     * using the same rules as a create command. They are then added to the store and
+     * indexes in one pass, which are first re-created at the right size if still empty;
+     * lines whose ID, username or email is already taken are skipped.</p>
+     *
+     * @param file CSV (with a header row) or NDJSON file of users
+     * @throws IOException If the file cannot be read
+     */
+    static void seed(Path file) throws IOException {
+        long started = System.nanoTime();
+        SeedLoader.Result<Map.Entry<Integer, ArrayList<String>>> result = SeedLoader.load(file, UserServer::seedRecord);
+
+        int capacity = (int) Math.min(Integer.MAX_VALUE, result.accepted());
+        long seeded = 0;
+        long duplicates = 0;
+        synchronized (writeLock) {
+            if (users.isEmpty()) {
+                users = new ConcurrentHashMap<>(Math.max(16, capacity));
+                usernameIndex = new ConcurrentHashMap<>(Math.max(16, capacity));
+                emailIndex = new ConcurrentHashMap<>(Math.max(16, capacity));
+            }
+            for (ArrayList<Map.Entry<Integer, ArrayList<String>>> chunk : result.chunks) {
+                for (Map.Entry<Integer, ArrayList<String>> entry : chunk) {
+                    ArrayList<String> user = entry.getValue();
+                    if (users.containsKey(entry.getKey())
+                            || usernameIndex.containsKey(user.get(0))
+                            || emailIndex.containsKey(emailKey(user.get(1)))) {
+                        duplicates++;
+                        continue;
+                    }
+                    users.put(entry.getKey(), user);
+                    UserHandler.reindex(entry.getKey(), null, user);
+                    seeded++;
+                }
+            }
+        }
+        System.out.println("Seeded " + seeded + " users from " + file
+                + " (" + (result.rejected + duplicates) + " skipped) in "
+                + (System.nanoTime() - started) / 1_000_000 + " ms");
+    }
+
+    /**
+     * Turns one seed line into a user record, applying the create validation rules.
+     *
+     * @param fields The parsed seed line
+     * @return ID and record, or null if the line is not a valid user
+     */
+    static Map.Entry<Integer, ArrayList<String>> seedRecord(HashMap<String, String> fields) {
+        String username = fields.get("username");
+        String email = fields.get("email");
+        String password = fields.get("password");
+        int id;
+        try {
+            id = Integer.parseInt(fields.get("id"));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (username == null || email == null || password == null || email.indexOf('@') < 0) {
+            return null;
+        }
+        return new AbstractMap.SimpleImmutableEntry<>(id, UserHandler.newRecord(fields));
     }
 
     /**
@@ -172,11 +355,23 @@ public class UserServer {
      *   <li>400 - Bad request (missing/invalid fields)</li>
      *   <li>404 - User not found</li>
      *   <li>405 - Method not allowed</li>
+     *   <li>304 - Not modified (If-None-Match names the current version)</li>
      *   <li>409 - Conflict (user already exists)</li>
+     *   <li>412 - Precondition failed (If-Match names an old version)</li>
      * </ul>
      */
     static class UserHandler implements HttpHandler {
 
+        /** Routes under /user; anything else is answered 400. */
+        private static final Router routes = new Router(exchange -> sendJsonwithCode(exchange, "{}", 400))
+                // GET /user?email=... or /user?username=... uses the secondary indexes
+                .get("/user", UserHandler::lookupHandler)
+                .get("/user/export", UserHandler::exportHandler)
+                .get("/user/changes", exchange -> ChangeStream.serve(exchange, changes, UserServer::writeFields))
+                .get("/user/{id}", UserHandler::getHandler)
+                // POST must target the collection root: /user
+                .post("/user", UserHandler::postHandler);
+
         /**
          * Handles incoming HTTP requests to the /user endpoint.
          *
@@ -185,96 +380,80 @@ public class UserServer {
          */
         @Override
         public void handle(HttpExchange exchange) throws IOException {
-            if ("GET".equals(exchange.getRequestMethod())) {
-                String path = exchange.getRequestURI().getPath();
-                String[] tokenized_path = path.split("/");
-
-                if (tokenized_path.length != 3) {
-                    sendJsonwithCode(exchange, path, 400);
-                    return;
-                }
+            routes.handle(exchange);
+        }
 
-                String body = new String(
-                        exchange.getRequestBody().readAllBytes(),
-                        StandardCharsets.UTF_8
-                );
-
-                if (!body.trim().isEmpty()) {
-                    String trimmed = body.trim();
-                    HashMap<String, String> bodyMap = stringToMap(trimmed);
-                    if (bodyMap != null) {
-                        
-                        String idInBody = bodyMap.get("id");
-                        if (idInBody == null) {
-                            sendJsonwithCode(exchange, "{}", 400);
-                            return;
-                        }
-                        try {
-                            int idBody = Integer.parseInt(idInBody);
-                            int idPath = Integer.parseInt(tokenized_path[2]);
-                            if (idBody != idPath) {
-                                sendJsonwithCode(exchange, "{}", 400);
-                                return;
-                            }
-                        } catch (NumberFormatException e) {
+        /**
+         * Serves GET /user/{id}. A body, if any, must name the same id.
+         *
+         * @param exchange The HTTP exchange
+         * @param userID The id from the path
+         * @throws IOException If an I/O error occurs
+         */
+        static void getHandler(HttpExchange exchange, int userID) throws IOException {
+            String body = new String(
+                    exchange.getRequestBody().readAllBytes(),
+                    StandardCharsets.UTF_8
+            );
+
+            if (!body.trim().isEmpty()) {
+                String trimmed = body.trim();
+                HashMap<String, String> bodyMap = stringToMap(trimmed);
+                if (bodyMap != null) {
+
+                    String idInBody = bodyMap.get("id");
+                    if (idInBody == null) {
+                        sendJsonwithCode(exchange, "{}", 400);
+                        return;
+                    }
+                    try {
+                        if (Integer.parseInt(idInBody) != userID) {
                             sendJsonwithCode(exchange, "{}", 400);
                             return;
                         }
-
+                    } catch (NumberFormatException e) {
+                        sendJsonwithCode(exchange, "{}", 400);
+                        return;
                     }
-                }
 
-                int userID;
-                try {
-                    userID = Integer.parseInt(tokenized_path[2]);
-                } catch (NumberFormatException e) {
-                    sendJsonwithCode(exchange, "{}", 400);
-                    return;
                 }
-
-                ArrayList<String> user = users.get(userID);
-                if (user == null) {
-                    sendJsonwithCode(exchange, "{}", 404);
-                    return;
-                }
-
-                String json = "{"
-                        + "\"id\": " + userID + ","
-                        + "\"username\": \"" + user.get(0) + "\","
-                        + "\"email\": \"" + user.get(1) + "\","
-                        + "\"password\": \"" + user.get(2) + "\""
-                        + "}";
-
-                sendJson(exchange, json);
             }
+            RequestEvent.user(userID);
 
-            else if ("POST".equals(exchange.getRequestMethod())) {
-
-                String path = exchange.getRequestURI().getPath();
-                String[] tokenized_path = path.split("/");
-                // POST must target the collection root: /product
-
-                if (tokenized_path.length != 2) {
-                    sendJsonwithCode(exchange, "{}", 400);
-                    return;
-                }
-
-                // Parse the input string
-                String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
-                HashMap<String, String> bodyMap = stringToMap(body);
-                if (bodyMap == null) {
-                    sendJsonwithCode(exchange, "{}", 400);
-                    return;
-                }
+            ArrayList<String> user = users.get(userID);
+            if (user == null) {
+                sendJsonwithCode(exchange, "{}", 404);
+                return;
+            }
 
-                int code = UserValidation(bodyMap, exchange);
-                if (code != 200) {
-                    sendJsonwithCode(exchange, "{}", code);
-                    return;
-                }
+            String etag = etag(user);
+            exchange.getResponseHeaders().set("ETag", etag);
+            if (etagMatches(exchange.getRequestHeaders().getFirst("If-None-Match"), etag)) {
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
             }
-            else {
+            sendJson(exchange, userToJson(userID, user));
+        }
+
+        /**
+         * Serves POST /user: a create, update or delete command in the body.
+         *
+         * @param exchange The HTTP exchange
+         * @throws IOException If an I/O error occurs
+         */
+        static void postHandler(HttpExchange exchange) throws IOException {
+            // Parse the input string
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            HashMap<String, String> bodyMap = stringToMap(body);
+            if (bodyMap == null) {
                 sendJsonwithCode(exchange, "{}", 400);
+                return;
+            }
+
+            int code = UserValidation(bodyMap, exchange);
+            if (code != 200) {
+                sendJsonwithCode(exchange, "{}", code);
             }
         }
 
@@ -299,6 +478,7 @@ public class UserServer {
             int id;
             try {
                 id = Integer.parseInt(idStr);
+                RequestEvent.user(id);
                 if (username != null) {
                     username = username.trim();
                 }
@@ -327,16 +507,14 @@ public class UserServer {
                     if (email.indexOf('@') < 0) {
                         return 400;
                     }
-                    createHandler(bodyMap, id, exchange);
-                    break;
+                    return createHandler(bodyMap, id, exchange);
 
                 case "update":
                     // checks if the user exists
                     if (users.get(id) == null) {
                         return 404;
                     }
-                    updateHandler(bodyMap, id, exchange);
-                    break;
+                    return updateHandler(bodyMap, id, exchange);
 
                 case "delete":
                     ArrayList<String> verifyInt = users.get(id);
@@ -365,62 +543,133 @@ public class UserServer {
         }
 
         /**
-         * Creates a new user in the in-memory storage.
+         * Builds the stored record for a validated create payload.
+         * The password is hashed and the record stamped with a new version.
          *
-         * @param bodyMap The request body containing user data
-         * @param id The unique user ID
+         * @param bodyMap The request body with username, email and password
+         * @return The record: username, email, password hash, version
          */
-        static void createHandler(HashMap<String, String> bodyMap, int id, HttpExchange exchange) throws IOException {
+        static ArrayList<String> newRecord(HashMap<String, String> bodyMap) {
             ArrayList<String> values = new ArrayList<>();
 
             values.add(bodyMap.get("username"));
             values.add(bodyMap.get("email"));
             values.add(hashSHA256(bodyMap.get("password")));
-            users.put(id, values);
-            String payload = "{"
-                    + "\"id\": " + id + ","
-                    + "\"username\": \"" + bodyMap.get("username") + "\","
-                    + "\"email\": \"" + bodyMap.get("email") + "\","
-                    + "\"password\": \"" + users.get(id).get(2) + "\""
-                    + "}";
-            sendJsonwithCode(exchange, payload, 200);
+            values.add(String.valueOf(versionClock.incrementAndGet()));
+            return values;
         }
 
         /**
-         * Updates an existing user's fields.
-         * Only updates fields that are present in the request.
+         * Creates a new user in the in-memory storage.
+         * The ID, username and email are checked for conflicts and inserted under
+         * {@link #writeLock}, so two concurrent creates can never claim the same email.
+         *
+         * @param bodyMap The request body containing user data
+         * @param id The unique user ID
+         * @return HTTP status code (200 on success, 409 if the ID, username or email is taken)
+         */
+        static int createHandler(HashMap<String, String> bodyMap, int id, HttpExchange exchange) throws IOException {
+            ArrayList<String> values = newRecord(bodyMap);
+
+            StoreEvent event = StoreEvent.begin("user", "create", id);
+            synchronized (writeLock) {
+                if (users.containsKey(id)
+                        || usernameIndex.containsKey(values.get(0))
+                        || emailIndex.containsKey(emailKey(values.get(1)))) {
+                    StoreEvent.end(event, 409);
+                    return 409;
+                }
+                users.put(id, values);
+                usernameIndex.put(values.get(0), id);
+                emailIndex.put(emailKey(values.get(1)), id);
+                changes.publish("create", id, values);
+            }
+            StoreEvent.end(event, 200);
+            exchange.getResponseHeaders().set("ETag", etag(values));
+            sendJsonwithCode(exchange, userToJson(id, values), 200);
+            return 200;
+        }
+
+        /**
+         * Updates an existing user's fields and sends the updated user.
          *
          * @param bodyMap The request body containing fields to update
          * @param id The user ID to update
+         * @return HTTP status code (200 on success, 400/404/409/412 on failure)
          */
-        static void updateHandler(HashMap<String, String> bodyMap, int id, HttpExchange exchange) throws IOException {
-
-            String username = bodyMap.get("username");
-            if (username != null) {
-                users.get(id).set(0, username);
+        static int updateHandler(HashMap<String, String> bodyMap, int id, HttpExchange exchange) throws IOException {
+            Write result = update(bodyMap, id, exchange.getRequestHeaders().getFirst("If-Match"));
+            if (result.code != 200) {
+                return result.code;
             }
+            exchange.getResponseHeaders().set("ETag", etag(result.record));
+            sendJsonwithCode(exchange, userToJson(id, result.record), 200);
+            return 200;
+        }
+
+        /**
+         * Applies an update to the stored user.
+         * Only updates fields that are present in the request. The stored record is
+         * replaced rather than modified in place, so concurrent readers never see a
+         * half-applied update.
+         *
+         * @param bodyMap The fields to update
+         * @param id The user ID to update
+         * @param ifMatch If-Match value the current ETag must satisfy, or null
+         * @return 200 and the new record, or 400/404/409/412
+         */
+        static Write update(HashMap<String, String> bodyMap, int id, String ifMatch) {
 
+            String username = bodyMap.get("username");
             String email = bodyMap.get("email");
-            if (email != null) {
-                if (email.indexOf('@') < 0) {
-                    sendJsonwithCode(exchange, "{}", 400);
-                    return;
-                }
-                users.get(id).set(1, email);
+            if (email != null && email.indexOf('@') < 0) {
+                return new Write(400, null);
             }
 
             String rawPassword = bodyMap.get("password");
-            if (rawPassword != null) {
-                String hashed = hashSHA256(rawPassword);
-                users.get(id).set(2, hashed);
+            String hashed = rawPassword != null ? hashSHA256(rawPassword) : null;
+
+            StoreEvent event = StoreEvent.begin("user", "update", id);
+            Write result = applyUpdate(id, ifMatch, username, email, hashed);
+            StoreEvent.end(event, result.code);
+            return result;
+        }
+
+        /** The locked part of {@link #update}; null fields are left as they are. */
+        private static Write applyUpdate(int id, String ifMatch, String username, String email, String hashed) {
+            ArrayList<String> updated;
+            synchronized (writeLock) {
+                ArrayList<String> current = users.get(id);
+                if (current == null) {
+                    return new Write(404, null);
+                }
+                if (ifMatch != null && !etagMatches(ifMatch, etag(current))) {
+                    return new Write(412, null);
+                }
+                updated = new ArrayList<>(current);
+                updated.set(VERSION, String.valueOf(versionClock.incrementAndGet()));
+
+                if (username != null) {
+                    if (!username.equals(current.get(0)) && usernameIndex.containsKey(username)) {
+                        return new Write(409, null);
+                    }
+                    updated.set(0, username);
+                }
+                if (email != null) {
+                    if (!emailKey(email).equals(emailKey(current.get(1))) && emailIndex.containsKey(emailKey(email))) {
+                        return new Write(409, null);
+                    }
+                    updated.set(1, email);
+                }
+                if (hashed != null) {
+                    updated.set(2, hashed);
+                }
+
+                users.put(id, updated);
+                reindex(id, current, updated);
+                changes.publish("update", id, updated);
             }
-            String payload = "{"
-                    + "\"id\": " + id + ","
-                    + "\"username\": \"" + users.get(id).get(0) + "\","
-                    + "\"email\": \"" + users.get(id).get(1) + "\","
-                    + "\"password\": \"" + users.get(id).get(2) + "\""
-                    + "}";
-            sendJsonwithCode(exchange, payload, 200);
+            return new Write(200, updated);
         }
 
         /**
@@ -430,9 +679,254 @@ public class UserServer {
          * @param id The user ID to delete
          */
         static void deleteHandler(HttpExchange exchange, HashMap<String, String> bodyMap, int id) throws IOException {
-            users.remove(id);
+            StoreEvent event = StoreEvent.begin("user", "delete", id);
+            synchronized (writeLock) {
+                ArrayList<String> removed = users.remove(id);
+                if (removed != null) {
+                    reindex(id, removed, null);
+                    changes.publish("delete", id, null);
+                }
+            }
+            StoreEvent.end(event, 200);
             sendJsonwithCode(exchange, "{}", 200);
         }
+
+        /**
+         * Serves GET /user/export: dumps every user to an NDJSON file in
+         * {@link #EXPORT_DIR} and streams it back. One line per user with the ID,
+         * username, email, password hash and version.
+         *
+         * @param exchange The HTTP exchange
+         * @throws IOException If the file or response cannot be written
+         */
+        static void exportHandler(HttpExchange exchange) throws IOException {
+            // every change before this head is in the dump, so a subscriber can follow on from it
+            exchange.getResponseHeaders().set("X-Change-Head", String.valueOf(changes.head()));
+            exchange.getResponseHeaders().set("X-Change-Epoch", String.valueOf(changes.epoch()));
+            ExportFile.serve(exchange, EXPORT_DIR, "users", writer -> {
+                try {
+                    users.forEach((id, user) -> {
+                        try {
+                            writer.beginObject().field("id", id);
+                            writeFields(writer, user);
+                            writer.endObject();
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+            });
+        }
+
+        /**
+         * Serves GET /user?email=... and GET /user?username=... from the secondary indexes.
+         * Exactly one of the two parameters must be given.
+         *
+         * @param exchange The HTTP exchange
+         * @throws IOException If an I/O error occurs
+         */
+        static void lookupHandler(HttpExchange exchange) throws IOException {
+            HashMap<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            String email = query.get("email");
+            String username = query.get("username");
+
+            if ((email == null) == (username == null)) {
+                sendJsonwithCode(exchange, "{}", 400);
+                return;
+            }
+
+            Integer userID = email != null ? emailIndex.get(emailKey(email)) : usernameIndex.get(username);
+            ArrayList<String> user = userID != null ? users.get(userID) : null;
+            if (user == null) {
+                sendJsonwithCode(exchange, "{}", 404);
+                return;
+            }
+            exchange.getResponseHeaders().set("ETag", etag(user));
+            sendJson(exchange, userToJson(userID, user));
+        }
+
+        /**
+         * Moves a user's index entries from its old record to its new one.
+         * Must be called while holding {@link #writeLock}.
+         *
+         * @param id The user ID
+         * @param before The previous record, or null on create
+         * @param after The new record, or null on delete
+         */
+        static void reindex(int id, ArrayList<String> before, ArrayList<String> after) {
+            if (before != null) {
+                usernameIndex.remove(before.get(0), id);
+                emailIndex.remove(emailKey(before.get(1)), id);
+            }
+            if (after != null) {
+                usernameIndex.put(after.get(0), id);
+                emailIndex.put(emailKey(after.get(1)), id);
+            }
+        }
+    }
+
+    /**
+     * Writes a user's fields, after its ID, as an export or change-stream record.
+     *
+     * @param writer The record being written
+     * @param user The stored record
+     * @throws IOException On write errors
+     */
+    static void writeFields(NdjsonWriter writer, ArrayList<String> user) throws IOException {
+        writer.field("username", user.get(0))
+                .field("email", user.get(1))
+                .field("password", user.get(2))
+                .rawField("version", user.get(VERSION));
+    }
+
+    /** Outcome of a write: a status code and, on success, the record now stored. */
+    static final class Write {
+        final int code;
+        final ArrayList<String> record;
+
+        Write(int code, ArrayList<String> record) {
+            this.code = code;
+            this.record = record;
+        }
+    }
+
+    /**
+     * Executes one binary RPC request (layouts in {@link Rpc}) against the store, with
+     * the same validation and locking as the JSON API.
+     *
+     * @param op The operation code
+     * @param in The request payload
+     * @param out The response payload
+     * @return Status code
+     */
+    static int dispatch(byte op, ByteBuffer in, ByteBuffer out) {
+        int id = in.getInt();
+        Write result;
+        switch (op) {
+            case Rpc.USER_GET:
+                long known = in.getLong();
+                ArrayList<String> user = users.get(id);
+                if (user == null) {
+                    return 404;
+                }
+                if (known != 0 && known == Long.parseLong(user.get(VERSION))) {
+                    return 304;
+                }
+                result = new Write(200, user);
+                break;
+
+            case Rpc.USER_UPDATE:
+                long ifMatch = in.getLong();
+                HashMap<String, String> bodyMap = new HashMap<>();
+                String username = Rpc.getString(in);
+                String email = Rpc.getString(in);
+                String password = Rpc.getString(in);
+                if (username != null) {
+                    bodyMap.put("username", username);
+                }
+                if (email != null) {
+                    bodyMap.put("email", email);
+                }
+                if (password != null) {
+                    bodyMap.put("password", password);
+                }
+                result = UserHandler.update(bodyMap, id, ifMatch != 0 ? "\"" + ifMatch + "\"" : null);
+                break;
+
+            default:
+                return 400;
+        }
+        if (result.code == 200) {
+            ArrayList<String> record = result.record;
+            out.putLong(Long.parseLong(record.get(VERSION)));
+            Rpc.putString(out, record.get(0));
+            Rpc.putString(out, record.get(1));
+            Rpc.putString(out, record.get(2));
+        }
+        return result.code;
+    }
+
+    /**
+     * Builds the JSON representation of a stored user.
+     *
+     * @param id The user ID
+     * @param user The stored record: username, email, password hash
+     * @return JSON object string
+     */
+    static String userToJson(int id, ArrayList<String> user) {
+        return "{"
+                + "\"id\": " + id + ","
+                + "\"username\": \"" + user.get(0) + "\","
+                + "\"email\": \"" + user.get(1) + "\","
+                + "\"password\": \"" + user.get(2) + "\""
+                + "}";
+    }
+
+    /**
+     * Returns the entity tag for a stored user: its version, quoted.
+     *
+     * @param user The stored record
+     * @return Strong ETag value
+     */
+    static String etag(ArrayList<String> user) {
+        return "\"" + user.get(VERSION) + "\"";
+    }
+
+    /**
+     * Checks an If-None-Match or If-Match header against an ETag.
+     * The header may list several tags or be "*"; weak tags compare by value.
+     *
+     * @param header The header value, may be null
+     * @param etag The current ETag
+     * @return true if the header names the current ETag
+     */
+    static boolean etagMatches(String header, String etag) {
+        if (header == null) {
+            return false;
+        }
+        for (String tag : header.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Normalizes an email address into its {@link #emailIndex} key.
+     *
+     * @param email The email address
+     * @return The lower-cased, trimmed email
+     */
+    static String emailKey(String email) {
+        return email.trim().toLowerCase();
+    }
+
+    /**
+     * Parses a URL query string such as {@code a=1&b=2} into a map.
+     * Keys and values are URL-decoded; parameters without a value map to "".
+     *
+     * @param rawQuery The raw query string, may be null
+     * @return HashMap of parameter names to values
+     */
+    static HashMap<String, String> parseQuery(String rawQuery) {
+        HashMap<String, String> params = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return params;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            params.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return params;
     }
 
     /**
@@ -443,22 +937,27 @@ public class UserServer {
      * @throws IOException If an I/O error occurs
      */
     private static void sendJson(HttpExchange exchange, String json) throws IOException {
+        long started = RequestEvent.start();
         byte[] data = json.getBytes(StandardCharsets.UTF_8);
         exchange.getResponseHeaders().set("Content-Type", "application/json");
         exchange.sendResponseHeaders(200, data.length);
         exchange.getResponseBody().write(data);
         exchange.close();
+        RequestEvent.respond(started);
     }
 
     private static void sendJsonwithCode(HttpExchange exchange, String json, int code) throws IOException {
+        long started = RequestEvent.start();
         byte[] data = json.getBytes(StandardCharsets.UTF_8);
         exchange.getResponseHeaders().set("Content-Type", "application/json");
         exchange.sendResponseHeaders(code, data.length);
         exchange.getResponseBody().write(data);
         exchange.close();
+        RequestEvent.respond(started);
     }
 
     public static String hashSHA256(String input) {
+        long started = RequestEvent.start();
         try {
             MessageDigest digest = MessageDigest.getInstance("SHA-256");
             byte[] hashBytes = digest.digest(input.getBytes());
@@ -473,6 +972,7 @@ public class UserServer {
                 hexString.append(hex);
             }
 
+            RequestEvent.hash(started);
             return hexString.toString().toUpperCase();
 
         } catch (NoSuchAlgorithmException e) {